@@ -0,0 +1,108 @@
+package org.peergos.protocol.bitswap;
+
+import com.google.protobuf.*;
+import io.ipfs.cid.*;
+import io.libp2p.core.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+import org.peergos.blockstore.*;
+import org.peergos.protocol.bitswap.pb.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Throughput of serving incoming wantlists from a RamBlockstore, and of splitting responses into messages.
+ *
+ *  Run with -prof gc to see the allocation rate per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BitswapBenchmark {
+
+    @Param({"1", "16", "256"})
+    public int wantlistSize;
+
+    @Param({"1024", "262144"})
+    public int blockSize;
+
+    @Param({"0.0", "0.5", "1.0"})
+    public double wantBlockFraction;
+
+    private ExecutorService lookups;
+    private BitswapEngine engine;
+    private PeerId peer;
+    private MessageOuterClass.Message wantlist;
+    private List<MessageOuterClass.Message.Wantlist.Entry> entries;
+    private List<MessageOuterClass.Message.BlockPresence> presences;
+    private List<MessageOuterClass.Message.Block> blocks;
+    private final AtomicInteger responses = new AtomicInteger();
+
+    @Setup
+    public void setup() {
+        RamBlockstore store = new RamBlockstore();
+        // no per peer byte budget, so we measure the serving path rather than the rate limit
+        lookups = Executors.newFixedThreadPool(BitswapEngine.DEFAULT_LOOKUP_THREADS);
+        engine = new BitswapEngine(store, (c, b, p, a) -> CompletableFuture.completedFuture(true), lookups,
+                BitswapEngine.DEFAULT_MAX_CONCURRENT_LOOKUPS, Long.MAX_VALUE, 1_000);
+        peer = PeerId.random();
+
+        Random rnd = new Random(42);
+        entries = new ArrayList<>();
+        presences = new ArrayList<>();
+        blocks = new ArrayList<>();
+        int wantBlocks = (int) Math.round(wantlistSize * wantBlockFraction);
+        for (int i = 0; i < wantlistSize; i++) {
+            byte[] data = new byte[blockSize];
+            rnd.nextBytes(data);
+            Cid cid = store.put(data, Cid.Codec.Raw).join();
+            boolean wantBlock = i < wantBlocks;
+            entries.add(MessageOuterClass.Message.Wantlist.Entry.newBuilder()
+                    .setBlock(ByteString.copyFrom(cid.toBytes()))
+                    .setWantType(wantBlock ?
+                            MessageOuterClass.Message.Wantlist.WantType.Block :
+                            MessageOuterClass.Message.Wantlist.WantType.Have)
+                    .setSendDontHave(true)
+                    .build());
+            if (wantBlock)
+                blocks.add(MessageOuterClass.Message.Block.newBuilder()
+                        .setPrefix(ByteString.copyFrom(BitswapEngine.prefixBytes(cid)))
+                        .setData(ByteString.copyFrom(data))
+                        .build());
+            else
+                presences.add(MessageOuterClass.Message.BlockPresence.newBuilder()
+                        .setCid(ByteString.copyFrom(cid.toBytes()))
+                        .setType(MessageOuterClass.Message.BlockPresenceType.Have)
+                        .build());
+        }
+        wantlist = MessageOuterClass.Message.newBuilder()
+                .setWantlist(MessageOuterClass.Message.Wantlist.newBuilder().addAllEntries(entries))
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdown() {
+        lookups.shutdownNow();
+    }
+
+    /** Every entry wants a block we have, and asks for a DONT_HAVE otherwise, so each gets exactly one response
+     *
+     */
+    @Benchmark
+    public int receiveWantlist() throws InterruptedException {
+        responses.set(0);
+        engine.receiveMessage(wantlist, peer, msg -> responses.addAndGet(msg.getPayloadCount() + msg.getBlockPresencesCount()));
+        while (responses.get() < wantlistSize)
+            Thread.onSpinWait();
+        return responses.get();
+    }
+
+    @Benchmark
+    public void buildAndSendMessages(Blackhole sink) {
+        BitswapEngine.buildAndSendMessages(entries, presences, blocks, sink::consume);
+    }
+}
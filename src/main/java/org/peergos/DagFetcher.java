@@ -0,0 +1,163 @@
+package org.peergos;
+
+import com.google.protobuf.*;
+import io.ipfs.cid.*;
+import io.ipfs.multihash.Multihash;
+import org.peergos.blockstore.*;
+import org.peergos.cbor.*;
+import org.peergos.protocol.bitswap.*;
+import org.peergos.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** Fetches every block of a Merkle DAG, keeping up to maxParallel wants in flight.
+ *
+ *  Links are decoded from each block as it arrives, so the download proceeds as a sliding window over the DAG rather
+ *  than one round trip per level. Blocks are published in the order they arrive.
+ */
+public class DagFetcher {
+    private static final Logger LOG = Logger.getLogger(DagFetcher.class.getName());
+    private static final ExecutorService fetchers = Executors.newCachedThreadPool(Threads.daemon("DAG fetch"));
+
+    private final Blockstore local;
+    private final Supplier<BitswapSession> sessions;
+
+    public DagFetcher(Blockstore local, Supplier<BitswapSession> sessions) {
+        this.local = local;
+        this.sessions = sessions;
+    }
+
+    /** Each subscriber gets its own traversal of the DAG. A slow subscriber slows the download down.
+     *
+     */
+    public Flow.Publisher<HashedBlock> getDag(Cid root, Optional<String> auth, int maxParallel, boolean addToLocal) {
+        if (maxParallel < 1)
+            throw new IllegalArgumentException("maxParallel must be positive");
+        return subscriber -> {
+            SubmissionPublisher<HashedBlock> publisher = new SubmissionPublisher<>();
+            publisher.subscribe(subscriber);
+            fetchers.execute(() -> fetch(root, auth, maxParallel, addToLocal, publisher));
+        };
+    }
+
+    private static class Result {
+        final Cid cid;
+        final HashedBlock block;
+        final Throwable error;
+
+        Result(Cid cid, HashedBlock block, Throwable error) {
+            this.cid = cid;
+            this.block = block;
+            this.error = error;
+        }
+    }
+
+    private void fetch(Cid root,
+                       Optional<String> auth,
+                       int maxParallel,
+                       boolean addToLocal,
+                       SubmissionPublisher<HashedBlock> publisher) {
+        Deque<Cid> toFetch = new ArrayDeque<>();
+        Set<Cid> seen = new HashSet<>();
+        BlockingQueue<Result> completed = new LinkedBlockingQueue<>();
+        toFetch.add(root);
+        seen.add(root);
+        int inFlight = 0;
+        try (BitswapSession session = sessions.get()) {
+            while (! toFetch.isEmpty() || inFlight > 0) {
+                if (publisher.isClosed() || publisher.getNumberOfSubscribers() == 0)
+                    return;
+                List<Want> remote = new ArrayList<>();
+                while (inFlight < maxParallel && ! toFetch.isEmpty()) {
+                    Cid c = toFetch.poll();
+                    inFlight++;
+                    Optional<byte[]> block = local.has(c).join() ? local.get(c).join() : Optional.empty();
+                    if (block.isPresent())
+                        completed.add(new Result(c, new HashedBlock(c, block.get()), null));
+                    else
+                        remote.add(new Want(c, auth));
+                }
+                if (! remote.isEmpty()) {
+                    List<CompletableFuture<HashedBlock>> results = session.get(remote, addToLocal);
+                    for (int i = 0; i < remote.size(); i++) {
+                        Cid c = remote.get(i).cid;
+                        results.get(i).whenComplete((b, t) -> completed.add(new Result(c, b, t)));
+                    }
+                }
+                Result next = completed.take();
+                inFlight--;
+                if (next.error != null) {
+                    publisher.closeExceptionally(next.error);
+                    return;
+                }
+                for (Cid link : links(next.cid, next.block.block)) {
+                    if (seen.add(link))
+                        toFetch.add(link);
+                }
+                // blocks while the subscriber's buffer is full
+                publisher.submit(next.block);
+            }
+            publisher.close();
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, "Error fetching DAG " + root, t);
+            publisher.closeExceptionally(t);
+        }
+    }
+
+    /** Extract the links from a raw, dag-pb or dag-cbor block
+     *
+     */
+    public static List<Cid> links(Cid c, byte[] block) {
+        if (c.codec == Cid.Codec.Raw)
+            return Collections.emptyList();
+        if (c.codec == Cid.Codec.DagCbor)
+            return CborObject.fromByteArray(block).links()
+                    .stream()
+                    .map(DagFetcher::toCid)
+                    .collect(Collectors.toList());
+        if (c.codec == Cid.Codec.DagProtobuf)
+            return dagPbLinks(block);
+        throw new IllegalStateException("Unsupported codec for DAG traversal: " + c.codec);
+    }
+
+    private static Cid toCid(Multihash h) {
+        if (h instanceof Cid)
+            return (Cid) h;
+        return Cid.buildCidV0(h);
+    }
+
+    private static final int PBNODE_LINKS = 2, PBLINK_HASH = 1;
+
+    /** Only the link hashes are decoded, the rest of the PBNode is skipped
+     *
+     */
+    private static List<Cid> dagPbLinks(byte[] block) {
+        try {
+            List<Cid> res = new ArrayList<>();
+            CodedInputStream node = CodedInputStream.newInstance(block);
+            int tag;
+            while ((tag = node.readTag()) != 0) {
+                if (WireFormat.getTagFieldNumber(tag) != PBNODE_LINKS) {
+                    node.skipField(tag);
+                    continue;
+                }
+                CodedInputStream link = node.readBytes().newCodedInput();
+                int linkTag;
+                while ((linkTag = link.readTag()) != 0) {
+                    if (WireFormat.getTagFieldNumber(linkTag) == PBLINK_HASH)
+                        res.add(Cid.cast(link.readByteArray()));
+                    else
+                        link.skipField(linkTag);
+                }
+            }
+            return res;
+        } catch (IOException e) {
+            throw new IllegalStateException("Invalid dag-pb block", e);
+        }
+    }
+}
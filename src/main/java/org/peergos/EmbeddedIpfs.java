@@ -1,5 +1,6 @@
 package org.peergos;
 
+import io.ipfs.cid.*;
 import io.ipfs.multiaddr.*;
 import io.ipfs.multihash.*;
 import io.libp2p.core.*;
@@ -13,6 +14,7 @@ import org.peergos.protocol.bitswap.*;
 import org.peergos.protocol.circuit.*;
 import org.peergos.protocol.dht.*;
 import org.peergos.protocol.http.*;
+import org.peergos.util.*;
 
 import java.nio.file.*;
 import java.util.*;
@@ -22,6 +24,9 @@ import java.util.stream.*;
 
 public class EmbeddedIpfs {
     private static final Logger LOG = Logger.getLogger(EmbeddedIpfs.class.getName());
+    private static final int PROVIDERS_PER_SESSION_SEARCH = 5;
+    private static final int MIN_WARM_START_PEERS = 20;
+    private static final long SNAPSHOT_PERIOD_MILLIS = 10 * 60_000L;
 
     public final Host node;
     public final ProvidingBlockstore blockstore;
@@ -32,6 +37,9 @@ public class EmbeddedIpfs {
     public final Bitswap bitswap;
     public final Optional<HttpProtocol.Binding> p2pHttp;
     private final List<MultiAddress> bootstrap;
+    private final Optional<Path> ipfsPath;
+    private final ScheduledExecutorService snapshotSaver =
+            Executors.newSingleThreadScheduledExecutor(Threads.daemon("Snapshot saver"));
 
     public EmbeddedIpfs(Host node,
                         ProvidingBlockstore blockstore,
@@ -39,7 +47,8 @@ public class EmbeddedIpfs {
                         Kademlia dht,
                         Bitswap bitswap,
                         Optional<HttpProtocol.Binding> p2pHttp,
-                        List<MultiAddress> bootstrap) {
+                        List<MultiAddress> bootstrap,
+                        Optional<Path> ipfsPath) {
         this.node = node;
         this.blockstore = blockstore;
         this.records = records;
@@ -47,9 +56,20 @@ public class EmbeddedIpfs {
         this.bitswap = bitswap;
         this.p2pHttp = p2pHttp;
         this.bootstrap = bootstrap;
+        this.ipfsPath = ipfsPath;
         this.blocks = new BitswapBlockService(node, bitswap);
     }
 
+    public EmbeddedIpfs(Host node,
+                        ProvidingBlockstore blockstore,
+                        DatabaseRecordStore records,
+                        Kademlia dht,
+                        Bitswap bitswap,
+                        Optional<HttpProtocol.Binding> p2pHttp,
+                        List<MultiAddress> bootstrap) {
+        this(node, blockstore, records, dht, bitswap, p2pHttp, bootstrap, Optional.empty());
+    }
+
     public List<HashedBlock> getBlocks(List<Want> wants, Set<PeerId> peers, boolean addToLocal) {
         List<HashedBlock> blocksFound = new ArrayList<>();
 
@@ -73,19 +93,60 @@ public class EmbeddedIpfs {
                 .collect(Collectors.toList());
     }
 
+    /** Fetch a whole DAG, keeping up to maxParallel blocks in flight. Blocks are published as they arrive.
+     *
+     */
+    public Flow.Publisher<HashedBlock> getDag(Cid root, Optional<String> auth, int maxParallel) {
+        return getDag(root, auth, maxParallel, false);
+    }
+
+    public Flow.Publisher<HashedBlock> getDag(Cid root, Optional<String> auth, int maxParallel, boolean addToLocal) {
+        return new DagFetcher(blockstore, this::newBitswapSession).getDag(root, auth, maxParallel, addToLocal);
+    }
+
+    public BitswapSession newBitswapSession() {
+        return bitswap.newSession(node, c -> dht.findProviders(c, node, PROVIDERS_PER_SESSION_SEARCH));
+    }
+
     public void start() {
         node.start().join();
         LOG.info("Node started and listening on " + node.listenAddresses());
-        LOG.info("Starting bootstrap process");
-        int connections = dht.bootstrapRoutingTable(node, bootstrap, addr -> !addr.contains("/wss/"));
-        dht.bootstrap(node);
+        Optional<Path> routingTableFile = ipfsPath.map(p -> p.resolve("routing-table.snapshot"));
+        int warmPeers = routingTableFile.map(f -> dht.loadRoutingTable(f, node)).orElse(0);
+        if (warmPeers >= MIN_WARM_START_PEERS) {
+            // we already have a usable routing table, so refresh it in the background
+            LOG.info("Warm started with " + warmPeers + " peers from the saved routing table");
+            Threads.daemon("Kademlia refresh").newThread(() -> dht.bootstrap(node)).start();
+        } else {
+            LOG.info("Starting bootstrap process");
+            int connections = dht.bootstrapRoutingTable(node, bootstrap, addr -> !addr.contains("/wss/"));
+            LOG.info("Connected to " + connections + " bootstrap peers");
+            dht.bootstrap(node);
+        }
+        ipfsPath.ifPresent(p -> snapshotSaver.scheduleAtFixedRate(() -> saveSnapshots(p),
+                SNAPSHOT_PERIOD_MILLIS, SNAPSHOT_PERIOD_MILLIS, TimeUnit.MILLISECONDS));
 
         PeriodicBlockProvider blockProvider = new PeriodicBlockProvider(22 * 3600_000L,
-                () -> blockstore.refs().join().stream(), node, dht, blockstore.toPublish);
+                () -> blockstore.refs().join().stream(), node, dht, blockstore.toPublish,
+                PeriodicBlockProvider.DEFAULT_BATCH_SIZE, BatchProvider.DEFAULT_CONCURRENCY,
+                BatchProvider.DEFAULT_MAX_PROVIDES_PER_SECOND, ipfsPath.map(p -> p.resolve("reprovide.checkpoint")));
         blockProvider.start();
     }
 
+    private void saveSnapshots(Path ipfsPath) {
+        try {
+            dht.saveRoutingTable(ipfsPath.resolve("routing-table.snapshot"));
+            if (node.getAddressBook() instanceof RamAddressBook)
+                ((RamAddressBook) node.getAddressBook()).saveTo(ipfsPath.resolve("addresses.snapshot"));
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Couldn't save snapshots", e);
+        }
+    }
+
     public CompletableFuture<Void> stop() throws Exception {
+        snapshotSaver.shutdownNow();
+        if (dht != null)
+            ipfsPath.ifPresent(this::saveSnapshots);
         records.close();
         return node.stop();
     }
@@ -125,7 +186,10 @@ public class EmbeddedIpfs {
         DatabaseRecordStore records = new DatabaseRecordStore(datastorePath.toString());
         ProviderStore providers = new RamProviderStore();
 
-        HostBuilder builder = new HostBuilder().setIdentity(identity.privKeyProtobuf).listen(swarmAddresses);
+        RamAddressBook addresses = new RamAddressBook();
+        addresses.loadFrom(ipfsPath.resolve("addresses.snapshot"));
+        HostBuilder builder = new HostBuilder().setIdentity(identity.privKeyProtobuf).listen(swarmAddresses)
+                .setAddressBook(addresses);
         if (! builder.getPeerId().equals(identity.peerId)) {
             throw new IllegalStateException("PeerId invalid");
         }
@@ -147,6 +211,7 @@ public class EmbeddedIpfs {
 
         Host node = builder.addProtocols(protocols).build();
 
-        return new EmbeddedIpfs(node, blockstore, records, dht, bitswap, httpHandler, bootstrap);
+        return new EmbeddedIpfs(node, blockstore, records, dht, bitswap, httpHandler, bootstrap,
+                Optional.of(ipfsPath));
     }
 }
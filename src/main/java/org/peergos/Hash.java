@@ -1,5 +1,6 @@
 package org.peergos;
 
+import java.nio.*;
 import java.security.*;
 
 public class Hash {
@@ -12,4 +13,17 @@ public class Hash {
             throw new RuntimeException(e);
         }
     }
+
+    /** Hash the remaining bytes of in without copying them into an array
+     *
+     */
+    public static byte[] sha256(ByteBuffer in) {
+        try {
+            MessageDigest hasher = MessageDigest.getInstance("SHA-256");
+            hasher.update(in);
+            return hasher.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
@@ -30,6 +30,7 @@ public class HostBuilder {
     private List<String> listenAddrs = new ArrayList<>();
     private List<ProtocolBinding> protocols = new ArrayList<>();
     private List<StreamMuxerProtocol> muxers = new ArrayList<>();
+    private AddressBook addressBook = new RamAddressBook();
 
     public HostBuilder() {
     }
@@ -67,6 +68,15 @@ public class HostBuilder {
                 .findFirst();
     }
 
+    public AddressBook getAddressBook() {
+        return addressBook;
+    }
+
+    public HostBuilder setAddressBook(AddressBook addressBook) {
+        this.addressBook = addressBook;
+        return this;
+    }
+
     public HostBuilder addMuxers(List<StreamMuxerProtocol> muxers) {
         this.muxers.addAll(muxers);
         return this;
@@ -135,20 +145,28 @@ public class HostBuilder {
     public Host build() {
         if (muxers.isEmpty())
             muxers.addAll(List.of(StreamMuxerProtocol.getYamux(), StreamMuxerProtocol.getMplex()));
-        return build(privKey, listenAddrs, protocols, muxers);
+        return build(privKey, listenAddrs, protocols, muxers, addressBook);
     }
 
     public static Host build(PrivKey privKey,
                              List<String> listenAddrs,
                              List<ProtocolBinding> protocols,
                              List<StreamMuxerProtocol> muxers) {
+        return build(privKey, listenAddrs, protocols, muxers, new RamAddressBook());
+    }
+
+    public static Host build(PrivKey privKey,
+                             List<String> listenAddrs,
+                             List<ProtocolBinding> protocols,
+                             List<StreamMuxerProtocol> muxers,
+                             AddressBook addressBook) {
         Host host = BuilderJKt.hostJ(Builder.Defaults.None, b -> {
             b.getIdentity().setFactory(() -> privKey);
             b.getTransports().add(TcpTransport::new);
             b.getSecureChannels().add((k, m) -> new NoiseXXSecureChannel(k, m));
             b.getSecureChannels().add((k, m) -> new TlsSecureChannel(k, m));
             b.getMuxers().addAll(muxers);
-            b.getAddressBook().setImpl(new RamAddressBook());
+            b.getAddressBook().setImpl(addressBook);
             // Uncomment to add mux debug logging
 //            b.getDebug().getMuxFramesHandler().addLogger(LogLevel.INFO, "MUX");
 
@@ -4,6 +4,8 @@ import io.ipfs.cid.*;
 import io.libp2p.core.*;
 import org.peergos.protocol.dht.*;
 
+import java.io.*;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
@@ -11,25 +13,59 @@ import java.util.logging.*;
 import java.util.stream.*;
 import java.util.stream.Stream;
 
+/** Republishes provider records for every block in the blockstore once per interval, and for new blocks as they arrive.
+ *
+ *  Blocks are reprovided in batches, each of which is sorted by keyspace so nearby keys can share a lookup. After each
+ *  batch the progress through the current cycle is checkpointed, so a restart, or a failure part way through, resumes
+ *  the cycle rather than beginning it again. New blocks are taken from a blocking queue in batches, bounded by size
+ *  and by how long the first cid in the batch waits.
+ */
 public class PeriodicBlockProvider {
 
     private static final Logger LOG = Logger.getLogger(PeriodicBlockProvider.class.getName());
+    public static final int DEFAULT_BATCH_SIZE = 100_000;
+    public static final int NEW_BLOCK_BATCH_SIZE = 1_000;
+    public static final long NEW_BLOCK_BATCH_DELAY_MILLIS = 1_000;
+
     private final long reprovideIntervalMillis;
     private final Supplier<Stream<Cid>> getBlocks;
     private final Host us;
     private final Kademlia dht;
-    private final Queue<Cid> newBlocksToPublish;
+    private final BlockingQueue<Cid> newBlocksToPublish;
+    private final BatchProvider provider;
+    private final int batchSize;
+    private final Optional<Path> checkpoint;
+    // the progress through the current cycle, only used by the reprovide thread
+    private Progress progress;
 
     public PeriodicBlockProvider(long reprovideIntervalMillis,
                                  Supplier<Stream<Cid>> getBlocks,
                                  Host us,
                                  Kademlia dht,
-                                 Queue<Cid> newBlocksToPublish) {
+                                 BlockingQueue<Cid> newBlocksToPublish,
+                                 int batchSize,
+                                 int concurrency,
+                                 double maxProvidesPerSecond,
+                                 Optional<Path> checkpoint) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Batch size must be positive");
         this.reprovideIntervalMillis = reprovideIntervalMillis;
         this.getBlocks = getBlocks;
         this.us = us;
         this.dht = dht;
         this.newBlocksToPublish = newBlocksToPublish;
+        this.provider = new BatchProvider(dht, us, concurrency, maxProvidesPerSecond);
+        this.batchSize = batchSize;
+        this.checkpoint = checkpoint;
+    }
+
+    public PeriodicBlockProvider(long reprovideIntervalMillis,
+                                 Supplier<Stream<Cid>> getBlocks,
+                                 Host us,
+                                 Kademlia dht,
+                                 BlockingQueue<Cid> newBlocksToPublish) {
+        this(reprovideIntervalMillis, getBlocks, us, dht, newBlocksToPublish, DEFAULT_BATCH_SIZE,
+                BatchProvider.DEFAULT_CONCURRENCY, BatchProvider.DEFAULT_MAX_PROVIDES_PER_SECOND, Optional.empty());
     }
 
     public void start() {
@@ -37,24 +73,110 @@ public class PeriodicBlockProvider {
         new Thread(this::provideNewBlocks, "NewCidProvider").start();
     }
 
+    /** How far through a reprovide cycle we are
+     *
+     */
+    static class Progress {
+        public final long cycleStartMillis;
+        public final long blocksDone;
+
+        public Progress(long cycleStartMillis, long blocksDone) {
+            this.cycleStartMillis = cycleStartMillis;
+            this.blocksDone = blocksDone;
+        }
+
+        static Optional<Progress> read(Path file) {
+            try {
+                String[] parts = Files.readString(file).trim().split(" ");
+                return Optional.of(new Progress(Long.parseLong(parts[0]), Long.parseLong(parts[1])));
+            } catch (NoSuchFileException e) {
+                return Optional.empty();
+            } catch (IOException | RuntimeException e) {
+                LOG.log(Level.WARNING, "Ignoring invalid reprovide checkpoint " + file, e);
+                return Optional.empty();
+            }
+        }
+
+        void write(Path file) throws IOException {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.writeString(tmp, cycleStartMillis + " " + blocksDone);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
     public void run() {
+        Optional<Progress> resumed = checkpoint.flatMap(Progress::read)
+                .filter(p -> p.cycleStartMillis + reprovideIntervalMillis > System.currentTimeMillis());
         while (true) {
             try {
-                publish(getBlocks.get());
-                Thread.sleep(reprovideIntervalMillis);
+                long cycleStart = resumed.map(p -> p.cycleStartMillis).orElse(System.currentTimeMillis());
+                long skip = resumed.map(p -> p.blocksDone).orElse(0L);
+                resumed = Optional.empty();
+                if (skip > 0)
+                    LOG.info("Resuming reprovide cycle after " + skip + " blocks");
+                reprovide(cycleStart, skip);
+                progress = null;
+                long remaining = cycleStart + reprovideIntervalMillis - System.currentTimeMillis();
+                if (remaining > 0)
+                    Thread.sleep(remaining);
             } catch (Throwable e) {
                 LOG.log(Level.WARNING, e.getMessage(), e);
+                // carry on from the last completed batch, unless the cycle has run out of time
+                resumed = Optional.ofNullable(progress)
+                        .filter(p -> p.cycleStartMillis + reprovideIntervalMillis > System.currentTimeMillis());
+                try {
+                    Thread.sleep(60_000);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void reprovide(long cycleStart, long skip) throws IOException {
+        Iterator<Cid> blocks = getBlocks.get().skip(skip).iterator();
+        long done = skip;
+        progress = new Progress(cycleStart, done);
+        List<Cid> batch = new ArrayList<>(batchSize);
+        while (blocks.hasNext()) {
+            batch.add(blocks.next());
+            if (batch.size() == batchSize || ! blocks.hasNext()) {
+                provider.provide(batch);
+                done += batch.size();
+                batch.clear();
+                progress = new Progress(cycleStart, done);
+                if (checkpoint.isPresent())
+                    progress.write(checkpoint.get());
             }
         }
     }
 
+    /** Wait for at least one cid, then keep collecting until the batch is full or the delay has passed
+     *
+     */
+    static List<Cid> takeBatch(BlockingQueue<Cid> queue, int maxSize, long maxDelayMillis) throws InterruptedException {
+        List<Cid> batch = new ArrayList<>();
+        batch.add(queue.take());
+        long deadline = System.currentTimeMillis() + maxDelayMillis;
+        while (batch.size() < maxSize) {
+            queue.drainTo(batch, maxSize - batch.size());
+            long remaining = deadline - System.currentTimeMillis();
+            if (batch.size() >= maxSize || remaining <= 0)
+                break;
+            Cid next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+            if (next == null)
+                break;
+            batch.add(next);
+        }
+        return batch;
+    }
+
     public void provideNewBlocks() {
         while (true) {
             try {
-                Cid c = newBlocksToPublish.poll();
-                if (c != null) {
-                    publish(Stream.of(c));
-                }
+                publish(takeBatch(newBlocksToPublish, NEW_BLOCK_BATCH_SIZE, NEW_BLOCK_BATCH_DELAY_MILLIS).stream());
+            } catch (InterruptedException e) {
+                return;
             } catch (Throwable e) {
                 LOG.log(Level.WARNING, e.getMessage(), e);
             }
@@ -62,13 +184,6 @@ public class PeriodicBlockProvider {
     }
 
     public void publish(Stream<Cid> blocks) {
-        PeerAddresses ourAddrs = PeerAddresses.fromHost(us);
-
-        List<CompletableFuture<Void>> published = blocks.parallel()
-                .map(ref -> dht.provideBlock(ref, us, ourAddrs))
-                .collect(Collectors.toList());
-        for (CompletableFuture<Void> fut : published) {
-            fut.join();
-        }
+        provider.provide(blocks.collect(Collectors.toList()));
     }
 }
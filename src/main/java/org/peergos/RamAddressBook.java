@@ -4,36 +4,205 @@ import io.libp2p.core.*;
 import io.libp2p.core.multiformats.*;
 import org.jetbrains.annotations.*;
 
+import java.io.*;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.logging.*;
+import java.util.stream.*;
 
+/** A bounded address book in which addresses expire.
+ *
+ *  Each address expires after the ttl it was added with, or the default ttl if that is not positive. Each peer keeps
+ *  at most maxAddrsPerPeer addresses, dropping those closest to expiry, and when there are more than maxPeers peers
+ *  the least recently used are evicted. Returned collections are immutable snapshots.
+ */
 public class RamAddressBook implements AddressBook {
+    private static final Logger LOG = Logger.getLogger(RamAddressBook.class.getName());
+    public static final int DEFAULT_MAX_PEERS = 10_000;
+    public static final int DEFAULT_MAX_ADDRS_PER_PEER = 16;
+    public static final long DEFAULT_TTL_MILLIS = 3600_000L;
 
-    Map<PeerId, Set<Multiaddr>> addresses = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<PeerId, Addresses> addresses = new ConcurrentHashMap<>();
+    private final int maxPeers, maxAddrsPerPeer;
+    private final long defaultTtlMillis;
+
+    /** The addresses of a peer, never modified once published, with when each expires
+     *
+     */
+    private static class Addresses {
+        public final Map<Multiaddr, Long> expiries;
+        public volatile long lastUsed;
+
+        public Addresses(Map<Multiaddr, Long> expiries, long lastUsed) {
+            this.expiries = expiries;
+            this.lastUsed = lastUsed;
+        }
+
+        public List<Multiaddr> current(long now) {
+            return expiries.entrySet().stream()
+                    .filter(e -> e.getValue() > now)
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toUnmodifiableList());
+        }
+    }
+
+    public RamAddressBook(int maxPeers, int maxAddrsPerPeer, long defaultTtlMillis) {
+        if (maxPeers < 1 || maxAddrsPerPeer < 1 || defaultTtlMillis < 1)
+            throw new IllegalArgumentException("Address book limits must be positive");
+        this.maxPeers = maxPeers;
+        this.maxAddrsPerPeer = maxAddrsPerPeer;
+        this.defaultTtlMillis = defaultTtlMillis;
+    }
+
+    public RamAddressBook() {
+        this(DEFAULT_MAX_PEERS, DEFAULT_MAX_ADDRS_PER_PEER, DEFAULT_TTL_MILLIS);
+    }
+
+    private long expiry(long ttl, long now) {
+        return now + (ttl > 0 ? ttl : defaultTtlMillis);
+    }
+
+    /** Merge the new addresses in, dropping expired ones, and those closest to expiry if over the limit
+     *
+     */
+    private Addresses merge(Addresses existing, Map<Multiaddr, Long> added, long now) {
+        Map<Multiaddr, Long> merged = new HashMap<>();
+        if (existing != null)
+            existing.expiries.forEach((a, expiry) -> {
+                if (expiry > now)
+                    merged.put(a, expiry);
+            });
+        added.forEach((a, expiry) -> merged.merge(a, expiry, Math::max));
+        if (merged.size() > maxAddrsPerPeer) {
+            List<Map.Entry<Multiaddr, Long>> latest = merged.entrySet().stream()
+                    .sorted(Map.Entry.<Multiaddr, Long>comparingByValue().reversed())
+                    .limit(maxAddrsPerPeer)
+                    .collect(Collectors.toList());
+            merged.clear();
+            latest.forEach(e -> merged.put(e.getKey(), e.getValue()));
+        }
+        return new Addresses(Collections.unmodifiableMap(merged), now);
+    }
+
+    private void put(PeerId peerId, Map<Multiaddr, Long> added, boolean replace) {
+        long now = System.currentTimeMillis();
+        addresses.compute(peerId, (id, existing) -> merge(replace ? null : existing, added, now));
+        if (addresses.size() > maxPeers)
+            evict();
+    }
+
+    /** Drop the least recently used tenth of the peers
+     *
+     */
+    private synchronized void evict() {
+        int toRemove = addresses.size() - maxPeers + Math.max(1, maxPeers / 10);
+        if (toRemove <= 0)
+            return;
+        addresses.entrySet().stream()
+                .map(e -> new AbstractMap.SimpleEntry<>(e.getKey(), e.getValue().lastUsed))
+                .sorted(Map.Entry.comparingByValue())
+                .limit(toRemove)
+                .forEach(e -> addresses.remove(e.getKey()));
+    }
+
+    private Map<Multiaddr, Long> withExpiry(long ttl, Multiaddr[] multiaddrs) {
+        long expiry = expiry(ttl, System.currentTimeMillis());
+        Map<Multiaddr, Long> res = new HashMap<>();
+        for (Multiaddr addr : multiaddrs)
+            res.put(addr, expiry);
+        return res;
+    }
 
     @NotNull
     @Override
     public CompletableFuture<Void> addAddrs(@NotNull PeerId peerId, long ttl, @NotNull Multiaddr... multiaddrs) {
-        addresses.putIfAbsent(peerId, new HashSet<>());
-        Set<Multiaddr> val = addresses.get(peerId);
-        synchronized (val) {
-            val.addAll(Arrays.asList(multiaddrs));
-        }
+        put(peerId, withExpiry(ttl, multiaddrs), false);
         return CompletableFuture.completedFuture(null);
     }
 
     @NotNull
     @Override
     public CompletableFuture<Collection<Multiaddr>> getAddrs(@NotNull PeerId peerId) {
-        return CompletableFuture.completedFuture(addresses.getOrDefault(peerId, Collections.emptySet()));
+        Addresses existing = addresses.get(peerId);
+        if (existing == null)
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        long now = System.currentTimeMillis();
+        List<Multiaddr> current = existing.current(now);
+        if (current.isEmpty())
+            addresses.remove(peerId, existing);
+        else
+            existing.lastUsed = now;
+        return CompletableFuture.completedFuture(current);
     }
 
     @NotNull
     @Override
     public CompletableFuture<Void> setAddrs(@NotNull PeerId peerId, long ttl, @NotNull Multiaddr... multiaddrs) {
-        Set<Multiaddr> val = new HashSet<>();
-        val.addAll(Arrays.asList(multiaddrs));
-        addresses.put(peerId, val);
+        put(peerId, withExpiry(ttl, multiaddrs), true);
         return CompletableFuture.completedFuture(null);
     }
+
+    public int size() {
+        return addresses.size();
+    }
+
+    /** Write all the unexpired addresses to a file, to be reloaded with loadFrom
+     *
+     */
+    public void saveTo(Path file) throws IOException {
+        long now = System.currentTimeMillis();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            for (Map.Entry<PeerId, Addresses> e : addresses.entrySet()) {
+                List<Map.Entry<Multiaddr, Long>> current = e.getValue().expiries.entrySet().stream()
+                        .filter(a -> a.getValue() > now)
+                        .collect(Collectors.toList());
+                if (current.isEmpty())
+                    continue;
+                byte[] id = e.getKey().getBytes();
+                out.writeShort(id.length);
+                out.write(id);
+                out.writeShort(current.size());
+                for (Map.Entry<Multiaddr, Long> addr : current) {
+                    byte[] raw = addr.getKey().serialize();
+                    out.writeShort(raw.length);
+                    out.write(raw);
+                    out.writeLong(addr.getValue());
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Add the unexpired addresses saved by saveTo, if the file exists
+     *
+     * @return the number of peers loaded
+     */
+    public int loadFrom(Path file) {
+        long now = System.currentTimeMillis();
+        int peers = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (in.available() > 0) {
+                PeerId peerId = new PeerId(in.readNBytes(in.readUnsignedShort()));
+                int count = in.readUnsignedShort();
+                Map<Multiaddr, Long> saved = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    Multiaddr addr = new Multiaddr(in.readNBytes(in.readUnsignedShort()));
+                    long expiry = in.readLong();
+                    if (expiry > now)
+                        saved.put(addr, expiry);
+                }
+                if (! saved.isEmpty()) {
+                    put(peerId, saved, false);
+                    peers++;
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Stopped loading invalid address book " + file, e);
+        }
+        return peers;
+    }
 }
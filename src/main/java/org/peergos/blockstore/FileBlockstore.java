@@ -6,6 +6,7 @@ import org.peergos.Hash;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
@@ -64,18 +65,10 @@ public class FileBlockstore implements Blockstore {
     public CompletableFuture<Optional<byte[]>> get(Cid cid) {
         try {
             Path path = getFilePath(cid);
-            File file = blocksRoot.resolve(path).toFile();
-            if (!file.exists()) {
-                return CompletableFuture.completedFuture(Optional.empty());
-            }
-            try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
-                byte[] buffer = new byte[1024];
-                ByteArrayOutputStream bout = new ByteArrayOutputStream();
-                for (int len; (len = din.read(buffer)) != -1; ) {
-                    bout.write(buffer, 0, len);
-                }
-                return CompletableFuture.completedFuture(Optional.of(bout.toByteArray()));
-            }
+            // a single read into an exactly sized array, rather than copying through intermediate buffers
+            return CompletableFuture.completedFuture(Optional.of(Files.readAllBytes(blocksRoot.resolve(path))));
+        } catch (NoSuchFileException e) {
+            return CompletableFuture.completedFuture(Optional.empty());
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
         }
@@ -4,14 +4,45 @@ import io.ipfs.cid.*;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
+/** Queues the cids of newly written blocks to be provided to the DHT.
+ *
+ *  The queue is bounded. When the DHT can't keep up, the cids of further puts are dropped rather than blocking the
+ *  writer, which may be a network thread, and are provided in the next periodic reprovide instead.
+ */
 public class ProvidingBlockstore implements Blockstore {
+    public static final int DEFAULT_QUEUE_CAPACITY = 100_000;
 
     private final Blockstore target;
-    public final Queue<Cid> toPublish = new LinkedBlockingDeque<>();
+    public final BlockingQueue<Cid> toPublish;
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
 
-    public ProvidingBlockstore(Blockstore target) {
+    public ProvidingBlockstore(Blockstore target, int queueCapacity) {
         this.target = target;
+        this.toPublish = new LinkedBlockingQueue<>(queueCapacity);
+    }
+
+    public ProvidingBlockstore(Blockstore target) {
+        this(target, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    private Cid enqueue(Cid c) {
+        if (toPublish.offer(c))
+            queued.increment();
+        else
+            dropped.increment();
+        return c;
+    }
+
+    public Map<String, Object> provideQueueStats() {
+        Map<String, Object> res = new LinkedHashMap<>();
+        res.put("QueueDepth", toPublish.size());
+        res.put("QueueCapacity", toPublish.size() + toPublish.remainingCapacity());
+        res.put("Queued", queued.sum());
+        res.put("Dropped", dropped.sum());
+        return res;
     }
 
     @Override
@@ -26,9 +57,7 @@ public class ProvidingBlockstore implements Blockstore {
 
     @Override
     public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
-        CompletableFuture<Cid> res = target.put(block, codec);
-        res.thenApply(toPublish::add);
-        return res;
+        return target.put(block, codec).thenApply(this::enqueue);
     }
 
     @Override
@@ -7,15 +7,18 @@ import io.libp2p.core.PeerId;
 import org.peergos.PeerAddresses;
 import org.peergos.util.JSONParser;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 public class NabuClient {
@@ -94,6 +97,18 @@ public class NabuClient {
         return "true".equals(new String(retrieve("bloom/add?arg=" + hash)));
     }
 
+    public Map<String, Object> bitswapStats() throws IOException {
+        return (Map<String, Object>) retrieveAndParse("stats/bitswap");
+    }
+
+    public Map<String, Object> provideStats() throws IOException {
+        return (Map<String, Object>) retrieveAndParse("stats/provide");
+    }
+
+    public Map<String, Object> dhtStats() throws IOException {
+        return (Map<String, Object>) retrieveAndParse("stats/dht");
+    }
+
     public byte[] getBlock(Multihash hash, Optional<String> auth) throws IOException {
         String authArg = auth.isPresent() ? "&auth=" + auth.get() : "";
         return retrieve("block/get?arg=" + hash + authArg);
@@ -134,20 +149,37 @@ public class NabuClient {
     }
 
     public List<PeerAddresses> findProviders(Multihash hash) throws IOException {
-        List<Map<String, Object>> results = getAndParseStream("dht/findprovs?arg=" + hash).stream()
-                .map(x -> (Map<String, Object>) x)
-                .collect(Collectors.toList());
         List<PeerAddresses> providers = new ArrayList<>();
-        for (Map<String, Object> entry : results) {
-            Map<String, Object> responses = (Map<String, Object>)entry.get("Responses");
-            Multihash peerId = Multihash.fromBase58((String) responses.get("ID"));
-            ArrayList<String> addrs = (ArrayList<String>)responses.get("Addrs");
-            List<MultiAddress> peerAddresses = addrs.stream().map(a -> new MultiAddress(a)).collect(Collectors.toList());
-            providers.add(new PeerAddresses(peerId, peerAddresses));
-        }
+        findProviders(hash, 20, p -> {
+            providers.add(p);
+            return true;
+        });
         return providers;
     }
 
+    /** Receive providers one at a time, as the node finds them
+     *
+     * @param onProvider returns whether to keep looking
+     */
+    public void findProviders(Multihash hash, int numProviders, Predicate<PeerAddresses> onProvider) throws IOException {
+        try (BufferedReader lines = new BufferedReader(new InputStreamReader(
+                retrieveStream("dht/findprovs?arg=" + hash + "&num-providers=" + numProviders)))) {
+            String line;
+            while ((line = lines.readLine()) != null) {
+                if (line.isBlank())
+                    continue;
+                Map<String, Object> entry = (Map<String, Object>) JSONParser.parse(line);
+                Map<String, Object> responses = (Map<String, Object>)entry.get("Responses");
+                Multihash peerId = Multihash.fromBase58((String) responses.get("ID"));
+                ArrayList<String> addrs = (ArrayList<String>)responses.get("Addrs");
+                List<MultiAddress> peerAddresses = addrs.stream().map(a -> new MultiAddress(a)).collect(Collectors.toList());
+                // closing the stream early makes the node stop looking
+                if (! onProvider.test(new PeerAddresses(peerId, peerAddresses)))
+                    return;
+            }
+        }
+    }
+
     private Map retrieveMap(String path) throws IOException {
         return (Map)retrieveAndParse(path);
     }
@@ -206,25 +238,6 @@ public class NabuClient {
     }
 
 
-    private List<Object> getAndParseStream(String path) throws IOException {
-        InputStream in = retrieveStream(path);
-        byte LINE_FEED = (byte)10;
-
-        ByteArrayOutputStream resp = new ByteArrayOutputStream();
-
-        byte[] buf = new byte[4096];
-        int r;
-        List<Object> res = new ArrayList<>();
-        while ((r = in.read(buf)) >= 0) {
-            resp.write(buf, 0, r);
-            if (buf[r - 1] == LINE_FEED) {
-                res.add(JSONParser.parse(new String(resp.toByteArray())));
-                resp.reset();
-            }
-        }
-        return res;
-    }
-
     private InputStream retrieveStream(String path) throws IOException {
         URL target = new URL(protocol, host, port, apiVersion + path);
         return NabuClient.getStream(target, connectTimeoutMillis, readTimeoutMillis);
@@ -7,7 +7,9 @@ import org.peergos.util.*;
 import com.sun.net.httpserver.HttpExchange;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.Logger;
 import java.util.stream.*;
 
@@ -30,6 +32,10 @@ public class APIHandler extends Handler {
 
     public static final String FIND_PROVS = "dht/findprovs";
 
+    public static final String BITSWAP_STATS = "stats/bitswap";
+    public static final String PROVIDE_STATS = "stats/provide";
+    public static final String DHT_STATS = "stats/dht";
+
     private final EmbeddedIpfs ipfs;
 
     public APIHandler(EmbeddedIpfs ipfs) {
@@ -185,18 +191,51 @@ public class APIHandler extends Handler {
                     }
                     Optional<Integer> providersParam = Optional.ofNullable(params.get("num-providers")).map(a -> Integer.parseInt(a.get(0)));
                     int numProviders = providersParam.isPresent() && providersParam.get() > 0 ? providersParam.get() : 20;
-                    List<PeerAddresses> providers = ipfs.dht.findProviders(Cid.decode(args.get(0)), ipfs.node, numProviders).join();
-                    StringBuilder sb = new StringBuilder();
-                    Map<String, Object> entry = new HashMap<>();
-                    Map<String, Object> responses = new HashMap<>();
-                    for (PeerAddresses provider : providers) {
-                        List<String> addresses = provider.addresses.stream().map(a -> a.toString()).collect(Collectors.toList());
-                        responses.put("Addrs", addresses);
-                        responses.put("ID", provider.peerId.toBase58());
+                    // stream one line of json per provider, as each is found
+                    httpExchange.getResponseHeaders().set("Content-Type", "application/json");
+                    httpExchange.getResponseHeaders().set("X-Chunked-Output", "1");
+                    httpExchange.sendResponseHeaders(200, 0);
+                    // providers are written from this thread, never from the network thread that found them
+                    BlockingQueue<Runnable> writes = new LinkedBlockingQueue<>();
+                    try (OutputStream out = httpExchange.getResponseBody()) {
+                        CompletableFuture<List<PeerAddresses>> search = ipfs.dht.findProviders(Cid.decode(args.get(0)), ipfs.node, numProviders, provider -> {
+                            Map<String, Object> entry = new HashMap<>();
+                            Map<String, Object> responses = new HashMap<>();
+                            List<String> addresses = provider.addresses.stream().map(a -> a.toString()).collect(Collectors.toList());
+                            responses.put("Addrs", addresses);
+                            responses.put("ID", provider.peerId.toBase58());
+                            entry.put("Responses", responses);
+                            try {
+                                out.write((JSONParser.toString(entry) + "\n").getBytes());
+                                out.flush();
+                                return true;
+                            } catch (IOException e) {
+                                // the client has gone away, so stop looking
+                                return false;
+                            }
+                        }, writes::add);
+                        while (! search.isDone() || ! writes.isEmpty()) {
+                            Runnable write = writes.poll(100, TimeUnit.MILLISECONDS);
+                            if (write != null)
+                                write.run();
+                        }
+                        search.join();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
                     }
-                    entry.put("Responses", responses);
-                    sb.append(JSONParser.toString(entry) + "\n");
-                    replyBytes(httpExchange, sb.toString().getBytes());
+                    break;
+                }
+                case BITSWAP_STATS: {
+                    Map<String, Object> stats = ipfs.bitswap.getStats().toJson(ipfs.bitswap.getLedgers());
+                    replyJson(httpExchange, JSONParser.toString(stats));
+                    break;
+                }
+                case PROVIDE_STATS: {
+                    replyJson(httpExchange, JSONParser.toString(ipfs.blockstore.provideQueueStats()));
+                    break;
+                }
+                case DHT_STATS: {
+                    replyJson(httpExchange, JSONParser.toString(ipfs.dht.getCacheStats()));
                     break;
                 }
                 default: {
@@ -8,6 +8,7 @@ import io.libp2p.core.multiformats.*;
 import io.libp2p.core.multistream.*;
 import org.peergos.*;
 import org.peergos.protocol.bitswap.pb.*;
+import org.peergos.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
@@ -15,16 +16,26 @@ import java.util.function.*;
 import java.util.logging.*;
 import java.util.stream.*;
 
-public class Bitswap extends StrictProtocolBinding<BitswapController> implements AddressBookConsumer {
+public class Bitswap extends StrictProtocolBinding<BitswapController> implements AddressBookConsumer, HostConsumer {
     private static final Logger LOG = Logger.getLogger(Bitswap.class.getName());
     public static int MAX_MESSAGE_SIZE = 2*1024*1024;
+    public static final long DIAL_TIMEOUT_MILLIS = 10_000;
 
     private final BitswapEngine engine;
+    private final WantManager wants;
+    private final ScheduledExecutorService sessionTimers =
+            Executors.newSingleThreadScheduledExecutor(Threads.daemon("Bitswap sessions"));
+    private final ExecutorService providerSearches = Executors.newCachedThreadPool(Threads.daemon("Bitswap provider search"));
+    private final ControllerCache controllers = new ControllerCache(DIAL_TIMEOUT_MILLIS, this::dialController);
     private AddressBook addrs;
+    private volatile Host us;
 
     public Bitswap(BitswapEngine engine) {
         super("/ipfs/bitswap/1.2.0", new BitswapProtocol(engine));
         this.engine = engine;
+        this.wants = new WantManager(this::send,
+                engine::getConnected, engine::isWanted, engine.getStats());
+        engine.addListener(wants);
     }
 
     public void setAddressBook(AddressBook addrs) {
@@ -32,6 +43,11 @@ public class Bitswap extends StrictProtocolBinding<BitswapController> implements
         this.addrs = addrs;
     }
 
+    @Override
+    public void setHost(Host us) {
+        this.us = us;
+    }
+
     public CompletableFuture<HashedBlock> get(Want hash,
                                               Host us,
                                               Set<PeerId> peers,
@@ -45,49 +61,61 @@ public class Bitswap extends StrictProtocolBinding<BitswapController> implements
                                                     boolean addToBlockstore) {
         if (wants.isEmpty())
             return Collections.emptyList();
+        this.us = us;
         List<CompletableFuture<HashedBlock>> results = new ArrayList<>();
+        List<Want> toSend = new ArrayList<>();
         for (Want w : wants) {
             if (w.cid.getType() == Multihash.Type.id)
                 continue;
             CompletableFuture<HashedBlock> res = engine.getWant(w, addToBlockstore);
             results.add(res);
+            toSend.add(w);
         }
-        sendWants(us, peers);
-        ForkJoinPool.commonPool().execute(() -> {
-            while (engine.hasWants()) {
-                try {Thread.sleep(5_000);} catch (InterruptedException e) {}
-                sendWants(us, peers);
-            }
-        });
+        this.wants.addWants(toSend, peers);
+        recordTimeToFirstBlock(engine.getStats(), results);
         return results;
     }
 
-    public void sendWants(Host us, Set<PeerId> peers) {
-        Set<Want> wants = engine.getWants();
-        LOG.info("Broadcast wants: " + wants.size());
-        Map<Want, PeerId> haves = engine.getHaves();
-        List<MessageOuterClass.Message.Wantlist.Entry> wantsProto = wants.stream()
-                .map(want -> MessageOuterClass.Message.Wantlist.Entry.newBuilder()
-                        .setWantType(haves.containsKey(want) ?
-                                MessageOuterClass.Message.Wantlist.WantType.Block :
-                                MessageOuterClass.Message.Wantlist.WantType.Have)
-                        .setBlock(ByteString.copyFrom(want.cid.toBytes()))
-                        .setAuth(ByteString.copyFrom(want.auth.orElse("").getBytes()))
-                        .build())
-                .collect(Collectors.toList());
-        // broadcast to all connected peers if none are supplied
-        Set<PeerId> connected = peers.isEmpty() ? engine.getConnected() : peers;
-        engine.buildAndSendMessages(wantsProto, Collections.emptyList(), Collections.emptyList(),
-                msg -> connected.forEach(peer -> dialPeer(us, peer, c -> {
-                    c.send(msg);
-                })));
+    static void recordTimeToFirstBlock(BitswapStats stats, List<CompletableFuture<HashedBlock>> results) {
+        if (results.isEmpty())
+            return;
+        long start = System.currentTimeMillis();
+        CompletableFuture.anyOf(results.toArray(new CompletableFuture[0]))
+                .thenRun(() -> stats.timeToFirstBlock.record(System.currentTimeMillis() - start));
+    }
+
+    public BitswapStats getStats() {
+        return engine.getStats();
+    }
+
+    public Collection<BitswapLedger> getLedgers() {
+        return engine.getLedgers();
+    }
+
+    /** Start a session for fetching related blocks, e.g. a DAG, from a small set of ranked peers
+     *
+     * @param providers used to find more peers when none of the session's peers have a block
+     */
+    public BitswapSession newSession(Host us, ProviderFinder providers) {
+        this.us = us;
+        return new BitswapSession(engine, wants, addrs, providers, sessionTimers, providerSearches);
+    }
+
+    private CompletableFuture<BitswapController> dialController(PeerId peer) {
+        return addrs.get(peer)
+                .thenCompose(known -> {
+                    if (known.isEmpty())
+                        throw new IllegalStateException("No addresses known for peer " + peer);
+                    return dial(us, peer, known.toArray(new Multiaddr[0])).getController();
+                });
     }
 
-    private void dialPeer(Host us, PeerId peer, Consumer<BitswapController> action) {
-        Multiaddr[] addr = addrs.get(peer).join().toArray(new Multiaddr[0]);
-        if (addr.length == 0)
-            throw new IllegalStateException("No addresses known for peer " + peer);
-        BitswapController controller = dial(us, peer, addr).getController().join();
-        action.accept(controller);
+    private CompletableFuture<Void> send(PeerId peer, MessageOuterClass.Message msg) {
+        return controllers.get(peer)
+                .thenAccept(controller -> controller.send(msg))
+                .exceptionally(t -> {
+                    LOG.log(Level.FINE, "Couldn't send to " + peer, t);
+                    return null;
+                });
     }
 }
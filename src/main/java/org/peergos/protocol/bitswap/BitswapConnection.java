@@ -23,4 +23,9 @@ public class BitswapConnection implements BitswapController {
     public CompletableFuture<Unit> close() {
         return conn.close();
     }
+
+    @Override
+    public CompletableFuture<Unit> closeFuture() {
+        return conn.closeFuture();
+    }
 }
@@ -10,4 +10,6 @@ public interface BitswapController {
     void send(MessageOuterClass.Message msg);
 
     CompletableFuture<Unit> close();
+
+    CompletableFuture<Unit> closeFuture();
 }
@@ -9,47 +9,200 @@ import io.libp2p.core.multiformats.*;
 import org.peergos.*;
 import org.peergos.blockstore.*;
 import org.peergos.protocol.bitswap.pb.*;
+import org.peergos.util.*;
 
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.logging.*;
+import java.util.stream.*;
 
 public class BitswapEngine {
     private static final Logger LOG = Logger.getLogger(BitswapEngine.class.getName());
+    public static final int DEFAULT_LOOKUP_THREADS = 16;
+    public static final int DEFAULT_MAX_CONCURRENT_LOOKUPS = 32;
+    public static final int RECENTLY_RECEIVED_CAPACITY = 10_000;
 
     private final Blockstore store;
-    private final ConcurrentHashMap<Want, CompletableFuture<HashedBlock>> localWants = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Want, LocalWant> localWants = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<Want, Boolean> persistBlocks = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<Want, PeerId> blockHaves = new ConcurrentHashMap<>();
-    private final Set<PeerId> connections = new HashSet<>();
+    private final ConcurrentHashMap<Want, Long> wantedAt = new ConcurrentHashMap<>();
+    // wants we have recently received the block for, to recognise the copies other peers send later
+    private final Map<Want, Boolean> recentlyReceived;
+    // how many of localWants and recentlyReceived share each cid prefix and auth, so a block that can't match any of
+    // them is dropped without hashing it
+    private final ConcurrentHashMap<WantPrefix, Integer> prefixCounts = new ConcurrentHashMap<>();
+    // the number of open streams to each peer
+    private final Map<PeerId, Integer> connections = new HashMap<>();
     private final BlockRequestAuthoriser authoriser;
+    private final Executor lookupExecutor;
+    private final int maxConcurrentLookups;
+    private final ConcurrentHashMap<PeerId, BitswapLedger> ledgers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<PeerId, PeerLookups> lookups = new ConcurrentHashMap<>();
+    private final PeerTaskQueue sendQueue;
+    private final List<WantListener> listeners = new CopyOnWriteArrayList<>();
+    private final BitswapStats stats = new BitswapStats();
     private AddressBook addressBook;
 
     public BitswapEngine(Blockstore store, BlockRequestAuthoriser authoriser) {
+        this(store, authoriser,
+                Executors.newFixedThreadPool(DEFAULT_LOOKUP_THREADS, Threads.daemon("Bitswap lookup")),
+                DEFAULT_MAX_CONCURRENT_LOOKUPS,
+                PeerTaskQueue.DEFAULT_BYTES_PER_WINDOW,
+                PeerTaskQueue.DEFAULT_WINDOW_MILLIS);
+    }
+
+    /**
+     *
+     * @param lookupExecutor where blockstore and authoriser lookups for incoming wants are run, never the stream thread
+     * @param maxConcurrentLookups maximum number of wants from a single peer being looked up at once
+     * @param peerBytesPerWindow maximum number of block bytes sent to any one peer per window
+     * @param windowMillis length of the per peer budget window
+     */
+    public BitswapEngine(Blockstore store,
+                         BlockRequestAuthoriser authoriser,
+                         Executor lookupExecutor,
+                         int maxConcurrentLookups,
+                         long peerBytesPerWindow,
+                         long windowMillis) {
+        if (maxConcurrentLookups < 1)
+            throw new IllegalArgumentException("maxConcurrentLookups must be positive");
         this.store = store;
         this.authoriser = authoriser;
+        this.lookupExecutor = lookupExecutor;
+        this.maxConcurrentLookups = maxConcurrentLookups;
+        this.sendQueue = new PeerTaskQueue(peerBytesPerWindow, windowMillis, this::getLedger, stats, this::resumeLookups);
+        this.recentlyReceived = Collections.synchronizedMap(new LinkedHashMap<Want, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Want, Boolean> eldest) {
+                if (size() <= RECENTLY_RECEIVED_CAPACITY)
+                    return false;
+                prefixRemoved(eldest.getKey());
+                return true;
+            }
+        });
+    }
+
+    /** A want of ours, shared by everyone who has asked for it
+     *
+     */
+    private static class LocalWant {
+        final CompletableFuture<HashedBlock> future = new CompletableFuture<>();
+        // only changed inside localWants.compute, so under the map's lock for the want
+        int requesters;
+    }
+
+    private static class WantPrefix {
+        private final long version;
+        private final Cid.Codec codec;
+        private final Multihash.Type type;
+        private final Optional<String> auth;
+
+        WantPrefix(long version, Cid.Codec codec, Multihash.Type type, Optional<String> auth) {
+            this.version = version;
+            this.codec = codec;
+            this.type = type;
+            this.auth = auth;
+        }
+
+        WantPrefix(Want w) {
+            this(w.cid.version, w.cid.codec, w.cid.getType(), w.auth);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            WantPrefix that = (WantPrefix) o;
+            return version == that.version && codec == that.codec && type == that.type && auth.equals(that.auth);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(version, codec, type, auth);
+        }
+    }
+
+    private void prefixAdded(Want w) {
+        prefixCounts.merge(new WantPrefix(w), 1, Integer::sum);
+    }
+
+    private void prefixRemoved(Want w) {
+        prefixCounts.computeIfPresent(new WantPrefix(w), (p, n) -> n > 1 ? n - 1 : null);
+    }
+
+    private void received(Want w) {
+        // a want received again is already counted in the prefixes from the first time
+        if (recentlyReceived.put(w, true) != null)
+            prefixRemoved(w);
     }
 
     public void setAddressBook(AddressBook addrs) {
         this.addressBook = addrs;
     }
 
-    public synchronized void addConnection(PeerId peer, Multiaddr addr) {
-        connections.add(peer);
+    public void addConnection(PeerId peer, Multiaddr addr) {
+        synchronized (connections) {
+            connections.merge(peer, 1, Integer::sum);
+        }
         addressBook.addAddrs(peer, 0, addr);
     }
 
+    /** Called when a stream to peer closes. Once the last one has gone, everything we hold for the peer is dropped.
+     *
+     */
+    public void removeConnection(PeerId peer) {
+        synchronized (connections) {
+            Integer remaining = connections.computeIfPresent(peer, (p, n) -> n > 1 ? n - 1 : null);
+            if (remaining != null)
+                return;
+        }
+        PeerLookups pending = lookups.remove(peer);
+        if (pending != null)
+            pending.clear();
+        sendQueue.removePeer(peer);
+        ledgers.remove(peer);
+    }
+
+    /** Start waiting for w, or join whoever is already waiting for it. Each call is a reference to the want, which
+     *  stays outstanding until its block arrives or every reference has been released.
+     */
     public CompletableFuture<HashedBlock> getWant(Want w, boolean addToBlockstore) {
-        CompletableFuture<HashedBlock> existing = localWants.get(w);
-        if (existing != null)
-            return existing;
-        CompletableFuture<HashedBlock> res = new CompletableFuture<>();
+        LocalWant fresh = new LocalWant();
+        LocalWant want = localWants.compute(w, (k, existing) -> {
+            LocalWant res = existing == null ? fresh : existing;
+            res.requesters++;
+            return res;
+        });
+        if (want != fresh)
+            return want.future;
         if (addToBlockstore)
             persistBlocks.put(w, true);
-        localWants.put(w, res);
-        return res;
+        wantedAt.put(w, System.currentTimeMillis());
+        prefixAdded(w);
+        return want.future;
+    }
+
+    /** Release one reference to w from getWant. When the last one is released we stop waiting for w, and its future
+     *  fails with a CancellationException.
+     *
+     * @return whether w is no longer wanted by anyone
+     */
+    public boolean releaseWant(Want w) {
+        LocalWant want = localWants.get(w);
+        if (want == null)
+            return false;
+        LocalWant left = localWants.computeIfPresent(w,
+                (k, existing) -> existing == want && --existing.requesters == 0 ? null : existing);
+        // if the block arrived in the meantime we never decremented, and it has already been removed
+        if (left != null || want.requesters > 0)
+            return false;
+        wantedAt.remove(w);
+        persistBlocks.remove(w);
+        prefixRemoved(w);
+        want.future.cancel(false);
+        return true;
     }
 
     public boolean hasWants() {
@@ -59,7 +212,7 @@ public class BitswapEngine {
     public Set<PeerId> getConnected() {
         Set<PeerId> connected = new HashSet<>();
         synchronized (connections) {
-            connected.addAll(connections);
+            connected.addAll(connections.keySet());
         }
         return connected;
     }
@@ -68,11 +221,31 @@ public class BitswapEngine {
         return localWants.keySet();
     }
 
-    public Map<Want, PeerId> getHaves() {
-        return blockHaves;
+    public boolean isWanted(Want w) {
+        return localWants.containsKey(w);
+    }
+
+    public void addListener(WantListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(WantListener listener) {
+        listeners.remove(listener);
     }
 
-    private static byte[] prefixBytes(Cid c) {
+    public BitswapStats getStats() {
+        return stats;
+    }
+
+    public BitswapLedger getLedger(PeerId peer) {
+        return ledgers.computeIfAbsent(peer, BitswapLedger::new);
+    }
+
+    public Collection<BitswapLedger> getLedgers() {
+        return ledgers.values();
+    }
+
+    static byte[] prefixBytes(Cid c) {
         ByteArrayOutputStream res = new ByteArrayOutputStream();
         try {
             Cid.putUvarint(res, c.version);
@@ -85,76 +258,47 @@ public class BitswapEngine {
         }
     }
 
-    public void receiveMessage(MessageOuterClass.Message msg, Stream source) {
+    private boolean isWantedPrefix(long version, Cid.Codec codec, Multihash.Type type, Optional<String> auth) {
+        return prefixCounts.containsKey(new WantPrefix(version, codec, type, auth));
+    }
 
-        List<MessageOuterClass.Message.BlockPresence> presences = new ArrayList<>();
-        List<MessageOuterClass.Message.Block> blocks = new ArrayList<>();
-        List<MessageOuterClass.Message.Wantlist.Entry> wants = new ArrayList<>();
+    private void unsolicitedBlock(BitswapLedger ledger) {
+        ledger.unsolicitedBlockReceived();
+        stats.unsolicitedBlocksReceived.increment();
+    }
 
-        int messageSize = 0;
-        Multihash peerM = Multihash.deserialize(source.remotePeerId().getBytes());
+    public void receiveMessage(MessageOuterClass.Message msg, Stream source) {
+        receiveMessage(msg, source.remotePeerId(), source::writeAndFlush);
+    }
+
+    /**
+     *
+     * @param replies where responses to the message's wantlist are sent
+     */
+    void receiveMessage(MessageOuterClass.Message msg, PeerId peer, Consumer<MessageOuterClass.Message> replies) {
+        Multihash peerM = Multihash.deserialize(peer.getBytes());
         Cid sourcePeerId = new Cid(1, Cid.Codec.Libp2pKey, peerM.getType(), peerM.getHash());
-        if (msg.hasWantlist()) {
+        BitswapLedger ledger = getLedger(peer);
+        if (msg.hasWantlist() && msg.getWantlist().getEntriesCount() > 0) {
             for (MessageOuterClass.Message.Wantlist.Entry e : msg.getWantlist().getEntriesList()) {
-                Cid c = Cid.cast(e.getBlock().toByteArray());
-                Optional<String> auth = e.getAuth().isEmpty() ? Optional.empty() : Optional.of(e.getAuth().toStringUtf8());
-                boolean isCancel = e.getCancel();
-                boolean sendDontHave = e.getSendDontHave();
-                boolean wantBlock = e.getWantType().getNumber() == 0;
-                if (wantBlock) {
-                    Optional<byte[]> block = store.get(c).join();
-                    if (block.isPresent() && authoriser.allowRead(c, block.get(), sourcePeerId, auth.orElse("")).join()) {
-                        MessageOuterClass.Message.Block blockP = MessageOuterClass.Message.Block.newBuilder()
-                                .setPrefix(ByteString.copyFrom(prefixBytes(c)))
-                                .setData(ByteString.copyFrom(block.get()))
-                                .build();
-                        int blockSize = blockP.getSerializedSize();
-                        if (blockSize + messageSize > Bitswap.MAX_MESSAGE_SIZE) {
-                            buildAndSendMessages(wants, presences, blocks, source::writeAndFlush);
-                            wants = new ArrayList<>();
-                            presences = new ArrayList<>();
-                            blocks = new ArrayList<>();
-                            messageSize = 0;
-                        }
-                        messageSize += blockSize;
-                        blocks.add(blockP);
-                    } else if (sendDontHave) {
-                        MessageOuterClass.Message.BlockPresence presence = MessageOuterClass.Message.BlockPresence.newBuilder()
-                                .setCid(ByteString.copyFrom(c.toBytes()))
-                                .setType(MessageOuterClass.Message.BlockPresenceType.DontHave)
-                                .build();
-                        presences.add(presence);
-                        messageSize += presence.getSerializedSize();
-                    }
-                } else {
-                    boolean hasBlock = store.has(c).join();
-                    if (hasBlock) {
-                        MessageOuterClass.Message.BlockPresence presence = MessageOuterClass.Message.BlockPresence.newBuilder()
-                                .setCid(ByteString.copyFrom(c.toBytes()))
-                                .setType(MessageOuterClass.Message.BlockPresenceType.Have)
-                                .build();
-                        presences.add(presence);
-                        messageSize += presence.getSerializedSize();
-                    } else if (sendDontHave) {
-                        MessageOuterClass.Message.BlockPresence presence = MessageOuterClass.Message.BlockPresence.newBuilder()
-                                .setCid(ByteString.copyFrom(c.toBytes()))
-                                .setType(MessageOuterClass.Message.BlockPresenceType.DontHave)
-                                .build();
-                        presences.add(presence);
-                        messageSize += presence.getSerializedSize();
-                    }
-                }
+                if (e.getCancel())
+                    stats.cancelsReceived.increment();
+                else
+                    stats.wantsReceived.increment();
             }
+            PeerLookups peerLookups = lookups.computeIfAbsent(peer, p -> new PeerLookups(p, sourcePeerId));
+            peerLookups.add(msg.getWantlist().getEntriesList(), replies);
+            peerLookups.pump();
         }
 
-        LOG.info("Bitswap received " + msg.getWantlist().getEntriesCount() + " wants, " + msg.getPayloadCount() +
-                " blocks and " + msg.getBlockPresencesCount() + " presences from " + sourcePeerId);
         for (MessageOuterClass.Message.Block block : msg.getPayloadList()) {
             byte[] cidPrefix = block.getPrefix().toByteArray();
             Optional<String> auth = block.getAuth().isEmpty() ?
                     Optional.empty() :
                     Optional.of(block.getAuth().toStringUtf8());
-            byte[] data = block.getData().toByteArray();
+            ledger.blockReceived(block.getData().size());
+            stats.blocksReceived.increment();
+            stats.bytesReceived.add(block.getData().size());
             ByteArrayInputStream bin = new ByteArrayInputStream(cidPrefix);
             try {
                 long version = Cid.readVarint(bin);
@@ -163,47 +307,214 @@ public class BitswapEngine {
 //                int hashSize = (int)Cid.readVarint(bin);
                 if (type != Multihash.Type.sha2_256) {
                     Logger.getGlobal().info("Unsupported hash algorithm " + type.name());
+                } else if (! isWantedPrefix(version, codec, type, auth)) {
+                    // nothing outstanding or recently received could match, so don't bother hashing it
+                    unsolicitedBlock(ledger);
                 } else {
-                    byte[] hash = Hash.sha256(data);
+                    byte[] hash = Hash.sha256(block.getData().asReadOnlyByteBuffer());
                     Cid c = new Cid(version, codec, type, hash);
                     Want w = new Want(c, auth);
-                    CompletableFuture<HashedBlock> waiter = localWants.get(w);
+                    // only the first copy to arrive removes the want
+                    LocalWant waiter = localWants.remove(w);
                     if (waiter != null) {
-                        if (persistBlocks.containsKey(w)) {
-                            store.put(data, codec);
-                            persistBlocks.remove(w);
+                        Long start = wantedAt.remove(w);
+                        if (start != null) {
+                            long latency = System.currentTimeMillis() - start;
+                            stats.wantLatency.record(latency);
+                            ledger.wantLatency.record(latency);
                         }
-                        waiter.complete(new HashedBlock(c, data));
-                        localWants.remove(w);
-                    } else
-                        LOG.info("Received block we don't want: " + c);
+                        // only copy out of the message once we know we want it
+                        byte[] data = block.getData().toByteArray();
+                        if (persistBlocks.remove(w) != null)
+                            store.put(data, codec);
+                        received(w);
+                        for (WantListener listener : listeners)
+                            listener.receivedBlock(peer, w);
+                        waiter.future.complete(new HashedBlock(c, data));
+                    } else if (recentlyReceived.containsKey(w)) {
+                        ledger.duplicateBlockReceived();
+                        stats.duplicateBlocksReceived.increment();
+                    } else {
+                        unsolicitedBlock(ledger);
+                        LOG.fine("Received block we don't want: " + c);
+                    }
                 }
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
-        if (! localWants.isEmpty())
-            LOG.info("Remaining: " + localWants.size());
         for (MessageOuterClass.Message.BlockPresence blockPresence : msg.getBlockPresencesList()) {
+            stats.presencesReceived.increment();
             Cid c = Cid.cast(blockPresence.getCid().toByteArray());
             Optional<String> auth = blockPresence.getAuth().isEmpty() ? Optional.empty() : Optional.of(blockPresence.getAuth().toStringUtf8());
             Want w = new Want(c, auth);
             boolean have = blockPresence.getType().getNumber() == 0;
-            if (have && localWants.containsKey(w)) {
-                blockHaves.put(w, source.remotePeerId());
+            if (! localWants.containsKey(w))
+                continue;
+            for (WantListener listener : listeners) {
+                if (have)
+                    listener.receivedHave(peer, w);
+                else
+                    listener.receivedDontHave(peer, w);
             }
         }
+    }
+
+    private static MessageOuterClass.Message.BlockPresence buildPresence(Cid c,
+                                                                         MessageOuterClass.Message.BlockPresenceType type) {
+        return MessageOuterClass.Message.BlockPresence.newBuilder()
+                .setCid(ByteString.copyFrom(c.toBytes()))
+                .setType(type)
+                .build();
+    }
 
-        if (presences.isEmpty() && blocks.isEmpty() && wants.isEmpty())
-            return;
+    private CompletableFuture<Void> serveWant(MessageOuterClass.Message.Wantlist.Entry e,
+                                              Cid sourcePeerId,
+                                              PeerLookups out) {
+        Cid c = Cid.cast(e.getBlock().toByteArray());
+        Optional<String> auth = e.getAuth().isEmpty() ? Optional.empty() : Optional.of(e.getAuth().toStringUtf8());
+        boolean sendDontHave = e.getSendDontHave();
+        boolean wantBlock = e.getWantType().getNumber() == 0;
+        if (wantBlock) {
+            return store.get(c)
+                    .thenCompose(block -> block.isEmpty() ?
+                            CompletableFuture.completedFuture(Optional.<byte[]>empty()) :
+                            authoriser.allowRead(c, block.get(), sourcePeerId, auth.orElse(""))
+                                    .thenApply(allowed -> allowed ? block : Optional.<byte[]>empty()))
+                    .thenAccept(block -> {
+                        if (block.isPresent()) {
+                            out.addBlock(c, MessageOuterClass.Message.Block.newBuilder()
+                                    .setPrefix(ByteString.copyFrom(prefixBytes(c)))
+                                    // the block array is never modified after this, so protobuf can share it
+                                    .setData(UnsafeByteOperations.unsafeWrap(block.get()))
+                                    .build());
+                        } else if (sendDontHave)
+                            out.addPresence(c, buildPresence(c, MessageOuterClass.Message.BlockPresenceType.DontHave));
+                    });
+        }
+        return store.has(c).thenAccept(hasBlock -> {
+            if (hasBlock)
+                out.addPresence(c, buildPresence(c, MessageOuterClass.Message.BlockPresenceType.Have));
+            else if (sendDontHave)
+                out.addPresence(c, buildPresence(c, MessageOuterClass.Message.BlockPresenceType.DontHave));
+        });
+    }
+
+    private void resumeLookups(PeerId peer) {
+        PeerLookups pending = lookups.get(peer);
+        if (pending != null)
+            pending.pump();
+    }
+
+    /** Serves the wants of one peer with at most maxConcurrentLookups outstanding at a time.
+     *
+     *  A lookup is only started while less than a window's budget of blocks is queued for the peer, so the wantlist
+     *  of a greedy peer waits here as entries, rather than on the heap as blocks. Results are handed to the send queue
+     *  as soon as they resolve, which schedules them fairly with other peers.
+     */
+    private class PeerLookups {
+        private final PeerId peer;
+        private final Cid sourcePeerId;
+        private final BitswapLedger ledger;
+        // all guarded by this
+        private final LinkedHashMap<Cid, MessageOuterClass.Message.Wantlist.Entry> waiting = new LinkedHashMap<>();
+        private final Set<Cid> inFlight = new HashSet<>();
+        private Consumer<MessageOuterClass.Message> sender;
+
+        PeerLookups(PeerId peer, Cid sourcePeerId) {
+            this.peer = peer;
+            this.sourcePeerId = sourcePeerId;
+            this.ledger = getLedger(peer);
+        }
 
-        buildAndSendMessages(wants, presences, blocks, source::writeAndFlush);
+        synchronized void add(List<MessageOuterClass.Message.Wantlist.Entry> entries,
+                              Consumer<MessageOuterClass.Message> sender) {
+            this.sender = sender;
+            int added = 0;
+            for (MessageOuterClass.Message.Wantlist.Entry e : entries) {
+                Cid c = Cid.cast(e.getBlock().toByteArray());
+                if (e.getCancel()) {
+                    cancel(c);
+                    continue;
+                }
+                if (inFlight.contains(c))
+                    continue;
+                if (waiting.put(c, e) == null)
+                    added++;
+            }
+            ledger.lookupsPending(added);
+        }
+
+        private synchronized void cancel(Cid c) {
+            int dropped = 0;
+            if (waiting.remove(c) != null)
+                dropped++;
+            // the result of a lookup in flight is discarded when it finishes
+            if (inFlight.remove(c))
+                dropped++;
+            ledger.lookupsPending(-dropped);
+            sendQueue.cancel(peer, c);
+        }
+
+        synchronized void clear() {
+            ledger.lookupsPending(-(waiting.size() + inFlight.size()));
+            waiting.clear();
+            inFlight.clear();
+        }
+
+        /** Start as many waiting lookups as the concurrency limit and the peer's queued bytes allow
+         *
+         */
+        void pump() {
+            while (true) {
+                MessageOuterClass.Message.Wantlist.Entry next;
+                synchronized (this) {
+                    if (waiting.isEmpty() || inFlight.size() >= maxConcurrentLookups || ! sendQueue.hasCapacity(peer))
+                        return;
+                    Iterator<MessageOuterClass.Message.Wantlist.Entry> it = waiting.values().iterator();
+                    next = it.next();
+                    it.remove();
+                    inFlight.add(Cid.cast(next.getBlock().toByteArray()));
+                }
+                lookupExecutor.execute(() -> lookup(next));
+            }
+        }
+
+        private void lookup(MessageOuterClass.Message.Wantlist.Entry e) {
+            Cid c = Cid.cast(e.getBlock().toByteArray());
+            CompletableFuture<Void> served;
+            try {
+                served = serveWant(e, sourcePeerId, this);
+            } catch (Exception ex) {
+                served = CompletableFuture.failedFuture(ex);
+            }
+            served.exceptionally(t -> {
+                LOG.log(Level.WARNING, t.getMessage(), t);
+                return null;
+            }).thenRunAsync(() -> {
+                synchronized (this) {
+                    if (inFlight.remove(c))
+                        ledger.lookupsPending(-1);
+                }
+                pump();
+            }, lookupExecutor);
+        }
+
+        synchronized void addPresence(Cid c, MessageOuterClass.Message.BlockPresence presence) {
+            if (inFlight.contains(c))
+                sendQueue.addPresence(peer, c, presence, sender);
+        }
+
+        synchronized void addBlock(Cid c, MessageOuterClass.Message.Block block) {
+            if (inFlight.contains(c))
+                sendQueue.addBlock(peer, c, block, sender);
+        }
     }
 
-    public void buildAndSendMessages(List<MessageOuterClass.Message.Wantlist.Entry> wants,
-                                     List<MessageOuterClass.Message.BlockPresence> presences,
-                                     List<MessageOuterClass.Message.Block> blocks,
-                                     Consumer<MessageOuterClass.Message> sender) {
+    public static void buildAndSendMessages(List<MessageOuterClass.Message.Wantlist.Entry> wants,
+                                            List<MessageOuterClass.Message.BlockPresence> presences,
+                                            List<MessageOuterClass.Message.Block> blocks,
+                                            Consumer<MessageOuterClass.Message> sender) {
         // make sure we stay within the message size limit
         MessageOuterClass.Message.Builder builder = MessageOuterClass.Message.newBuilder();
         int messageSize = 0;
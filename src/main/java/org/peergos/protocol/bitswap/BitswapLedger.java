@@ -0,0 +1,112 @@
+package org.peergos.protocol.bitswap;
+
+import io.libp2p.core.*;
+import org.peergos.util.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/** Accounting of what we have exchanged with a single peer
+ *
+ */
+public class BitswapLedger {
+    public final PeerId peer;
+    private final AtomicLong bytesSent = new AtomicLong(0);
+    private final AtomicLong bytesReceived = new AtomicLong(0);
+    private final AtomicLong blocksSent = new AtomicLong(0);
+    private final AtomicLong blocksReceived = new AtomicLong(0);
+    private final AtomicLong duplicateBlocksReceived = new AtomicLong(0);
+    private final AtomicLong unsolicitedBlocksReceived = new AtomicLong(0);
+    private final AtomicInteger pendingLookups = new AtomicInteger(0);
+    private final AtomicInteger queuedTasks = new AtomicInteger(0);
+    // time from wanting a block to this peer sending it to us
+    public final Histogram wantLatency = Histogram.millis();
+
+    public BitswapLedger(PeerId peer) {
+        this.peer = peer;
+    }
+
+    public void blockSent(int size) {
+        blocksSent.incrementAndGet();
+        bytesSent.addAndGet(size);
+    }
+
+    public void blockReceived(int size) {
+        blocksReceived.incrementAndGet();
+        bytesReceived.addAndGet(size);
+    }
+
+    /** Record a received block that we had already received, usually from another peer that sent it first
+     *
+     */
+    public void duplicateBlockReceived() {
+        duplicateBlocksReceived.incrementAndGet();
+    }
+
+    /** Record a received block that we never asked for, or have long since stopped wanting
+     *
+     */
+    public void unsolicitedBlockReceived() {
+        unsolicitedBlocksReceived.incrementAndGet();
+    }
+
+    void lookupsPending(int delta) {
+        pendingLookups.addAndGet(delta);
+    }
+
+    void tasksQueued(int delta) {
+        queuedTasks.addAndGet(delta);
+    }
+
+    public long bytesSent() {
+        return bytesSent.get();
+    }
+
+    public long bytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long blocksSent() {
+        return blocksSent.get();
+    }
+
+    public long blocksReceived() {
+        return blocksReceived.get();
+    }
+
+    public long duplicateBlocksReceived() {
+        return duplicateBlocksReceived.get();
+    }
+
+    public long unsolicitedBlocksReceived() {
+        return unsolicitedBlocksReceived.get();
+    }
+
+    /**
+     *
+     * @return the number of wants from this peer that are waiting to be looked up, being looked up or waiting to be sent
+     */
+    public int wantsOutstanding() {
+        return pendingLookups.get() + queuedTasks.get();
+    }
+
+    public Map<String, Object> toJson() {
+        Map<String, Object> res = new LinkedHashMap<>();
+        res.put("Peer", peer.toBase58());
+        res.put("BytesSent", bytesSent());
+        res.put("BlocksSent", blocksSent());
+        res.put("BytesReceived", bytesReceived());
+        res.put("BlocksReceived", blocksReceived());
+        res.put("DuplicateBlocksReceived", duplicateBlocksReceived());
+        res.put("UnsolicitedBlocksReceived", unsolicitedBlocksReceived());
+        res.put("WantsOutstanding", wantsOutstanding());
+        res.put("WantLatencyMillis", wantLatency.toJson());
+        return res;
+    }
+
+    @Override
+    public String toString() {
+        return peer + " sent: " + bytesSent() + ", received: " + bytesReceived() +
+                ", duplicate blocks: " + duplicateBlocksReceived() + ", outstanding: " + wantsOutstanding();
+    }
+}
@@ -20,7 +20,9 @@ public class BitswapProtocol extends ProtobufProtocolHandler<BitswapController>
     @Override
     protected CompletableFuture<BitswapController> onStartInitiator(@NotNull Stream stream) {
         BitswapConnection conn = new BitswapConnection(stream);
-        engine.addConnection(stream.remotePeerId(), stream.getConnection().remoteAddress());
+        PeerId peer = stream.remotePeerId();
+        engine.addConnection(peer, stream.getConnection().remoteAddress());
+        stream.closeFuture().thenRun(() -> engine.removeConnection(peer));
         stream.pushHandler(new MessageHandler(engine));
         return CompletableFuture.completedFuture(conn);
     }
@@ -29,7 +31,9 @@ public class BitswapProtocol extends ProtobufProtocolHandler<BitswapController>
     @Override
     protected CompletableFuture<BitswapController> onStartResponder(@NotNull Stream stream) {
         BitswapConnection conn = new BitswapConnection(stream);
-        engine.addConnection(stream.remotePeerId(), stream.getConnection().remoteAddress());
+        PeerId peer = stream.remotePeerId();
+        engine.addConnection(peer, stream.getConnection().remoteAddress());
+        stream.closeFuture().thenRun(() -> engine.removeConnection(peer));
         stream.pushHandler(new MessageHandler(engine));
         return CompletableFuture.completedFuture(conn);
     }
@@ -0,0 +1,332 @@
+package org.peergos.protocol.bitswap;
+
+import io.ipfs.multihash.Multihash;
+import io.libp2p.core.*;
+import io.libp2p.core.multiformats.*;
+import org.peergos.*;
+import org.peergos.protocol.bitswap.pb.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** A session fetches related blocks, typically those of a single DAG, from a small set of peers.
+ *
+ *  New wants are sent as want-haves to a few peers, and as want-blocks to the best peers that have already served this
+ *  session. A want-block is only sent to the first WANT_BLOCK_PEERS peers that report having a block. If nobody has a
+ *  block the DHT is asked for providers. Peers are ranked by how often they have what we ask for and how quickly they
+ *  send it.
+ */
+public class BitswapSession implements WantListener, AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(BitswapSession.class.getName());
+    public static final int INITIAL_PEERS = 8;
+    public static final int WANT_BLOCK_PEERS = 2;
+    public static final long PROVIDER_SEARCH_DELAY_MILLIS = 1_000;
+    public static final long PROVIDER_SEARCH_RETRY_MILLIS = 10_000;
+    private static final double DEFAULT_LATENCY_MILLIS = 500;
+    private static final double LATENCY_SMOOTHING = 0.3;
+
+    private final BitswapEngine engine;
+    private final WantManager wantManager;
+    private final AddressBook addrs;
+    private final ProviderFinder providers;
+    private final ScheduledExecutorService timers;
+    private final Executor searches;
+    // all guarded by this
+    private final Map<PeerId, PeerStats> peers = new HashMap<>();
+    private final Map<Want, WantState> pending = new HashMap<>();
+    private boolean closed = false;
+
+    public BitswapSession(BitswapEngine engine,
+                          WantManager wantManager,
+                          AddressBook addrs,
+                          ProviderFinder providers,
+                          ScheduledExecutorService timers,
+                          Executor searches) {
+        this.engine = engine;
+        this.wantManager = wantManager;
+        this.addrs = addrs;
+        this.providers = providers;
+        this.timers = timers;
+        this.searches = searches;
+        engine.addListener(this);
+    }
+
+    private static class PeerStats {
+        double latencyMillis = -1;
+        int hits, misses;
+
+        void blockReceived(OptionalLong latency) {
+            hits++;
+            if (latency.isEmpty())
+                return;
+            latencyMillis = latencyMillis < 0 ?
+                    latency.getAsLong() :
+                    LATENCY_SMOOTHING * latency.getAsLong() + (1 - LATENCY_SMOOTHING) * latencyMillis;
+        }
+
+        double score() {
+            // smoothed so new peers start at an even chance
+            double hitRate = (hits + 1.0) / (hits + misses + 2.0);
+            double latency = latencyMillis < 0 ? DEFAULT_LATENCY_MILLIS : Math.max(1, latencyMillis);
+            return hitRate / latency;
+        }
+    }
+
+    private static class WantState {
+        final Set<PeerId> askedHave = new HashSet<>();
+        final Set<PeerId> haves = new HashSet<>();
+        final Set<PeerId> dontHaves = new HashSet<>();
+        final Map<PeerId, Long> askedBlock = new HashMap<>();
+        // what this session has handed out, each holding a reference to the engine's want
+        final List<CompletableFuture<HashedBlock>> futures = new ArrayList<>();
+        boolean searchingProviders = false;
+
+        boolean nobodyHasIt() {
+            if (! haves.isEmpty())
+                return false;
+            return dontHaves.containsAll(askedHave) && dontHaves.containsAll(askedBlock.keySet());
+        }
+    }
+
+    public CompletableFuture<HashedBlock> get(Want w, boolean addToBlockstore) {
+        return get(List.of(w), addToBlockstore).get(0);
+    }
+
+    public List<CompletableFuture<HashedBlock>> get(List<Want> wants, boolean addToBlockstore) {
+        List<CompletableFuture<HashedBlock>> results = new ArrayList<>();
+        List<CompletableFuture<HashedBlock>> shared = new ArrayList<>();
+        List<Want> added = new ArrayList<>();
+        synchronized (this) {
+            if (closed)
+                throw new IllegalStateException("Session closed");
+            for (Want w : wants) {
+                if (w.cid.getType() == Multihash.Type.id) {
+                    results.add(CompletableFuture.completedFuture(new HashedBlock(w.cid, w.cid.getHash())));
+                    shared.add(results.get(results.size() - 1));
+                    continue;
+                }
+                // other sessions may be waiting for the same block, so closing this one must only cancel its own future
+                CompletableFuture<HashedBlock> want = engine.getWant(w, addToBlockstore);
+                CompletableFuture<HashedBlock> ours = new CompletableFuture<>();
+                want.whenComplete((b, t) -> {
+                    if (t != null)
+                        ours.completeExceptionally(t);
+                    else
+                        ours.complete(b);
+                });
+                results.add(ours);
+                shared.add(want);
+                WantState state = pending.get(w);
+                if (state == null) {
+                    state = new WantState();
+                    pending.put(w, state);
+                    added.add(w);
+                }
+                state.futures.add(ours);
+            }
+        }
+        for (int i = 0; i < wants.size(); i++) {
+            Want w = wants.get(i);
+            shared.get(i).whenComplete((b, t) -> done(w));
+        }
+        sendInitialWants(added);
+        Bitswap.recordTimeToFirstBlock(engine.getStats(), results);
+        for (Want w : added)
+            timers.schedule(() -> searchIfNobodyHas(w), PROVIDER_SEARCH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        return results;
+    }
+
+    private synchronized void done(Want w) {
+        pending.remove(w);
+    }
+
+    private List<PeerId> rankedPeers(Collection<PeerId> candidates) {
+        return candidates.stream()
+                .sorted(Comparator.comparingDouble((PeerId p) -> stats(p).score()).reversed())
+                .collect(Collectors.toList());
+    }
+
+    private PeerStats stats(PeerId peer) {
+        return peers.computeIfAbsent(peer, p -> new PeerStats());
+    }
+
+    private void sendInitialWants(List<Want> added) {
+        if (added.isEmpty())
+            return;
+        Set<PeerId> blockPeers, havePeers;
+        synchronized (this) {
+            List<PeerId> ranked = rankedPeers(peers.keySet());
+            blockPeers = ranked.stream()
+                    .filter(p -> peers.get(p).hits > 0)
+                    .limit(WANT_BLOCK_PEERS)
+                    .collect(Collectors.toCollection(LinkedHashSet::new));
+            havePeers = new LinkedHashSet<>(ranked);
+            if (havePeers.size() < INITIAL_PEERS) {
+                List<PeerId> connected = new ArrayList<>(engine.getConnected());
+                Collections.shuffle(connected);
+                havePeers.addAll(connected);
+            }
+            havePeers.removeAll(blockPeers);
+            havePeers = havePeers.stream()
+                    .limit(Math.max(0, INITIAL_PEERS - blockPeers.size()))
+                    .collect(Collectors.toCollection(LinkedHashSet::new));
+            long now = System.currentTimeMillis();
+            for (Want w : added) {
+                WantState state = pending.get(w);
+                state.askedHave.addAll(havePeers);
+                for (PeerId peer : blockPeers)
+                    state.askedBlock.put(peer, now);
+            }
+        }
+        if (blockPeers.isEmpty() && havePeers.isEmpty()) {
+            added.forEach(this::searchProviders);
+            return;
+        }
+        wantManager.addWants(added, blockPeers, MessageOuterClass.Message.Wantlist.WantType.Block);
+        wantManager.addWants(added, havePeers, MessageOuterClass.Message.Wantlist.WantType.Have);
+    }
+
+    /** Ask the best peer that has w, and hasn't been asked for it yet, to send it, unless enough already have been
+     *
+     */
+    private Optional<PeerId> nextBlockPeer(WantState state) {
+        if (state.askedBlock.size() >= WANT_BLOCK_PEERS)
+            return Optional.empty();
+        List<PeerId> candidates = state.haves.stream()
+                .filter(p -> ! state.askedBlock.containsKey(p) && ! state.dontHaves.contains(p))
+                .collect(Collectors.toList());
+        Optional<PeerId> best = rankedPeers(candidates).stream().findFirst();
+        best.ifPresent(p -> state.askedBlock.put(p, System.currentTimeMillis()));
+        return best;
+    }
+
+    @Override
+    public void receivedHave(PeerId peer, Want w) {
+        Optional<PeerId> next;
+        synchronized (this) {
+            WantState state = pending.get(w);
+            if (state == null)
+                return;
+            stats(peer);
+            state.haves.add(peer);
+            next = nextBlockPeer(state);
+        }
+        next.ifPresent(p -> wantManager.addWants(List.of(w), Set.of(p), MessageOuterClass.Message.Wantlist.WantType.Block));
+    }
+
+    @Override
+    public void receivedDontHave(PeerId peer, Want w) {
+        Optional<PeerId> next;
+        boolean search;
+        synchronized (this) {
+            WantState state = pending.get(w);
+            if (state == null || ! state.dontHaves.add(peer))
+                return;
+            stats(peer).misses++;
+            state.haves.remove(peer);
+            if (state.askedBlock.remove(peer) != null)
+                next = nextBlockPeer(state);
+            else
+                next = Optional.empty();
+            search = state.nobodyHasIt();
+        }
+        next.ifPresent(p -> wantManager.addWants(List.of(w), Set.of(p), MessageOuterClass.Message.Wantlist.WantType.Block));
+        if (search)
+            searchProviders(w);
+    }
+
+    @Override
+    public synchronized void receivedBlock(PeerId peer, Want w) {
+        WantState state = pending.get(w);
+        if (state == null)
+            return;
+        Long asked = state.askedBlock.get(peer);
+        stats(peer).blockReceived(asked == null ?
+                OptionalLong.empty() :
+                OptionalLong.of(System.currentTimeMillis() - asked));
+    }
+
+    private void searchIfNobodyHas(Want w) {
+        synchronized (this) {
+            WantState state = pending.get(w);
+            if (state == null || ! state.haves.isEmpty())
+                return;
+        }
+        searchProviders(w);
+    }
+
+    private void searchProviders(Want w) {
+        synchronized (this) {
+            WantState state = pending.get(w);
+            if (closed || state == null || state.searchingProviders)
+                return;
+            state.searchingProviders = true;
+        }
+        CompletableFuture.supplyAsync(() -> providers.findProviders(w.cid), searches)
+                .thenCompose(f -> f)
+                .thenAccept(found -> askProviders(w, found))
+                .exceptionally(t -> {
+                    LOG.log(Level.FINE, "Provider search failed for " + w.cid, t);
+                    return null;
+                })
+                .thenRun(() -> {
+                    synchronized (this) {
+                        WantState state = pending.get(w);
+                        if (state == null || closed)
+                            return;
+                        state.searchingProviders = false;
+                    }
+                    timers.schedule(() -> searchIfNobodyHas(w), PROVIDER_SEARCH_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                });
+    }
+
+    private void askProviders(Want w, List<PeerAddresses> found) {
+        List<PeerId> providerIds = new ArrayList<>();
+        for (PeerAddresses provider : found) {
+            PeerId id = PeerId.fromBase58(provider.peerId.toBase58());
+            Multiaddr[] multiaddrs = provider.addresses.stream()
+                    .map(a -> Multiaddr.fromString(a.toString()))
+                    .toArray(Multiaddr[]::new);
+            if (multiaddrs.length > 0)
+                addrs.addAddrs(id, 0, multiaddrs);
+            providerIds.add(id);
+        }
+        Set<PeerId> targets;
+        synchronized (this) {
+            WantState state = pending.get(w);
+            if (state == null)
+                return;
+            targets = providerIds.stream()
+                    .filter(p -> ! state.askedHave.contains(p) && ! state.askedBlock.containsKey(p))
+                    .limit(INITIAL_PEERS)
+                    .collect(Collectors.toSet());
+            state.askedHave.addAll(targets);
+            targets.forEach(this::stats);
+        }
+        wantManager.addWants(List.of(w), targets, MessageOuterClass.Message.Wantlist.WantType.Have);
+    }
+
+    /** Cancel every want this session is still waiting for. The futures this session returned fail with a
+     *  CancellationException. Wants that nobody else is waiting for are dropped by the engine, and every peer they
+     *  were sent to is sent a cancel.
+     */
+    @Override
+    public void close() {
+        engine.removeListener(this);
+        Map<Want, WantState> outstanding;
+        synchronized (this) {
+            closed = true;
+            outstanding = new HashMap<>(pending);
+            pending.clear();
+        }
+        for (Map.Entry<Want, WantState> e : outstanding.entrySet()) {
+            for (CompletableFuture<HashedBlock> future : e.getValue().futures) {
+                engine.releaseWant(e.getKey());
+                future.cancel(false);
+            }
+        }
+        wantManager.cancelWants(outstanding.keySet());
+    }
+}
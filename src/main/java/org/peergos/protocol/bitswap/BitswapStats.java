@@ -0,0 +1,51 @@
+package org.peergos.protocol.bitswap;
+
+import org.peergos.util.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/** Node wide Bitswap counters. Per peer numbers are kept in each peer's BitswapLedger.
+ *
+ */
+public class BitswapStats {
+    public final LongAdder wantsReceived = new LongAdder();
+    public final LongAdder cancelsReceived = new LongAdder();
+    public final LongAdder wantsSent = new LongAdder();
+    public final LongAdder cancelsSent = new LongAdder();
+    public final LongAdder blocksServed = new LongAdder();
+    public final LongAdder bytesServed = new LongAdder();
+    public final LongAdder presencesSent = new LongAdder();
+    public final LongAdder blocksReceived = new LongAdder();
+    public final LongAdder bytesReceived = new LongAdder();
+    public final LongAdder duplicateBlocksReceived = new LongAdder();
+    public final LongAdder unsolicitedBlocksReceived = new LongAdder();
+    public final LongAdder presencesReceived = new LongAdder();
+    // time from asking for a batch of blocks to the first of them arriving
+    public final Histogram timeToFirstBlock = Histogram.millis();
+    // time from wanting a block to it arriving
+    public final Histogram wantLatency = Histogram.millis();
+
+    public Map<String, Object> toJson(Collection<BitswapLedger> ledgers) {
+        Map<String, Object> res = new LinkedHashMap<>();
+        res.put("WantsReceived", wantsReceived.sum());
+        res.put("CancelsReceived", cancelsReceived.sum());
+        res.put("WantsSent", wantsSent.sum());
+        res.put("CancelsSent", cancelsSent.sum());
+        res.put("BlocksServed", blocksServed.sum());
+        res.put("BytesServed", bytesServed.sum());
+        res.put("PresencesSent", presencesSent.sum());
+        res.put("BlocksReceived", blocksReceived.sum());
+        res.put("BytesReceived", bytesReceived.sum());
+        res.put("DuplicateBlocksReceived", duplicateBlocksReceived.sum());
+        res.put("UnsolicitedBlocksReceived", unsolicitedBlocksReceived.sum());
+        res.put("PresencesReceived", presencesReceived.sum());
+        res.put("TimeToFirstBlockMillis", timeToFirstBlock.toJson());
+        res.put("WantLatencyMillis", wantLatency.toJson());
+        List<Object> peers = new ArrayList<>();
+        for (BitswapLedger ledger : ledgers)
+            peers.add(ledger.toJson());
+        res.put("Peers", peers);
+        return res;
+    }
+}
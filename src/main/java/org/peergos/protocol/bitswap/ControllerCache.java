@@ -0,0 +1,72 @@
+package org.peergos.protocol.bitswap;
+
+import io.libp2p.core.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** The streams we have opened, shared by all sends to a peer.
+ *
+ *  A dial that hasn't finished within the timeout fails the cached future, so the next send dials again. If the slow
+ *  dial completes later, its stream is closed rather than leaked.
+ */
+class ControllerCache {
+
+    private final Map<PeerId, CompletableFuture<BitswapController>> controllers = new ConcurrentHashMap<>();
+    private final long timeoutMillis;
+    private final Function<PeerId, CompletableFuture<BitswapController>> dialer;
+
+    ControllerCache(long timeoutMillis, Function<PeerId, CompletableFuture<BitswapController>> dialer) {
+        this.timeoutMillis = timeoutMillis;
+        this.dialer = dialer;
+    }
+
+    /** Reuses an open stream to the peer if we have one, otherwise dials a new one
+     *
+     */
+    CompletableFuture<BitswapController> get(PeerId peer) {
+        CompletableFuture<BitswapController> existing = controllers.get(peer);
+        if (existing != null)
+            return existing;
+        CompletableFuture<BitswapController> res = new CompletableFuture<>();
+        existing = controllers.putIfAbsent(peer, res);
+        if (existing != null)
+            return existing;
+        // evict before failing the future, so anyone who sees it fail will dial again
+        CompletableFuture.delayedExecutor(timeoutMillis, TimeUnit.MILLISECONDS).execute(() -> {
+            if (res.isDone())
+                return;
+            controllers.remove(peer, res);
+            if (res.completeExceptionally(new TimeoutException("Timed out dialing " + peer)))
+                return;
+            // the dial finished in the meantime, so keep its stream if it is still open
+            if (! res.isCompletedExceptionally() && ! res.join().closeFuture().isDone())
+                controllers.putIfAbsent(peer, res);
+        });
+        CompletableFuture<BitswapController> dial;
+        try {
+            dial = dialer.apply(peer);
+        } catch (Exception e) {
+            dial = CompletableFuture.failedFuture(e);
+        }
+        dial.whenComplete((controller, t) -> {
+            if (t != null) {
+                controllers.remove(peer, res);
+                res.completeExceptionally(t);
+                return;
+            }
+            if (! res.complete(controller)) {
+                // we gave up on this dial, so nobody will use the stream
+                controller.close();
+                return;
+            }
+            controller.closeFuture().thenRun(() -> controllers.remove(peer, res));
+        });
+        return res;
+    }
+
+    int size() {
+        return controllers.size();
+    }
+}
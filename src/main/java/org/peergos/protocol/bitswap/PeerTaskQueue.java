@@ -0,0 +1,266 @@
+package org.peergos.protocol.bitswap;
+
+import io.ipfs.cid.*;
+import io.libp2p.core.*;
+import org.peergos.protocol.bitswap.pb.*;
+import org.peergos.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/** Schedules outgoing blocks and presences fairly across peers.
+ *
+ *  Peers with queued work are served round-robin, each getting up to QUANTUM_BYTES of blocks per round, and no peer
+ *  is sent more than bytesPerWindow bytes of blocks in any window of windowMillis, except that a single block larger
+ *  than the whole budget is sent alone in a window of its own. A peer's window is remembered after its queue empties,
+ *  until the window ends, so asking for one block at a time doesn't get a fresh budget with every request.
+ */
+public class PeerTaskQueue {
+    private static final Logger LOG = Logger.getLogger(PeerTaskQueue.class.getName());
+    public static final long DEFAULT_BYTES_PER_WINDOW = 32 * 1024 * 1024;
+    public static final long DEFAULT_WINDOW_MILLIS = 1_000;
+    public static final int QUANTUM_BYTES = 256 * 1024;
+
+    private final long bytesPerWindow, windowMillis;
+    private final Function<PeerId, BitswapLedger> ledgers;
+    private final BitswapStats stats;
+    private final Consumer<PeerId> onSent;
+    private final ScheduledExecutorService scheduler;
+    // all guarded by this
+    private final Map<PeerId, PeerTasks> peers = new HashMap<>();
+    private final Deque<PeerId> roundRobin = new ArrayDeque<>();
+    private boolean drainScheduled = false;
+    private ScheduledFuture<?> nextWindowDrain;
+
+    public PeerTaskQueue(long bytesPerWindow, long windowMillis, Function<PeerId, BitswapLedger> ledgers) {
+        this(bytesPerWindow, windowMillis, ledgers, new BitswapStats(), p -> {});
+    }
+
+    /**
+     *
+     * @param onSent called, outside any lock, after tasks for a peer have been sent
+     */
+    public PeerTaskQueue(long bytesPerWindow,
+                         long windowMillis,
+                         Function<PeerId, BitswapLedger> ledgers,
+                         BitswapStats stats,
+                         Consumer<PeerId> onSent) {
+        if (bytesPerWindow < 1 || windowMillis < 1)
+            throw new IllegalArgumentException("Byte budget and window must be positive");
+        this.bytesPerWindow = bytesPerWindow;
+        this.windowMillis = windowMillis;
+        this.ledgers = ledgers;
+        this.stats = stats;
+        this.onSent = onSent;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(Threads.daemon("Bitswap sender"));
+    }
+
+    private static class Task {
+        final Cid cid;
+        final Optional<MessageOuterClass.Message.Block> block;
+        final Optional<MessageOuterClass.Message.BlockPresence> presence;
+
+        Task(Cid cid,
+             Optional<MessageOuterClass.Message.Block> block,
+             Optional<MessageOuterClass.Message.BlockPresence> presence) {
+            this.cid = cid;
+            this.block = block;
+            this.presence = presence;
+        }
+
+        int size() {
+            return block.map(b -> b.getData().size()).orElse(0);
+        }
+    }
+
+    private static class PeerTasks {
+        final Deque<Task> tasks = new ArrayDeque<>();
+        Consumer<MessageOuterClass.Message> sender;
+        long windowStart = 0, sentInWindow = 0, queuedBytes = 0;
+        // whether the peer is in the round robin
+        boolean scheduled = false;
+
+        PeerTasks(Consumer<MessageOuterClass.Message> sender) {
+            this.sender = sender;
+        }
+
+        boolean fitsBudget(int size, long now, long bytesPerWindow, long windowMillis) {
+            if (now - windowStart >= windowMillis) {
+                windowStart = now;
+                sentInWindow = 0;
+            }
+            return sentInWindow == 0 || sentInWindow + size <= bytesPerWindow;
+        }
+    }
+
+    public void addBlock(PeerId peer, Cid c, MessageOuterClass.Message.Block block, Consumer<MessageOuterClass.Message> sender) {
+        add(peer, new Task(c, Optional.of(block), Optional.empty()), sender);
+    }
+
+    public void addPresence(PeerId peer, Cid c, MessageOuterClass.Message.BlockPresence presence, Consumer<MessageOuterClass.Message> sender) {
+        add(peer, new Task(c, Optional.empty(), Optional.of(presence)), sender);
+    }
+
+    private synchronized void add(PeerId peer, Task t, Consumer<MessageOuterClass.Message> sender) {
+        PeerTasks existing = peers.get(peer);
+        if (existing == null) {
+            existing = new PeerTasks(sender);
+            peers.put(peer, existing);
+        } else
+            existing.sender = sender;
+        if (! existing.scheduled) {
+            existing.scheduled = true;
+            roundRobin.addLast(peer);
+        }
+        existing.tasks.add(t);
+        existing.queuedBytes += t.size();
+        ledgers.apply(peer).tasksQueued(1);
+        if (! drainScheduled) {
+            drainScheduled = true;
+            scheduler.execute(this::drain);
+        }
+    }
+
+    /** Drop any queued blocks or presences for c that haven't been sent to peer yet
+     *
+     */
+    public synchronized void cancel(PeerId peer, Cid c) {
+        PeerTasks existing = peers.get(peer);
+        if (existing == null)
+            return;
+        int before = existing.tasks.size();
+        existing.tasks.removeIf(t -> {
+            if (! t.cid.equals(c))
+                return false;
+            existing.queuedBytes -= t.size();
+            return true;
+        });
+        ledgers.apply(peer).tasksQueued(existing.tasks.size() - before);
+    }
+
+    /** Drop everything queued for peer, e.g. when it disconnects
+     *
+     */
+    public synchronized void removePeer(PeerId peer) {
+        PeerTasks existing = peers.remove(peer);
+        if (existing == null)
+            return;
+        roundRobin.remove(peer);
+        ledgers.apply(peer).tasksQueued(-existing.tasks.size());
+    }
+
+    public synchronized int queuedTasks(PeerId peer) {
+        PeerTasks existing = peers.get(peer);
+        return existing == null ? 0 : existing.tasks.size();
+    }
+
+    /**
+     *
+     * @return whether less than a window's budget of blocks is queued for peer, so it is worth looking up more
+     */
+    public synchronized boolean hasCapacity(PeerId peer) {
+        PeerTasks existing = peers.get(peer);
+        return existing == null || existing.queuedBytes < bytesPerWindow;
+    }
+
+    /** Forget the window of a peer with nothing queued, once it has ended
+     *
+     */
+    private synchronized void forgetIfIdle(PeerId peer, PeerTasks idle) {
+        if (peers.get(peer) != idle || idle.scheduled)
+            return;
+        if (System.currentTimeMillis() - idle.windowStart >= windowMillis)
+            peers.remove(peer);
+    }
+
+    private static class Batch {
+        final PeerId peer;
+        final Consumer<MessageOuterClass.Message> sender;
+        final List<MessageOuterClass.Message.BlockPresence> presences = new ArrayList<>();
+        final List<MessageOuterClass.Message.Block> blocks = new ArrayList<>();
+
+        Batch(PeerId peer, Consumer<MessageOuterClass.Message> sender) {
+            this.peer = peer;
+            this.sender = sender;
+        }
+    }
+
+    private void drain() {
+        List<Batch> toSend = new ArrayList<>();
+        synchronized (this) {
+            drainScheduled = false;
+            long now = System.currentTimeMillis();
+            long nextWindow = Long.MAX_VALUE;
+            boolean moreNow = false;
+            int peersThisRound = roundRobin.size();
+            for (int i = 0; i < peersThisRound; i++) {
+                PeerId peer = roundRobin.pollFirst();
+                PeerTasks queue = peers.get(peer);
+                Batch batch = new Batch(peer, queue.sender);
+                int quantum = 0;
+                boolean overBudget = false;
+                while (! queue.tasks.isEmpty()) {
+                    Task next = queue.tasks.peekFirst();
+                    if (next.block.isPresent()) {
+                        if (quantum >= QUANTUM_BYTES)
+                            break;
+                        // check the whole block fits before taking it, so the budget is never overshot
+                        if (! queue.fitsBudget(next.size(), now, bytesPerWindow, windowMillis)) {
+                            overBudget = true;
+                            break;
+                        }
+                        quantum += next.size();
+                        queue.sentInWindow += next.size();
+                        queue.queuedBytes -= next.size();
+                        batch.blocks.add(next.block.get());
+                    } else
+                        batch.presences.add(next.presence.get());
+                    queue.tasks.pollFirst();
+                }
+                ledgers.apply(peer).tasksQueued(-(batch.blocks.size() + batch.presences.size()));
+                if (! batch.blocks.isEmpty() || ! batch.presences.isEmpty())
+                    toSend.add(batch);
+                if (queue.tasks.isEmpty()) {
+                    queue.scheduled = false;
+                    long windowLeft = queue.windowStart + windowMillis - now;
+                    if (windowLeft <= 0)
+                        peers.remove(peer);
+                    else
+                        scheduler.schedule(() -> forgetIfIdle(peer, queue), windowLeft, TimeUnit.MILLISECONDS);
+                    continue;
+                }
+                roundRobin.addLast(peer);
+                if (overBudget)
+                    nextWindow = Math.min(nextWindow, queue.windowStart + windowMillis);
+                else
+                    moreNow = true;
+            }
+            if (moreNow) {
+                drainScheduled = true;
+                scheduler.execute(this::drain);
+            } else if (! roundRobin.isEmpty()) {
+                // everyone left is over budget, come back when the first window ends
+                if (nextWindowDrain != null)
+                    nextWindowDrain.cancel(false);
+                nextWindowDrain = scheduler.schedule(this::drain, Math.max(1, nextWindow - now), TimeUnit.MILLISECONDS);
+            }
+        }
+        for (Batch batch : toSend) {
+            try {
+                BitswapEngine.buildAndSendMessages(Collections.emptyList(), batch.presences, batch.blocks, batch.sender);
+                BitswapLedger ledger = ledgers.apply(batch.peer);
+                for (MessageOuterClass.Message.Block block : batch.blocks) {
+                    ledger.blockSent(block.getData().size());
+                    stats.blocksServed.increment();
+                    stats.bytesServed.add(block.getData().size());
+                }
+                stats.presencesSent.add(batch.presences.size());
+                onSent.accept(batch.peer);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Error sending to " + batch.peer, e);
+            }
+        }
+    }
+}
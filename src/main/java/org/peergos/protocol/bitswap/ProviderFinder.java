@@ -0,0 +1,15 @@
+package org.peergos.protocol.bitswap;
+
+import io.ipfs.cid.*;
+import org.peergos.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Used by Bitswap sessions to find peers that have a block when none of the session's peers do
+ *
+ */
+public interface ProviderFinder {
+
+    CompletableFuture<List<PeerAddresses>> findProviders(Cid block);
+}
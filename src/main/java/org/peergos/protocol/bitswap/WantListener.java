@@ -0,0 +1,19 @@
+package org.peergos.protocol.bitswap;
+
+import io.libp2p.core.*;
+import org.peergos.*;
+
+/** Notified by the BitswapEngine about responses to our outstanding wants
+ *
+ */
+public interface WantListener {
+
+    default void receivedHave(PeerId peer, Want w) {}
+
+    default void receivedDontHave(PeerId peer, Want w) {}
+
+    /** Called when a wanted block arrives, before the future for it is completed
+     *
+     */
+    default void receivedBlock(PeerId peer, Want w) {}
+}
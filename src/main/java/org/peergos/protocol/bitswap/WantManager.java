@@ -0,0 +1,288 @@
+package org.peergos.protocol.bitswap;
+
+import com.google.protobuf.*;
+import io.libp2p.core.*;
+import org.peergos.*;
+import org.peergos.protocol.bitswap.pb.*;
+import org.peergos.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** Keeps track of which of our wants have been sent to which peers.
+ *
+ *  Wants are either broadcast as want-haves to all connected peers, or sent to peers chosen by the caller. Only the
+ *  wants that changed, and peers that connected, since the last send are looked at, and each peer is sent just what it
+ *  hasn't been sent already. Wants that have been satisfied are cancelled, and the full outstanding wantlist is
+ *  rebroadcast with exponential backoff while anything is wanted. All state is confined to a single scheduler thread.
+ */
+public class WantManager implements WantListener {
+    private static final Logger LOG = Logger.getLogger(WantManager.class.getName());
+    public static final long INITIAL_REBROADCAST_MILLIS = 2_000;
+    public static final long MAX_REBROADCAST_MILLIS = 60_000;
+
+    private final BiConsumer<PeerId, MessageOuterClass.Message> sender;
+    private final Supplier<Set<PeerId>> connected;
+    private final Predicate<Want> stillWanted;
+    private final BitswapStats stats;
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(Threads.daemon("Bitswap wants"));
+    private final Map<Want, WantTargets> wants = new LinkedHashMap<>();
+    private final Map<PeerId, Map<Want, MessageOuterClass.Message.Wantlist.WantType>> sent = new HashMap<>();
+    // wants whose targets have changed since the last flush
+    private final Set<Want> dirty = new LinkedHashSet<>();
+    // the connected peers as of the last flush, which have been sent every broadcast want
+    private Set<PeerId> broadcastPeers = new HashSet<>();
+    private ScheduledFuture<?> rebroadcast;
+    private long rebroadcastDelay = INITIAL_REBROADCAST_MILLIS;
+
+    public WantManager(BiConsumer<PeerId, MessageOuterClass.Message> sender,
+                       Supplier<Set<PeerId>> connected,
+                       Predicate<Want> stillWanted,
+                       BitswapStats stats) {
+        this.sender = sender;
+        this.connected = connected;
+        this.stillWanted = stillWanted;
+        this.stats = stats;
+    }
+
+    private static class WantTargets {
+        // whether to send a want-have to every connected peer
+        boolean broadcast;
+        // whether a peer that says it has the block is asked for it, rather than leaving that to whoever chose the peers
+        boolean upgradeOnHave;
+        // peers that have been explicitly chosen for this want
+        final Map<PeerId, MessageOuterClass.Message.Wantlist.WantType> peers = new HashMap<>();
+    }
+
+    /** Ask for the wants with want-haves, from all connected peers if peers is empty, otherwise from the given peers.
+     *  Any peer that replies that it has a block is then asked for it.
+     */
+    public void addWants(Collection<Want> newWants, Set<PeerId> peers) {
+        addWants(newWants, peers.isEmpty(), true, peers, MessageOuterClass.Message.Wantlist.WantType.Have);
+    }
+
+    /** Send the wants to exactly the given peers, with the given want type
+     *
+     */
+    public void addWants(Collection<Want> newWants, Set<PeerId> peers, MessageOuterClass.Message.Wantlist.WantType type) {
+        addWants(newWants, false, false, peers, type);
+    }
+
+    private void addWants(Collection<Want> newWants,
+                          boolean broadcast,
+                          boolean upgradeOnHave,
+                          Set<PeerId> peers,
+                          MessageOuterClass.Message.Wantlist.WantType type) {
+        if (newWants.isEmpty() || (! broadcast && peers.isEmpty()))
+            return;
+        Set<PeerId> targetPeers = new HashSet<>(peers);
+        List<Want> added = new ArrayList<>(newWants);
+        scheduler.execute(() -> {
+            for (Want w : added) {
+                WantTargets targets = wants.computeIfAbsent(w, x -> new WantTargets());
+                targets.broadcast |= broadcast;
+                targets.upgradeOnHave |= upgradeOnHave;
+                for (PeerId peer : targetPeers) {
+                    if (targets.peers.get(peer) != MessageOuterClass.Message.Wantlist.WantType.Block)
+                        targets.peers.put(peer, type);
+                }
+                dirty.add(w);
+            }
+            flush(false);
+            resetBackoff();
+        });
+    }
+
+    /** Stop asking for those of the wants that nobody wants any more, and send a cancel to every peer they were sent
+     *  to. Wants that another requester still holds a reference to in the engine are left alone.
+     */
+    public void cancelWants(Collection<Want> toCancel) {
+        if (toCancel.isEmpty())
+            return;
+        List<Want> candidates = new ArrayList<>(toCancel);
+        scheduler.execute(() -> {
+            List<Want> cancelled = candidates.stream()
+                    .filter(w -> ! stillWanted.test(w))
+                    .collect(Collectors.toList());
+            if (cancelled.isEmpty())
+                return;
+            for (Want w : cancelled) {
+                wants.remove(w);
+                dirty.remove(w);
+            }
+            cancel(cancelled);
+        });
+    }
+
+    @Override
+    public void receivedHave(PeerId peer, Want w) {
+        scheduler.execute(() -> {
+            WantTargets targets = wants.get(w);
+            if (targets == null || ! targets.upgradeOnHave)
+                return;
+            if (targets.peers.get(peer) == MessageOuterClass.Message.Wantlist.WantType.Block)
+                return;
+            targets.peers.put(peer, MessageOuterClass.Message.Wantlist.WantType.Block);
+            dirty.add(w);
+            flush(false);
+        });
+    }
+
+    @Override
+    public void receivedBlock(PeerId peer, Want w) {
+        scheduler.execute(() -> {
+            if (wants.remove(w) == null)
+                return;
+            dirty.remove(w);
+            // the sender has already dropped it from their ledger
+            Map<Want, MessageOuterClass.Message.Wantlist.WantType> senderSent = sent.get(peer);
+            if (senderSent != null && senderSent.remove(w) != null && senderSent.isEmpty())
+                sent.remove(peer);
+            cancel(List.of(w));
+        });
+    }
+
+    private static MessageOuterClass.Message.Wantlist.Entry buildEntry(Want w,
+                                                                       MessageOuterClass.Message.Wantlist.WantType type,
+                                                                       boolean sendDontHave) {
+        return MessageOuterClass.Message.Wantlist.Entry.newBuilder()
+                .setBlock(ByteString.copyFrom(w.cid.toBytes()))
+                .setAuth(ByteString.copyFrom(w.auth.orElse("").getBytes()))
+                .setWantType(type)
+                .setSendDontHave(sendDontHave)
+                .build();
+    }
+
+    private static MessageOuterClass.Message.Wantlist.Entry buildCancel(Want w) {
+        return MessageOuterClass.Message.Wantlist.Entry.newBuilder()
+                .setBlock(ByteString.copyFrom(w.cid.toBytes()))
+                .setAuth(ByteString.copyFrom(w.auth.orElse("").getBytes()))
+                .setCancel(true)
+                .build();
+    }
+
+    private void send(PeerId peer, List<MessageOuterClass.Message.Wantlist.Entry> entries) {
+        for (MessageOuterClass.Message.Wantlist.Entry e : entries) {
+            if (e.getCancel())
+                stats.cancelsSent.increment();
+            else
+                stats.wantsSent.increment();
+        }
+        try {
+            BitswapEngine.buildAndSendMessages(entries, Collections.emptyList(), Collections.emptyList(),
+                    msg -> sender.accept(peer, msg));
+        } catch (Exception e) {
+            LOG.log(Level.FINE, "Couldn't send wants to " + peer, e);
+        }
+    }
+
+    private void cancel(Collection<Want> done) {
+        Iterator<Map.Entry<PeerId, Map<Want, MessageOuterClass.Message.Wantlist.WantType>>> peers = sent.entrySet().iterator();
+        while (peers.hasNext()) {
+            Map.Entry<PeerId, Map<Want, MessageOuterClass.Message.Wantlist.WantType>> peer = peers.next();
+            List<MessageOuterClass.Message.Wantlist.Entry> cancels = done.stream()
+                    .filter(w -> peer.getValue().remove(w) != null)
+                    .map(WantManager::buildCancel)
+                    .collect(Collectors.toList());
+            if (peer.getValue().isEmpty())
+                peers.remove();
+            if (! cancels.isEmpty())
+                send(peer.getKey(), cancels);
+        }
+    }
+
+    private void pruneCompleted() {
+        List<Want> done = wants.keySet().stream()
+                .filter(w -> ! stillWanted.test(w))
+                .collect(Collectors.toList());
+        if (done.isEmpty())
+            return;
+        for (Want w : done) {
+            wants.remove(w);
+            dirty.remove(w);
+        }
+        cancel(done);
+    }
+
+    /**
+     *
+     * @param full whether to resend every outstanding want, rather than just the changes since the last flush
+     */
+    private void flush(boolean full) {
+        if (full)
+            pruneCompleted();
+        Set<PeerId> connectedPeers = new HashSet<>(connected.get());
+        Set<PeerId> newPeers = new HashSet<>(connectedPeers);
+        newPeers.removeAll(broadcastPeers);
+        broadcastPeers = connectedPeers;
+        Map<PeerId, List<MessageOuterClass.Message.Wantlist.Entry>> toSend = new HashMap<>();
+        if (full) {
+            for (Map.Entry<Want, WantTargets> e : wants.entrySet())
+                addEntries(e.getKey(), e.getValue(), connectedPeers, true, toSend);
+        } else {
+            for (Want w : dirty)
+                addEntries(w, wants.get(w), connectedPeers, false, toSend);
+            // peers that connected since the last flush haven't been sent any of the broadcast wants
+            if (! newPeers.isEmpty()) {
+                for (Map.Entry<Want, WantTargets> e : wants.entrySet()) {
+                    if (e.getValue().broadcast && ! dirty.contains(e.getKey()))
+                        addEntries(e.getKey(), e.getValue(), newPeers, false, toSend);
+                }
+            }
+        }
+        dirty.clear();
+        toSend.forEach(this::send);
+    }
+
+    private void addEntries(Want w,
+                            WantTargets targets,
+                            Set<PeerId> connectedPeers,
+                            boolean full,
+                            Map<PeerId, List<MessageOuterClass.Message.Wantlist.Entry>> toSend) {
+        Map<PeerId, MessageOuterClass.Message.Wantlist.WantType> desired = new HashMap<>(targets.peers);
+        if (targets.broadcast) {
+            for (PeerId peer : connectedPeers)
+                desired.putIfAbsent(peer, MessageOuterClass.Message.Wantlist.WantType.Have);
+        }
+        for (Map.Entry<PeerId, MessageOuterClass.Message.Wantlist.WantType> target : desired.entrySet()) {
+            PeerId peer = target.getKey();
+            MessageOuterClass.Message.Wantlist.WantType type = target.getValue();
+            Map<Want, MessageOuterClass.Message.Wantlist.WantType> peerSent = sent.computeIfAbsent(peer, p -> new HashMap<>());
+            MessageOuterClass.Message.Wantlist.WantType previous = peerSent.get(w);
+            if (previous == MessageOuterClass.Message.Wantlist.WantType.Block)
+                type = previous;
+            if (! full && previous == type)
+                continue;
+            peerSent.put(w, type);
+            // only explicitly chosen peers are asked to tell us when they don't have it
+            boolean sendDontHave = targets.peers.containsKey(peer);
+            toSend.computeIfAbsent(peer, p -> new ArrayList<>()).add(buildEntry(w, type, sendDontHave));
+        }
+    }
+
+    private void resetBackoff() {
+        rebroadcastDelay = INITIAL_REBROADCAST_MILLIS;
+        if (rebroadcast != null)
+            rebroadcast.cancel(false);
+        rebroadcast = scheduler.schedule(this::rebroadcast, rebroadcastDelay, TimeUnit.MILLISECONDS);
+    }
+
+    private void rebroadcast() {
+        try {
+            flush(true);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        }
+        if (wants.isEmpty()) {
+            rebroadcast = null;
+            rebroadcastDelay = INITIAL_REBROADCAST_MILLIS;
+            return;
+        }
+        rebroadcastDelay = Math.min(rebroadcastDelay * 2, MAX_REBROADCAST_MILLIS);
+        rebroadcast = scheduler.schedule(this::rebroadcast, rebroadcastDelay, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,161 @@
+package org.peergos.protocol.dht;
+
+import io.ipfs.multihash.Multihash;
+import io.libp2p.core.*;
+import org.peergos.*;
+import org.peergos.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** Publishes provider records for many blocks at once.
+ *
+ *  Keys are sorted by their Kademlia id and split into regions of the keyspace that are expected to hold about k
+ *  peers, estimated from the distance to the kth closest peer in the latest lookup. Each region needs a single lookup
+ *  for the 2k peers closest to its middle key, from which each key takes its own k closest. All the records for a peer
+ *  are then sent over one stream, and only those written successfully are counted. Regions are processed
+ *  concurrently, and records are sent no faster than the rate limit.
+ */
+public class BatchProvider {
+    private static final Logger LOG = Logger.getLogger(BatchProvider.class.getName());
+    public static final int DEFAULT_CONCURRENCY = 8;
+    public static final int DEFAULT_MAX_PROVIDES_PER_SECOND = 5_000;
+    public static final int K = 20;
+
+    private final Kademlia dht;
+    private final Host us;
+    private final ExecutorService regions;
+    private final RateLimiter limiter;
+    // the latest estimate of the prefix length of a region holding about k peers, or -1 before the first lookup
+    private volatile int regionBits = -1;
+
+    /**
+     *
+     * @param concurrency the number of regions of the keyspace processed at once
+     * @param maxProvidesPerSecond the maximum rate of provider records sent, across all peers
+     */
+    public BatchProvider(Kademlia dht, Host us, int concurrency, double maxProvidesPerSecond) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("Concurrency must be positive");
+        this.dht = dht;
+        this.us = us;
+        this.regions = Executors.newFixedThreadPool(concurrency, Threads.daemon("Reprovider"));
+        this.limiter = new RateLimiter(maxProvidesPerSecond);
+    }
+
+    private static class Key implements Comparable<Key> {
+        public final byte[] id;
+        public final Multihash block;
+
+        public Key(byte[] id, Multihash block) {
+            this.id = id;
+            this.block = block;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            return Arrays.compareUnsigned(id, other.id);
+        }
+    }
+
+    /** Split keys, sorted by id, into runs sharing their first prefixBits bits
+     *
+     */
+    public static <T> List<List<T>> regions(List<T> sorted, Function<T, byte[]> id, int prefixBits) {
+        List<List<T>> res = new ArrayList<>();
+        List<T> current = new ArrayList<>();
+        for (T key : sorted) {
+            if (! current.isEmpty() && KademliaIds.sharedPrefixBits(id.apply(current.get(0)), id.apply(key)) < prefixBits) {
+                res.add(current);
+                current = new ArrayList<>();
+            }
+            current.add(key);
+        }
+        if (! current.isEmpty())
+            res.add(current);
+        return res;
+    }
+
+    /** Update the estimate of the prefix length of a region of the keyspace holding about k peers
+     *
+     * @param closest the peers closest to the key, closest first
+     */
+    private void updateRegionBits(Key key, List<PeerAddresses> closest) {
+        if (closest.isEmpty())
+            return;
+        PeerAddresses kth = closest.get(Math.min(K, closest.size()) - 1);
+        regionBits = KademliaIds.sharedPrefixBits(key.id, dht.getIds().hash(kth.peerId));
+    }
+
+    /** Publish provider records for all the blocks, blocking until done
+     *
+     * @return the number of provider records sent
+     */
+    public long provide(Collection<? extends Multihash> blocks) {
+        if (blocks.isEmpty())
+            return 0;
+        PeerAddresses ourAddrs = PeerAddresses.fromHost(us);
+        List<Key> keys = blocks.stream()
+                .map(Multihash::bareMultihash)
+                .distinct()
+                .map(b -> new Key(Hash.sha256(b.toBytes()), b))
+                .sorted()
+                .collect(Collectors.toList());
+        if (regionBits < 0) {
+            Key sample = keys.get(keys.size() / 2);
+            updateRegionBits(sample, dht.findClosestPeersAsync(sample.block, K, us).join());
+        }
+        int prefixBits = Math.max(0, regionBits);
+        List<List<Key>> regions = regions(keys, k -> k.id, prefixBits);
+        LOG.info("Providing " + keys.size() + " blocks in " + regions.size() + " regions of " + prefixBits + " bits");
+
+        List<Future<Long>> sent = regions.stream()
+                .map(region -> this.regions.submit(() -> provideRegion(region, ourAddrs)))
+                .collect(Collectors.toList());
+        long total = 0;
+        for (Future<Long> fut : sent) {
+            try {
+                total += fut.get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+        return total;
+    }
+
+    private long provideRegion(List<Key> region, PeerAddresses ourAddrs) throws InterruptedException {
+        Key middle = region.get(region.size() / 2);
+        List<PeerAddresses> candidates = dht.findClosestPeersAsync(middle.block, 2 * K, us).join();
+        updateRegionBits(middle, candidates);
+        KademliaIds ids = dht.getIds();
+
+        Map<Multihash, PeerAddresses> peers = new HashMap<>();
+        Map<Multihash, List<Multihash>> blocksPerPeer = new HashMap<>();
+        for (Key key : region) {
+            List<PeerAddresses> closest = IterativeLookup.closest(candidates, key.id, ids, K);
+            for (PeerAddresses peer : closest) {
+                peers.putIfAbsent(peer.peerId, peer);
+                blocksPerPeer.computeIfAbsent(peer.peerId, p -> new ArrayList<>()).add(key.block);
+            }
+        }
+
+        List<CompletableFuture<Integer>> sends = new ArrayList<>();
+        for (Map.Entry<Multihash, List<Multihash>> e : blocksPerPeer.entrySet()) {
+            limiter.acquire(e.getValue().size());
+            sends.add(dht.provideBlocks(peers.get(e.getKey()), e.getValue(), us, ourAddrs));
+        }
+        long total = 0;
+        for (CompletableFuture<Integer> send : sends)
+            total += send.join();
+        return total;
+    }
+
+    public void shutdown() {
+        regions.shutdownNow();
+    }
+}
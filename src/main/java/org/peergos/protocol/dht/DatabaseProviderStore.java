@@ -0,0 +1,181 @@
+package org.peergos.protocol.dht;
+
+import com.google.protobuf.*;
+import io.ipfs.multihash.Multihash;
+import org.peergos.*;
+import org.peergos.protocol.dht.pb.*;
+import org.peergos.util.*;
+
+import java.sql.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A provider store in an H2 database, so provider records survive restarts without being held on the heap.
+ *
+ *  Records expire after the ttl, unless republished, and expired records are deleted in the background. The same caps
+ *  as the RamProviderStore apply: when a key is full the record closest to expiry is replaced, and when the store is
+ *  full new records are dropped until enough expire. The single connection and its statements are only used while
+ *  holding its lock.
+ */
+public class DatabaseProviderStore implements ProviderStore, AutoCloseable {
+
+    private final String connectionStringPrefix = "jdbc:h2:";
+    private final Connection connection;
+    private final PreparedStatement select, exists, countForKey, merge, deleteOldestForKey, deleteExpired;
+
+    private final String PROVIDER_TABLE = "providers";
+    private final int SIZE_OF_KEY = 100;
+    private final int SIZE_OF_PEERID = 100;
+
+    private final long ttlMillis;
+    private final int maxProvidersPerKey, maxRecords;
+    // guarded by connection
+    private int records;
+    private final ScheduledExecutorService cleaner =
+            Executors.newSingleThreadScheduledExecutor(Threads.daemon("Provider database cleanup"));
+
+    /*
+     * Constructs a DatabaseProviderStore object
+     * @param location - location of the database on disk (See: https://h2database.com/html/cheatSheet.html for options)
+     */
+    public DatabaseProviderStore(String location,
+                                 Duration ttl,
+                                 int maxProvidersPerKey,
+                                 int maxRecords,
+                                 Duration cleanupPeriod) {
+        if (maxProvidersPerKey < 1 || maxRecords < 1)
+            throw new IllegalArgumentException("Provider limits must be positive");
+        this.ttlMillis = ttl.toMillis();
+        this.maxProvidersPerKey = maxProvidersPerKey;
+        this.maxRecords = maxRecords;
+        try {
+            this.connection = DriverManager.getConnection(connectionStringPrefix + location);
+            this.connection.setAutoCommit(true);
+            createTable();
+            this.select = connection.prepareStatement("SELECT peer FROM " + PROVIDER_TABLE
+                    + " WHERE block=? AND expiryMillis > ? ORDER BY expiryMillis DESC LIMIT ?");
+            this.exists = connection.prepareStatement("SELECT 1 FROM " + PROVIDER_TABLE + " WHERE block=? AND peerId=?");
+            this.countForKey = connection.prepareStatement("SELECT COUNT(*) FROM " + PROVIDER_TABLE + " WHERE block=?");
+            this.merge = connection.prepareStatement("MERGE INTO " + PROVIDER_TABLE
+                    + " (block, peerId, peer, expiryMillis) VALUES (?, ?, ?, ?);");
+            this.deleteOldestForKey = connection.prepareStatement("DELETE FROM " + PROVIDER_TABLE
+                    + " WHERE block=? AND peerId=(SELECT peerId FROM " + PROVIDER_TABLE
+                    + " WHERE block=? ORDER BY expiryMillis LIMIT 1)");
+            this.deleteExpired = connection.prepareStatement("DELETE FROM " + PROVIDER_TABLE + " WHERE expiryMillis <= ?");
+            try (Statement count = connection.createStatement();
+                 ResultSet rs = count.executeQuery("SELECT COUNT(*) FROM " + PROVIDER_TABLE)) {
+                rs.next();
+                this.records = rs.getInt(1);
+            }
+        } catch (SQLException sqle) {
+            cleaner.shutdownNow();
+            throw new IllegalStateException(sqle);
+        }
+        long period = cleanupPeriod.toMillis();
+        cleaner.scheduleAtFixedRate(this::removeExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public DatabaseProviderStore(String location) {
+        this(location, PROVIDER_RECORD_TTL, RamProviderStore.DEFAULT_MAX_PROVIDERS_PER_KEY,
+                RamProviderStore.DEFAULT_MAX_RECORDS, RamProviderStore.DEFAULT_CLEANUP_PERIOD);
+    }
+
+    public void close() throws Exception {
+        cleaner.shutdownNow();
+        synchronized (connection) {
+            connection.close();
+        }
+    }
+
+    private void createTable() throws SQLException {
+        String createSQL = "create table if not exists " + PROVIDER_TABLE
+                + " (block VARCHAR(" + SIZE_OF_KEY + ") not null, peerId VARCHAR(" + SIZE_OF_PEERID + ") not null, "
+                + "peer BLOB not null, expiryMillis BIGINT not null, primary key (block, peerId));";
+        String indexSQL = "create index if not exists providers_expiry on " + PROVIDER_TABLE + " (expiryMillis);";
+        try (PreparedStatement create = connection.prepareStatement(createSQL);
+             PreparedStatement index = connection.prepareStatement(indexSQL)) {
+            create.execute();
+            index.execute();
+        }
+    }
+
+    private static boolean any(PreparedStatement query) throws SQLException {
+        try (ResultSet rs = query.executeQuery()) {
+            return rs.next();
+        }
+    }
+
+    private static int count(PreparedStatement query) throws SQLException {
+        try (ResultSet rs = query.executeQuery()) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    @Override
+    public void addProvider(Multihash m, PeerAddresses peer) {
+        String key = DatabaseRecordStore.hashToKey(m);
+        String peerId = DatabaseRecordStore.hashToKey(peer.peerId);
+        synchronized (connection) {
+            try {
+                exists.setString(1, key);
+                exists.setString(2, peerId);
+                if (! any(exists)) {
+                    countForKey.setString(1, key);
+                    if (count(countForKey) >= maxProvidersPerKey) {
+                        deleteOldestForKey.setString(1, key);
+                        deleteOldestForKey.setString(2, key);
+                        records -= deleteOldestForKey.executeUpdate();
+                    } else if (records >= maxRecords)
+                        return;
+                    records++;
+                }
+                merge.setString(1, key);
+                merge.setString(2, peerId);
+                merge.setBytes(3, peer.toProtobuf().toByteArray());
+                merge.setLong(4, System.currentTimeMillis() + ttlMillis);
+                merge.executeUpdate();
+            } catch (SQLException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    @Override
+    public Set<PeerAddresses> getProviders(Multihash m) {
+        synchronized (connection) {
+            try {
+                select.setString(1, DatabaseRecordStore.hashToKey(m));
+                select.setLong(2, System.currentTimeMillis());
+                select.setInt(3, maxProvidersPerKey);
+                Set<PeerAddresses> res = new HashSet<>();
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next())
+                        res.add(PeerAddresses.fromProtobuf(Dht.Message.Peer.parseFrom(rs.getBytes("peer"))));
+                }
+                return res;
+            } catch (SQLException | InvalidProtocolBufferException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    @Override
+    public void removeExpired() {
+        synchronized (connection) {
+            try {
+                deleteExpired.setLong(1, System.currentTimeMillis());
+                records -= deleteExpired.executeUpdate();
+            } catch (SQLException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (connection) {
+            return records;
+        }
+    }
+}
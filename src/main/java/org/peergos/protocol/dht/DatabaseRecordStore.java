@@ -1,60 +1,161 @@
 package org.peergos.protocol.dht;
-import io.ipfs.cid.Cid;
+
+import io.ipfs.cid.*;
 import io.ipfs.multibase.binary.Base32;
 import io.ipfs.multihash.Multihash;
-import org.peergos.protocol.ipns.IpnsRecord;
+import org.peergos.protocol.ipns.*;
+import org.peergos.util.*;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.sql.*;
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
-import java.util.Optional;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
 
+/** An IPNS record store in an H2 database, which can be used from many DHT streams at once.
+ *
+ *  Each connection in a small pool keeps its own prepared statements. Puts are queued and written in batches, each in a
+ *  single transaction. Reads are served from the queue, then from a bounded cache of recent records, and only then
+ *  from the database. Expired records are deleted in the background.
+ */
 public class DatabaseRecordStore implements RecordStore, AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(DatabaseRecordStore.class.getName());
+    private static final ScheduledExecutorService background =
+            Executors.newSingleThreadScheduledExecutor(Threads.daemon("Record database"));
+    public static final int DEFAULT_POOL_SIZE = 4;
+    public static final int DEFAULT_CACHE_SIZE = 10_000;
+    public static final int MAX_BATCH_SIZE = 1_000;
+    public static final long FLUSH_PERIOD_MILLIS = 100;
+    public static final Duration DEFAULT_SWEEP_PERIOD = Duration.ofMinutes(10);
 
     private final String connectionStringPrefix = "jdbc:h2:";//./store/records;AUTO_RECONNECT=TRUE
-    private final Connection connection;
 
     private final String RECORD_TABLE = "records";
     private final int SIZE_OF_VAL = 10 * 1024; // 10KiB
     private final int SIZE_OF_PEERID = 100;
 
+    private final List<PooledConnection> connections = new ArrayList<>();
+    private final BlockingQueue<PooledConnection> pool;
+    // puts not yet written to the database
+    private final Map<String, IpnsRecord> pending = new ConcurrentHashMap<>();
+    private final Map<String, IpnsRecord> cache;
+    // serialises flushes and removes, so a flush can't write back a record removed after it was queued
+    private final Object writeLock = new Object();
+    private final ScheduledFuture<?> flusher, sweeper;
+
+    /** A connection with its prepared statements, used by one thread at a time
+     *
+     */
+    private class PooledConnection {
+        public final Connection connection;
+        public final PreparedStatement select, merge, delete, deleteExpired;
+
+        public PooledConnection(String url) throws SQLException {
+            this.connection = DriverManager.getConnection(url);
+            this.connection.setAutoCommit(true);
+            createTable(connection);
+            this.select = connection.prepareStatement("SELECT raw, sequence, ttlNanos, expiryUTC, val FROM "
+                    + RECORD_TABLE + " WHERE peerId=?");
+            this.merge = connection.prepareStatement("MERGE INTO " + RECORD_TABLE
+                    + " (peerId, raw, sequence, ttlNanos, expiryUTC, val) VALUES (?, ?, ?, ?, ?, ?);");
+            this.delete = connection.prepareStatement("DELETE FROM " + RECORD_TABLE + " WHERE peerId=?");
+            this.deleteExpired = connection.prepareStatement("DELETE FROM " + RECORD_TABLE + " WHERE expiryUTC < ?");
+        }
+    }
+
+    private interface SqlFunction<T> {
+        T apply(PooledConnection c) throws SQLException;
+    }
+
     /*
      * Constructs a DatabaseRecordStore object
      * @param location - location of the database on disk (See: https://h2database.com/html/cheatSheet.html for options)
+     * @param poolSize - the number of connections, always 1 for an unnamed in memory database
+     * @param cacheSize - the number of recently used records kept in memory
+     * @param sweepPeriod - how often expired records are deleted
      */
-    public DatabaseRecordStore(String location) {
+    public DatabaseRecordStore(String location, int poolSize, int cacheSize, Duration sweepPeriod) {
+        if (poolSize < 1 || cacheSize < 1)
+            throw new IllegalArgumentException("Pool and cache sizes must be positive");
+        // each connection to "mem:" opens a separate private database
+        int connectionCount = location.equals("mem:") ? 1 : poolSize;
+        this.pool = new ArrayBlockingQueue<>(connectionCount);
         try {
-            this.connection = getConnection(connectionStringPrefix + location);
-            this.connection.setAutoCommit(true);
-            createTable();
+            for (int i = 0; i < connectionCount; i++) {
+                PooledConnection c = new PooledConnection(connectionStringPrefix + location);
+                connections.add(c);
+                pool.add(c);
+            }
         } catch (SQLException sqle) {
+            closeConnections();
             throw new IllegalStateException(sqle);
         }
+        this.cache = Collections.synchronizedMap(new LinkedHashMap<String, IpnsRecord>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, IpnsRecord> eldest) {
+                return size() > cacheSize;
+            }
+        });
+        this.flusher = background.scheduleWithFixedDelay(this::flushQuietly,
+                FLUSH_PERIOD_MILLIS, FLUSH_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        long period = sweepPeriod.toMillis();
+        this.sweeper = background.scheduleAtFixedRate(this::sweepQuietly, period, period, TimeUnit.MILLISECONDS);
     }
+
+    public DatabaseRecordStore(String location) {
+        this(location, DEFAULT_POOL_SIZE, DEFAULT_CACHE_SIZE, DEFAULT_SWEEP_PERIOD);
+    }
+
     public void close() throws Exception {
-        connection.close();
+        flusher.cancel(false);
+        sweeper.cancel(false);
+        try {
+            flush();
+        } finally {
+            closeConnections();
+        }
     }
 
-    private Connection getConnection(String connectionString) throws SQLException {
-        return DriverManager.getConnection(connectionString);
+    private void closeConnections() {
+        for (PooledConnection c : connections) {
+            try {
+                c.connection.close();
+            } catch (SQLException e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
     }
 
-    private void createTable() {
+    private void createTable(Connection connection) throws SQLException {
         String createSQL = "create table if not exists " + RECORD_TABLE
                 + " (peerId VARCHAR(" + SIZE_OF_PEERID + ") primary key not null, raw BLOB not null, "
                 + "sequence BIGINT not null, ttlNanos BIGINT not null, expiryUTC BIGINT not null, "
                 + "val VARCHAR(" + SIZE_OF_VAL + ") not null);";
-        try (PreparedStatement select = connection.prepareStatement(createSQL)) {
-            select.execute();
+        String indexSQL = "create index if not exists records_expiry on " + RECORD_TABLE + " (expiryUTC);";
+        try (PreparedStatement create = connection.prepareStatement(createSQL);
+             PreparedStatement index = connection.prepareStatement(indexSQL)) {
+            create.execute();
+            index.execute();
+        }
+    }
+
+    private <T> T withConnection(SqlFunction<T> f) {
+        PooledConnection c;
+        try {
+            c = pool.take();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            return f.apply(c);
         } catch (SQLException ex) {
             throw new IllegalStateException(ex);
+        } finally {
+            pool.add(c);
         }
     }
 
-    private String hashToKey(Multihash hash) {
+    static String hashToKey(Multihash hash) {
         String padded = new Base32().encodeAsString(hash.toBytes());
         int padStart = padded.indexOf("=");
         return padStart > 0 ? padded.substring(0, padStart) : padded;
@@ -62,63 +163,115 @@ public class DatabaseRecordStore implements RecordStore, AutoCloseable {
 
     @Override
     public Optional<IpnsRecord> get(Cid peerId) {
-        String selectSQL = "SELECT raw, sequence, ttlNanos, expiryUTC, val FROM " + RECORD_TABLE + " WHERE peerId=?";
-        try (PreparedStatement pstmt = connection.prepareStatement(selectSQL)) {
-            pstmt.setString(1, hashToKey(peerId));
-            try (ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    try (InputStream input = rs.getBinaryStream("raw")) {
-                        byte[] buffer = new byte[1024];
-                        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-                        for (int len; (len = input.read(buffer)) != -1; ) {
-                            bout.write(buffer, 0, len);
-                        }
-                        LocalDateTime expiry = LocalDateTime.ofEpochSecond(rs.getLong("expiryUTC"),
-                                0, ZoneOffset.UTC);
-                        IpnsRecord record = new IpnsRecord(bout.toByteArray(), rs.getLong("sequence"),
-                                rs.getLong("ttlNanos"),  expiry, rs.getString("val"));
-                        return Optional.of(record);
-                    } catch (IOException readEx) {
-                        throw new IllegalStateException(readEx);
-                    }
-                } else {
+        String key = hashToKey(peerId);
+        IpnsRecord queued = pending.get(key);
+        if (queued != null)
+            return Optional.of(queued);
+        IpnsRecord cached = cache.get(key);
+        if (cached != null)
+            return Optional.of(cached);
+        Optional<IpnsRecord> stored = withConnection(c -> {
+            c.select.setString(1, key);
+            try (ResultSet rs = c.select.executeQuery()) {
+                if (! rs.next())
                     return Optional.empty();
-                }
-            } catch (SQLException rsEx) {
-                throw new IllegalStateException(rsEx);
+                LocalDateTime expiry = LocalDateTime.ofEpochSecond(rs.getLong("expiryUTC"), 0, ZoneOffset.UTC);
+                return Optional.of(new IpnsRecord(rs.getBytes("raw"), rs.getLong("sequence"),
+                        rs.getLong("ttlNanos"), expiry, rs.getString("val")));
             }
-        } catch (SQLException sqlEx) {
-            throw new IllegalStateException(sqlEx);
-        }
+        });
+        // don't overwrite a record put while we were reading
+        stored.ifPresent(r -> cache.putIfAbsent(key, r));
+        return stored;
     }
 
     @Override
     public void put(Multihash peerId, IpnsRecord record) {
-        String updateSQL = "MERGE INTO " + RECORD_TABLE
-                + " (peerId, raw, sequence, ttlNanos, expiryUTC, val) VALUES (?, ?, ?, ?, ?, ?);";
-        try (PreparedStatement pstmt = connection.prepareStatement(updateSQL)) {
-            pstmt.setString(1, hashToKey(peerId));
-            pstmt.setBytes(2, record.raw);
-            pstmt.setLong(3, record.sequence);
-            pstmt.setLong(4, record.ttlNanos);
-            pstmt.setLong(5, record.expiry.toEpochSecond(ZoneOffset.UTC));
-            pstmt.setString(6, record.value.length() > SIZE_OF_VAL ?
-                    record.value.substring(0, SIZE_OF_VAL) : record.value);
-            pstmt.executeUpdate();
-        } catch (SQLException ex) {
-            throw new IllegalStateException(ex);
+        String key = hashToKey(peerId);
+        pending.put(key, record);
+        cache.put(key, record);
+        if (pending.size() >= MAX_BATCH_SIZE)
+            flush();
+    }
+
+    /** Write all the queued puts to the database in a single transaction
+     *
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            if (pending.isEmpty())
+                return;
+            Map<String, IpnsRecord> batch = new HashMap<>(pending);
+            withConnection(c -> {
+                c.connection.setAutoCommit(false);
+                try {
+                    for (Map.Entry<String, IpnsRecord> e : batch.entrySet()) {
+                        IpnsRecord record = e.getValue();
+                        c.merge.setString(1, e.getKey());
+                        c.merge.setBytes(2, record.raw);
+                        c.merge.setLong(3, record.sequence);
+                        c.merge.setLong(4, record.ttlNanos);
+                        c.merge.setLong(5, record.expiry.toEpochSecond(ZoneOffset.UTC));
+                        c.merge.setString(6, record.value.length() > SIZE_OF_VAL ?
+                                record.value.substring(0, SIZE_OF_VAL) : record.value);
+                        c.merge.addBatch();
+                    }
+                    c.merge.executeBatch();
+                    c.connection.commit();
+                } catch (SQLException ex) {
+                    c.merge.clearBatch();
+                    c.connection.rollback();
+                    throw ex;
+                } finally {
+                    c.connection.setAutoCommit(true);
+                }
+                return null;
+            });
+            // keep any put that replaced a record while it was being written
+            batch.forEach(pending::remove);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Failed to write IPNS records, will retry", e);
         }
     }
 
     @Override
     public void remove(Multihash peerId) {
-        String deleteSQL = "DELETE FROM " + RECORD_TABLE + " WHERE peerId=?";
-        try (PreparedStatement pstmt = connection.prepareStatement(deleteSQL)) {
-            pstmt.setString(1, hashToKey(peerId));
-            pstmt.executeUpdate();
-        } catch (SQLException ex) {
-            throw new IllegalStateException(ex);
+        String key = hashToKey(peerId);
+        synchronized (writeLock) {
+            pending.remove(key);
+            cache.remove(key);
+            withConnection(c -> {
+                c.delete.setString(1, key);
+                return c.delete.executeUpdate();
+            });
         }
     }
-}
 
+    /** Delete every expired record
+     *
+     */
+    public void removeExpired() {
+        LocalDateTime now = LocalDateTime.now();
+        synchronized (cache) {
+            cache.values().removeIf(r -> r.expiry.isBefore(now));
+        }
+        withConnection(c -> {
+            c.deleteExpired.setLong(1, now.toEpochSecond(ZoneOffset.UTC));
+            return c.deleteExpired.executeUpdate();
+        });
+    }
+
+    private void sweepQuietly() {
+        try {
+            removeExpired();
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Failed to remove expired IPNS records", e);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.peergos.protocol.dht;
+
+import io.ipfs.multihash.Multihash;
+import org.peergos.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/** An asynchronous Kademlia iterative lookup.
+ *
+ *  Each path keeps up to alpha queries in flight, and starts another as soon as any reply arrives. A path finishes when
+ *  the k closest peers it has seen have all responded, or when nobody is left to ask. With more than one path the
+ *  seeds are split between disjoint paths, as in S/Kademlia, and no peer is queried on more than one path, so a
+ *  single malicious peer can only steer one of them.
+ */
+public class IterativeLookup {
+
+    private final byte[] key;
+    private final KademliaIds ids;
+    private final int k, alpha;
+    private final List<Path> paths = new ArrayList<>();
+    private final CompletableFuture<List<PeerAddresses>> result = new CompletableFuture<>();
+    // all guarded by this
+    private final Set<Multihash> claimed = new HashSet<>();
+    private boolean finished = false;
+    private Function<PeerAddresses, CompletableFuture<List<PeerAddresses>>> query;
+
+    /**
+     *
+     * @param key the sha256 of the key being looked up
+     * @param ids where peers' Kademlia ids are cached
+     * @param k the number of closest peers to find
+     * @param alpha the number of queries kept in flight on each path
+     * @param disjointPaths the number of disjoint paths
+     */
+    public IterativeLookup(byte[] key, KademliaIds ids, int k, int alpha, int disjointPaths) {
+        if (k < 1 || alpha < 1 || disjointPaths < 1)
+            throw new IllegalArgumentException("k, alpha and disjointPaths must be positive");
+        this.key = key;
+        this.ids = ids;
+        this.k = k;
+        this.alpha = alpha;
+        for (int i = 0; i < disjointPaths; i++)
+            paths.add(new Path());
+    }
+
+    private enum State {NEW, WAITING, RESPONDED, FAILED}
+
+    /** A candidate with its distance to the key computed once, when it is first seen
+     *
+     */
+    static class RoutingEntry implements Comparable<RoutingEntry> {
+        public final byte[] distance;
+        public final PeerAddresses addresses;
+
+        public RoutingEntry(byte[] distance, PeerAddresses addresses) {
+            this.distance = distance;
+            this.addresses = addresses;
+        }
+
+        @Override
+        public int compareTo(RoutingEntry other) {
+            // distinct ids are always at distinct XOR distances, so there are no ties to break
+            return Arrays.compareUnsigned(distance, other.distance);
+        }
+    }
+
+    private static RoutingEntry entry(PeerAddresses peer, byte[] key, KademliaIds ids) {
+        return new RoutingEntry(KademliaIds.distance(key, ids.hash(peer.peerId)), peer);
+    }
+
+    private RoutingEntry entry(PeerAddresses peer) {
+        return entry(peer, key, ids);
+    }
+
+    /** Sort the peers by their distance to the key, computing each distance once rather than on every comparison
+     *
+     * @return the n closest peers, closest first
+     */
+    public static List<PeerAddresses> closest(Collection<PeerAddresses> peers, byte[] key, KademliaIds ids, int n) {
+        return peers.stream()
+                .map(p -> entry(p, key, ids))
+                .sorted()
+                .limit(n)
+                .map(e -> e.addresses)
+                .collect(Collectors.toList());
+    }
+
+    private class Path {
+        final TreeMap<RoutingEntry, State> candidates = new TreeMap<>();
+        int inFlight = 0;
+        boolean done = false;
+    }
+
+    /**
+     *
+     * @param seeds the peers to start from, usually the closest in our routing table
+     * @param query asks a peer for the peers it knows closest to the key
+     * @return the k closest peers that responded
+     */
+    public CompletableFuture<List<PeerAddresses>> run(List<PeerAddresses> seeds,
+                                                      Function<PeerAddresses, CompletableFuture<List<PeerAddresses>>> query) {
+        synchronized (this) {
+            if (this.query != null)
+                throw new IllegalStateException("Lookup already started");
+            this.query = query;
+            for (int i = 0; i < seeds.size(); i++)
+                add(paths.get(i % paths.size()), seeds.get(i));
+        }
+        for (Path path : paths)
+            advance(path);
+        return result;
+    }
+
+    /** Finish the lookup now with what has been found so far, e.g. when the caller has found what it was looking for
+     *
+     */
+    public void stop() {
+        List<PeerAddresses> closest;
+        synchronized (this) {
+            if (finished)
+                return;
+            finished = true;
+            closest = closestResponded();
+        }
+        result.complete(closest);
+    }
+
+    private void add(Path path, PeerAddresses peer) {
+        if (claimed.add(peer.peerId))
+            path.candidates.put(entry(peer), State.NEW);
+    }
+
+    /** Whether the k closest non failed candidates on this path have all responded
+     *
+     */
+    private boolean isDone(Path path) {
+        int considered = 0;
+        for (Map.Entry<RoutingEntry, State> e : path.candidates.entrySet()) {
+            if (considered >= k)
+                break;
+            if (e.getValue() == State.FAILED)
+                continue;
+            if (e.getValue() != State.RESPONDED)
+                return false;
+            considered++;
+        }
+        return true;
+    }
+
+    private void advance(Path path) {
+        List<RoutingEntry> toQuery = new ArrayList<>();
+        boolean allDone = false;
+        synchronized (this) {
+            if (finished || path.done)
+                return;
+            if (isDone(path)) {
+                path.done = true;
+                allDone = paths.stream().allMatch(p -> p.done);
+            } else {
+                int considered = 0;
+                for (Map.Entry<RoutingEntry, State> e : path.candidates.entrySet()) {
+                    if (path.inFlight >= alpha || considered >= k)
+                        break;
+                    if (e.getValue() == State.FAILED)
+                        continue;
+                    considered++;
+                    if (e.getValue() == State.NEW) {
+                        e.setValue(State.WAITING);
+                        path.inFlight++;
+                        toQuery.add(e.getKey());
+                    }
+                }
+            }
+        }
+        if (allDone) {
+            stop();
+            return;
+        }
+        for (RoutingEntry target : toQuery) {
+            CompletableFuture<List<PeerAddresses>> reply;
+            try {
+                reply = query.apply(target.addresses);
+            } catch (Exception e) {
+                reply = CompletableFuture.failedFuture(e);
+            }
+            reply.whenComplete((closer, t) -> replied(path, target, closer, t));
+        }
+    }
+
+    private void replied(Path path, RoutingEntry target, List<PeerAddresses> closer, Throwable t) {
+        synchronized (this) {
+            path.inFlight--;
+            if (t != null || closer == null) {
+                path.candidates.put(target, State.FAILED);
+            } else {
+                path.candidates.put(target, State.RESPONDED);
+                for (PeerAddresses peer : closer)
+                    add(path, peer);
+            }
+        }
+        advance(path);
+    }
+
+    private List<PeerAddresses> closestResponded() {
+        return paths.stream()
+                .flatMap(p -> p.candidates.entrySet().stream())
+                .filter(e -> e.getValue() == State.RESPONDED)
+                .map(Map.Entry::getKey)
+                .sorted()
+                .limit(k)
+                .map(e -> e.addresses)
+                .collect(Collectors.toList());
+    }
+}
@@ -1,6 +1,5 @@
 package org.peergos.protocol.dht;
 
-import com.offbynull.kademlia.*;
 import io.ipfs.multiaddr.*;
 import io.ipfs.multihash.Multihash;
 import io.libp2p.core.*;
@@ -10,12 +9,17 @@ import io.libp2p.core.multistream.*;
 import io.libp2p.etc.types.*;
 import io.libp2p.protocol.*;
 import org.peergos.*;
+import org.peergos.protocol.dht.pb.*;
 import org.peergos.protocol.dnsaddr.*;
 import org.peergos.protocol.ipns.*;
+import org.peergos.util.*;
 
+import java.io.*;
+import java.nio.file.*;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.logging.*;
 import java.util.stream.*;
@@ -25,14 +29,71 @@ public class Kademlia extends StrictProtocolBinding<KademliaController> implemen
 
     private static final Logger LOG = Logger.getLogger(Kademlia.class.getName());
     public static final int BOOTSTRAP_PERIOD_MILLIS = 300_000;
+    public static final int DEFAULT_ALPHA = 3;
+    public static final int QUERY_TIMEOUT_MILLIS = 2_000;
+    public static final int QUERY_CACHE_SIZE = 10_000;
+    public static final long PROVIDER_CACHE_TTL_MILLIS = 5 * 60_000L;
+    public static final long CLOSEST_PEERS_CACHE_TTL_MILLIS = 60_000L;
+    public static final long NEGATIVE_CACHE_TTL_MILLIS = 10_000L;
+    public static final int DEFAULT_IPNS_QUORUM = 3;
+    public static final int DEFAULT_IPNS_PUBLISH_ACKS = 5;
+    public static final Duration IPNS_RECORD_LIFETIME = Duration.ofHours(1);
     private final KademliaEngine engine;
     private final boolean localDht;
+    private final int alpha, disjointPaths;
+    private final RequestLimiter requestLimiter;
     private AddressBook addressBook;
+    private final QueryCache<Pair<Multihash, Integer>, List<PeerAddresses>> providerCache =
+            new QueryCache<>(QUERY_CACHE_SIZE, PROVIDER_CACHE_TTL_MILLIS, NEGATIVE_CACHE_TTL_MILLIS, List::isEmpty);
+    private final QueryCache<Pair<Multihash, Integer>, List<PeerAddresses>> closestPeersCache =
+            new QueryCache<>(QUERY_CACHE_SIZE, CLOSEST_PEERS_CACHE_TTL_MILLIS, NEGATIVE_CACHE_TTL_MILLIS, List::isEmpty);
+    // publishers whose cached record is being refreshed in the background
+    private final Set<Multihash> refreshing = ConcurrentHashMap.newKeySet();
+    // the IPNS records we publish, republished at half their lifetime
+    private final Map<Multihash, OwnedRecord> ownedRecords = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService republisher =
+            Executors.newSingleThreadScheduledExecutor(Threads.daemon("IpnsRepublisher"));
 
     public Kademlia(KademliaEngine dht, boolean localOnly) {
-        super("/ipfs/" + (localOnly ? "lan/" : "") + "kad/1.0.0", new KademliaProtocol(dht));
+        this(dht, localOnly, DEFAULT_ALPHA, 1);
+    }
+
+    /**
+     *
+     * @param alpha the number of queries each lookup keeps in flight per path
+     * @param disjointPaths the number of disjoint paths each lookup uses, 1 for a standard Kademlia lookup
+     */
+    public Kademlia(KademliaEngine dht, boolean localOnly, int alpha, int disjointPaths) {
+        this(dht, localOnly, alpha, disjointPaths, new RequestLimiter());
+    }
+
+    /**
+     *
+     * @param requestLimiter admits the requests other peers send us
+     */
+    public Kademlia(KademliaEngine dht, boolean localOnly, int alpha, int disjointPaths, RequestLimiter requestLimiter) {
+        super("/ipfs/" + (localOnly ? "lan/" : "") + "kad/1.0.0", new KademliaProtocol(dht, requestLimiter,
+                KademliaProtocol.DEFAULT_REQUEST_THREADS, KademliaProtocol.DEFAULT_REQUEST_QUEUE_SIZE));
+        if (alpha < 1 || disjointPaths < 1)
+            throw new IllegalArgumentException("alpha and disjointPaths must be positive");
         this.engine = dht;
+        this.requestLimiter = requestLimiter;
         this.localDht = localOnly;
+        this.alpha = alpha;
+        this.disjointPaths = disjointPaths;
+    }
+
+    public KademliaIds getIds() {
+        return engine.ids;
+    }
+
+    public Map<String, Object> getCacheStats() {
+        Map<String, Object> res = new LinkedHashMap<>();
+        res.put("Providers", providerCache.toJson());
+        res.put("ClosestPeers", closestPeersCache.toJson());
+        res.put("IpnsValidation", engine.validatedRecords.toJson());
+        res.put("Requests", requestLimiter.toJson());
+        return res;
     }
 
     public void setAddressBook(AddressBook addrs) {
@@ -66,6 +127,54 @@ public class Kademlia extends StrictProtocolBinding<KademliaController> implemen
         return successes;
     }
 
+    /** Write the peers in our routing table, and their addresses, to a file, to be reloaded on the next start
+     *
+     */
+    public void saveRoutingTable(Path file) throws IOException {
+        byte[] snapshot = Dht.Message.newBuilder()
+                .addAllCloserPeers(engine.getRoutingTablePeers().stream()
+                        .map(PeerAddresses::toProtobuf)
+                        .collect(Collectors.toList()))
+                .build()
+                .toByteArray();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, snapshot);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Probe, in parallel, the peers saved by saveRoutingTable. Those that respond are added to the routing table.
+     *
+     * @return the number of peers that responded
+     */
+    public int loadRoutingTable(Path file, Host us) {
+        List<PeerAddresses> saved;
+        try {
+            saved = Dht.Message.parseFrom(Files.readAllBytes(file)).getCloserPeersList().stream()
+                    .map(PeerAddresses::fromProtobuf)
+                    .collect(Collectors.toList());
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Ignoring invalid routing table snapshot " + file, e);
+            return 0;
+        }
+        List<CompletableFuture<Boolean>> probes = saved.stream()
+                .map(p -> dialPeer(p, us)
+                        .orTimeout(QUERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                        .thenApply(c -> {
+                            c.close();
+                            return true;
+                        })
+                        .exceptionally(t -> false))
+                .collect(Collectors.toList());
+        int responded = 0;
+        for (CompletableFuture<Boolean> probe : probes)
+            if (probe.join())
+                responded++;
+        LOG.info(responded + " of " + saved.size() + " saved peers responded");
+        return responded;
+    }
+
     public void startBootstrapThread(Host us) {
         new Thread(() -> {
             while (true) {
@@ -109,144 +218,154 @@ public class Kademlia extends StrictProtocolBinding<KademliaController> implemen
         LOG.info("Bootstrap connected to " + connectedClosest + " nodes close to us.");
     }
 
-    static class RoutingEntry {
-        public final Id key;
-        public final PeerAddresses addresses;
-
-        public RoutingEntry(Id key, PeerAddresses addresses) {
-            this.key = key;
-            this.addresses = addresses;
-        }
+    public List<PeerAddresses> findClosestPeers(Multihash peerIdkey, int maxCount, Host us) {
+        return findClosestPeersAsync(peerIdkey, maxCount, us).join();
     }
 
-    private int compareKeys(RoutingEntry a, RoutingEntry b, Id keyId) {
-        int prefixDiff = b.key.getSharedPrefixLength(keyId) - a.key.getSharedPrefixLength(keyId);
-        if (prefixDiff != 0)
-            return prefixDiff;
-        return a.addresses.peerId.toBase58().compareTo(b.addresses.peerId.toBase58());
+    /** Find the closest peers to a key, reusing a recent result for the same key and count if there is one
+     *
+     */
+    public CompletableFuture<List<PeerAddresses>> findClosestPeersAsync(Multihash peerIdkey, int maxCount, Host us) {
+        return closestPeersCache.get(new Pair<>(peerIdkey, maxCount), () -> lookupClosestPeers(peerIdkey, maxCount, us));
     }
 
-    public List<PeerAddresses> findClosestPeers(Multihash peerIdkey, int maxCount, Host us) {
+    private CompletableFuture<List<PeerAddresses>> lookupClosestPeers(Multihash peerIdkey, int maxCount, Host us) {
         byte[] key = peerIdkey.toBytes();
-        Id keyId = Id.create(Hash.sha256(key), 256);
-        SortedSet<RoutingEntry> closest = new TreeSet<>((a, b) -> compareKeys(a, b, keyId));
-        SortedSet<RoutingEntry> toQuery = new TreeSet<>((a, b) -> compareKeys(a, b, keyId));
+        byte[] keyHash = Hash.sha256(key);
         List<PeerAddresses> localClosest = engine.getKClosestPeers(key);
         if (maxCount == 1) {
             Collection<Multiaddr> existing = addressBook.get(PeerId.fromBase58(peerIdkey.toBase58())).join();
             if (! existing.isEmpty())
-                return Collections.singletonList(new PeerAddresses(peerIdkey, existing.stream().map(a -> a.toString()).map(MultiAddress::new).collect(Collectors.toList())));
+                return CompletableFuture.completedFuture(Collections.singletonList(new PeerAddresses(peerIdkey, existing.stream().map(a -> a.toString()).map(MultiAddress::new).collect(Collectors.toList()))));
             Optional<PeerAddresses> match = localClosest.stream().filter(p -> p.peerId.equals(peerIdkey)).findFirst();
             if (match.isPresent())
-                return Collections.singletonList(match.get());
-        }
-        closest.addAll(localClosest.stream()
-                .map(p -> new RoutingEntry(Id.create(Hash.sha256(p.peerId.toBytes()), 256), p))
-                .collect(Collectors.toList()));
-        toQuery.addAll(closest);
-        Set<Multihash> queried = new HashSet<>();
-        int queryParallelism = 3;
-        while (true) {
-            List<RoutingEntry> queryThisRound = toQuery.stream().limit(queryParallelism).collect(Collectors.toList());
-            toQuery.removeAll(queryThisRound);
-            queryThisRound.forEach(r -> queried.add(r.addresses.peerId));
-            List<CompletableFuture<List<PeerAddresses>>> futures = queryThisRound.stream()
-                    .map(r -> getCloserPeers(peerIdkey, r.addresses, us))
-                    .collect(Collectors.toList());
-            boolean foundCloser = false;
-            for (CompletableFuture<List<PeerAddresses>> future : futures) {
-                List<PeerAddresses> result = future.join();
-                for (PeerAddresses peer : result) {
-                    if (! queried.contains(peer.peerId)) {
-                        // exit early if we are looking for the specific node
-                        if (maxCount == 1 && peer.peerId.equals(peerIdkey))
-                            return Collections.singletonList(peer);
-                        queried.add(peer.peerId);
-                        Id peerKey = Id.create(Hash.sha256(peer.peerId.toBytes()), 256);
-                        RoutingEntry e = new RoutingEntry(peerKey, peer);
-                        toQuery.add(e);
-                        closest.add(e);
-                        foundCloser = true;
-                    }
-                }
-            }
-            // if no new peers in top k were returned we are done
-            if (! foundCloser)
-                break;
+                return CompletableFuture.completedFuture(Collections.singletonList(match.get()));
         }
-        return closest.stream()
-                .limit(maxCount).map(r -> r.addresses)
-                .collect(Collectors.toList());
+        IterativeLookup lookup = new IterativeLookup(keyHash, engine.ids, maxCount, alpha, disjointPaths);
+        AtomicReference<PeerAddresses> exactMatch = new AtomicReference<>();
+        return lookup.run(localClosest, target -> getCloserPeers(key, target, us)
+                        .thenApply(closer -> {
+                            // exit early if we are looking for the specific node
+                            if (maxCount == 1)
+                                closer.stream()
+                                        .filter(p -> p.peerId.equals(peerIdkey))
+                                        .findFirst()
+                                        .ifPresent(p -> {
+                                            exactMatch.set(p);
+                                            lookup.stop();
+                                        });
+                            return closer;
+                        }))
+                .thenApply(closest -> exactMatch.get() != null ?
+                        Collections.singletonList(exactMatch.get()) :
+                        closest);
     }
 
+    /** Find providers for a block, reusing a recent result for the same block and count if there is one
+     *
+     */
     public CompletableFuture<List<PeerAddresses>> findProviders(Multihash block, Host us, int desiredCount) {
-        byte[] key = block.bareMultihash().toBytes();
-        Id keyId = Id.create(key, 256);
-        List<PeerAddresses> providers = new ArrayList<>();
-
-        SortedSet<RoutingEntry> toQuery = new TreeSet<>((a, b) -> b.key.getSharedPrefixLength(keyId) - a.key.getSharedPrefixLength(keyId));
-        toQuery.addAll(engine.getKClosestPeers(key).stream()
-                .map(p -> new RoutingEntry(Id.create(Hash.sha256(p.peerId.toBytes()), 256), p))
-                .collect(Collectors.toList()));
-
-        Set<Multihash> queried = new HashSet<>();
-        int queryParallelism = 3;
-        while (true) {
-            if (providers.size() >= desiredCount)
-                return CompletableFuture.completedFuture(providers);
-            List<RoutingEntry> queryThisRound = toQuery.stream().limit(queryParallelism).collect(Collectors.toList());
-            toQuery.removeAll(queryThisRound);
-            queryThisRound.forEach(r -> queried.add(r.addresses.peerId));
-            List<CompletableFuture<Providers>> futures = queryThisRound.stream()
-                    .parallel()
-                    .map(r -> {
-                        KademliaController res = null;
-                        try {
-                            res = dialPeer(r.addresses, us).join();
-                            return res.getProviders(block).orTimeout(2, TimeUnit.SECONDS);
-                        }catch (Exception e) {
-                            return null;
-                        }
-                    }).filter(prov -> prov != null)
-                    .collect(Collectors.toList());
-            boolean foundCloser = false;
-            for (CompletableFuture<Providers> future : futures) {
-                try {
-                    Providers newProviders = future.join();
-                    providers.addAll(newProviders.providers);
-                    for (PeerAddresses peer : newProviders.closerPeers) {
-                        if (!queried.contains(peer.peerId)) {
-                            queried.add(peer.peerId);
-                            RoutingEntry e = new RoutingEntry(Id.create(Hash.sha256(peer.peerId.toBytes()), 256), peer);
-                            toQuery.add(e);
-                            foundCloser = true;
-                        }
-                    }
-                } catch (Exception e) {
-                    if (! (e.getCause() instanceof TimeoutException))
-                        e.printStackTrace();
+        return providerCache.get(new Pair<>(block.bareMultihash(), desiredCount),
+                () -> findProviders(block, us, desiredCount, p -> true, ForkJoinPool.commonPool()));
+    }
+
+    /** Find providers for a block, passing each new provider to onProvider as soon as it is found. The walk stops once
+     *  desiredCount providers have been found, or onProvider returns false.
+     *
+     * @param onProvider called with one provider at a time, in the order they are found, returns whether to keep looking
+     * @param callbacks where onProvider is run, so a slow callback never holds up the network thread the response
+     *                  arrived on
+     * @return the providers passed to onProvider, once it has seen each of them
+     */
+    public CompletableFuture<List<PeerAddresses>> findProviders(Multihash block,
+                                                                Host us,
+                                                                int desiredCount,
+                                                                Predicate<PeerAddresses> onProvider,
+                                                                Executor callbacks) {
+        AtomicBoolean stopped = new AtomicBoolean(false);
+        List<PeerAddresses> delivered = Collections.synchronizedList(new ArrayList<>());
+        Function<PeerAddresses, Runnable> deliver = provider -> () -> {
+            if (stopped.get())
+                return;
+            delivered.add(provider);
+            if (! onProvider.test(provider))
+                stopped.set(true);
+        };
+        Optional<List<PeerAddresses>> cached = providerCache.getIfPresent(new Pair<>(block.bareMultihash(), desiredCount));
+        if (cached.isPresent() && ! cached.get().isEmpty()) {
+            return CompletableFuture.supplyAsync(() -> {
+                for (PeerAddresses provider : cached.get()) {
+                    deliver.apply(provider).run();
+                    if (stopped.get())
+                        break;
                 }
-            }
-            // if no new peers in top k were returned we are done
-            if (! foundCloser)
-                break;
+                return new ArrayList<>(delivered);
+            }, callbacks);
         }
+        byte[] key = block.bareMultihash().toBytes();
+        Map<Multihash, PeerAddresses> providers = new LinkedHashMap<>();
+        AtomicBoolean done = new AtomicBoolean(false);
+        // each provider is handed to the callback executor in turn, so onProvider sees them one at a time and in order
+        AtomicReference<CompletableFuture<Void>> deliveries = new AtomicReference<>(CompletableFuture.completedFuture(null));
+        IterativeLookup lookup = new IterativeLookup(Hash.sha256(key), engine.ids, 20, alpha, disjointPaths);
+        return lookup.run(engine.getKClosestPeers(key), target -> dialPeer(target, us)
+                        .orTimeout(QUERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                        .thenCompose(c -> c.getProviders(block).orTimeout(QUERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+                        .whenComplete((res, t) -> {
+                            if (t != null)
+                                engine.peerFailed(target.peerId);
+                        })
+                        .thenApply(res -> {
+                            List<PeerAddresses> found = new ArrayList<>();
+                            synchronized (providers) {
+                                for (PeerAddresses provider : res.providers) {
+                                    if (done.get())
+                                        break;
+                                    if (providers.putIfAbsent(provider.peerId, provider) != null)
+                                        continue;
+                                    found.add(provider);
+                                    if (providers.size() >= desiredCount)
+                                        done.set(true);
+                                }
+                                // extending the chain is cheap and keeps deliveries in the order found
+                                for (PeerAddresses provider : found)
+                                    deliveries.getAndUpdate(d -> d.thenRunAsync(deliver.apply(provider), callbacks)
+                                            .thenRun(() -> {
+                                                if (stopped.get())
+                                                    lookup.stop();
+                                            }));
+                            }
+                            if (done.get() || stopped.get())
+                                lookup.stop();
+                            return res.closerPeers;
+                        }))
+                .thenCompose(x -> deliveries.get())
+                .thenApply(x -> new ArrayList<>(delivered));
+    }
 
-        return CompletableFuture.completedFuture(providers);
+    /** Find the closest peers to a key that need not be a multihash, e.g. an IPNS key
+     *
+     */
+    private CompletableFuture<List<PeerAddresses>> findClosestPeersToKey(byte[] key, int maxCount, Host us) {
+        IterativeLookup lookup = new IterativeLookup(Hash.sha256(key), engine.ids, maxCount, alpha, disjointPaths);
+        return lookup.run(engine.getKClosestPeers(key), target -> getCloserPeers(key, target, us));
     }
 
-    private CompletableFuture<List<PeerAddresses>> getCloserPeers(Multihash peerIDKey, PeerAddresses target, Host us) {
-        try {
-            return dialPeer(target, us).orTimeout(2, TimeUnit.SECONDS).join().closerPeers(peerIDKey);
-        } catch (Exception e) {
-            if (e.getCause() instanceof NothingToCompleteException)
-                LOG.info("Couldn't dial " + peerIDKey + " addrs: " + target.addresses);
-            else if (e.getCause() instanceof TimeoutException)
-                LOG.info("Timeout dialing " + peerIDKey + " addrs: " + target.addresses);
-            else
-                e.printStackTrace();
-        }
-        return CompletableFuture.completedFuture(Collections.emptyList());
+    private CompletableFuture<List<PeerAddresses>> getCloserPeers(byte[] key, PeerAddresses target, Host us) {
+        return dialPeer(target, us)
+                .orTimeout(QUERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .thenCompose(c -> c.closerPeers(key).orTimeout(QUERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+                .whenComplete((closer, t) -> {
+                    if (t == null)
+                        return;
+                    engine.peerFailed(target.peerId);
+                    if (t.getCause() instanceof NothingToCompleteException)
+                        LOG.fine("Couldn't dial " + target.peerId + " addrs: " + target.addresses);
+                    else if (t.getCause() instanceof TimeoutException || t instanceof TimeoutException)
+                        LOG.fine("Timeout querying " + target.peerId + " addrs: " + target.addresses);
+                    else
+                        LOG.log(Level.FINE, t, t::getMessage);
+                });
     }
 
     private Multiaddr[] getPublic(PeerAddresses target) {
@@ -262,54 +381,198 @@ public class Kademlia extends StrictProtocolBinding<KademliaController> implemen
     }
 
     public CompletableFuture<Void> provideBlock(Multihash block, Host us, PeerAddresses ourAddrs) {
-        List<PeerAddresses> closestPeers = findClosestPeers(block, 20, us);
-        List<CompletableFuture<Boolean>> provides = closestPeers.stream()
-                .parallel()
-                .map(p -> dialPeer(p, us)
-                        .thenCompose(contr -> contr.provide(block, ourAddrs))
+        return findClosestPeersAsync(block, 20, us).thenCompose(closestPeers -> {
+            List<CompletableFuture<Boolean>> provides = closestPeers.stream()
+                    .map(p -> dialPeer(p, us)
+                            .thenCompose(contr -> contr.provide(block, ourAddrs))
+                            .exceptionally(t -> {
+                                LOG.log(Level.FINE, t, t::getMessage);
+                                return true;
+                            }))
+                    .collect(Collectors.toList());
+            return CompletableFuture.allOf(provides.toArray(new CompletableFuture[0]));
+        });
+    }
+
+    /** Send provider records for many blocks to a peer over a single stream
+     *
+     * @return the number of records that were written successfully
+     */
+    public CompletableFuture<Integer> provideBlocks(PeerAddresses target, List<Multihash> blocks, Host us, PeerAddresses ourAddrs) {
+        return dialPeer(target, us)
+                .orTimeout(QUERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .thenCompose(contr -> {
+                    List<CompletableFuture<Boolean>> writes = new ArrayList<>();
+                    try {
+                        for (Multihash block : blocks)
+                            writes.add(contr.provide(block, ourAddrs)
+                                    .handle((ok, t) -> t == null && Boolean.TRUE.equals(ok)));
+                    } catch (RuntimeException e) {
+                        contr.close();
+                        throw e;
+                    }
+                    // only close the stream once every write has finished, so none are cut off
+                    return CompletableFuture.allOf(writes.toArray(new CompletableFuture[0]))
+                            .whenComplete((x, t) -> contr.close())
+                            .thenApply(x -> (int) writes.stream().filter(CompletableFuture::join).count());
+                })
+                .exceptionally(t -> {
+                    LOG.log(Level.FINE, t, t::getMessage);
+                    return 0;
+                });
+    }
+
+    public CompletableFuture<Integer> publishIpnsValue(PrivKey priv, Multihash publisher, Multihash value, long sequence, Host us) {
+        return publishIpnsValue(priv, publisher, value, sequence, DEFAULT_IPNS_PUBLISH_ACKS, us);
+    }
+
+    /** Publish an IPNS record to the peers closest to its key, and republish it before it expires until it is replaced
+     *  by a later publish or stopRepublishing is called.
+     *
+     *  A single lookup finds the closest peers, which are then all sent the record in parallel.
+     *
+     * @param minAcks the number of peers that must store the record
+     * @return the number of peers that had stored the record when minAcks was reached, or a failure once every peer
+     * has replied or timed out without that many storing it
+     */
+    public CompletableFuture<Integer> publishIpnsValue(PrivKey priv,
+                                                       Multihash publisher,
+                                                       Multihash value,
+                                                       long sequence,
+                                                       int minAcks,
+                                                       Host us) {
+        if (minAcks < 1)
+            throw new IllegalArgumentException("minAcks must be positive");
+        OwnedRecord owned = new OwnedRecord(priv, "/ipfs/" + value, sequence);
+        ownedRecords.put(publisher, owned);
+        scheduleRepublish(publisher, owned, us);
+        return putIpnsRecord(publisher, owned, minAcks, us);
+    }
+
+    public void stopRepublishing(Multihash publisher) {
+        ownedRecords.remove(publisher);
+    }
+
+    private static class OwnedRecord {
+        public final PrivKey priv;
+        public final String path;
+        public final long sequence;
+
+        public OwnedRecord(PrivKey priv, String path, long sequence) {
+            this.priv = priv;
+            this.path = path;
+            this.sequence = sequence;
+        }
+    }
+
+    private void scheduleRepublish(Multihash publisher, OwnedRecord owned, Host us) {
+        republisher.schedule(() -> {
+            // a later publish, or stopRepublishing, supersedes this one
+            if (ownedRecords.get(publisher) != owned)
+                return;
+            putIpnsRecord(publisher, owned, 1, us).whenComplete((acks, t) -> {
+                if (t != null)
+                    LOG.log(Level.WARNING, "Failed to republish IPNS record for " + publisher, t);
+                scheduleRepublish(publisher, owned, us);
+            });
+        }, IPNS_RECORD_LIFETIME.toMillis() / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /** Sign a fresh record, store it locally, and send it to the closest peers in parallel
+     *
+     */
+    private CompletableFuture<Integer> putIpnsRecord(Multihash publisher, OwnedRecord owned, int minAcks, Host us) {
+        LocalDateTime expiry = LocalDateTime.now().plus(IPNS_RECORD_LIFETIME);
+        long ttlNanos = IPNS_RECORD_LIFETIME.toNanos();
+        byte[] raw = IPNS.createSignedRecord(owned.path, expiry, owned.sequence, ttlNanos, owned.priv);
+        engine.putLocalRecord(publisher, new IpnsRecord(raw, owned.sequence, ttlNanos, expiry, owned.path));
+
+        return findClosestPeersToKey(IPNS.getKey(publisher), 20, us).thenCompose(peers -> {
+            CompletableFuture<Integer> res = new CompletableFuture<>();
+            AtomicInteger acks = new AtomicInteger(0);
+            AtomicInteger pending = new AtomicInteger(peers.size());
+            if (peers.isEmpty())
+                res.completeExceptionally(new IllegalStateException("No peers to publish IPNS record to"));
+            for (PeerAddresses peer : peers) {
+                dialPeer(peer, us)
+                        .orTimeout(QUERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                        .thenCompose(c -> c.putValue(publisher, raw).orTimeout(QUERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
                         .exceptionally(t -> {
                             LOG.log(Level.FINE, t, t::getMessage);
-                            return true;
-                        }))
-                .collect(Collectors.toList());
-        return CompletableFuture.allOf(provides.toArray(new CompletableFuture[0]));
-    }
-
-    public CompletableFuture<Void> publishIpnsValue(PrivKey priv, Multihash publisher, Multihash value, long sequence, Host us) {
-        int hours = 1;
-        LocalDateTime expiry = LocalDateTime.now().plusHours(hours);
-        long ttl = hours * 3600_000_000_000L;
-
-        int publishes = 0;
-        while (publishes < 20) {
-            List<PeerAddresses> closestPeers = findClosestPeers(publisher, 20, us);
-            for (PeerAddresses peer : closestPeers) {
-                boolean success = dialPeer(peer, us).join().putValue("/ipfs/" + value, expiry, sequence,
-                        ttl, publisher, priv).join();
-                if (success)
-                    publishes++;
+                            return false;
+                        })
+                        .thenAccept(stored -> {
+                            if (stored && acks.incrementAndGet() >= minAcks)
+                                res.complete(acks.get());
+                            if (pending.decrementAndGet() == 0)
+                                res.completeExceptionally(new IllegalStateException("Only " + acks.get() + " of "
+                                        + peers.size() + " peers stored IPNS record, needed " + minAcks));
+                        });
             }
-        }
-        return CompletableFuture.completedFuture(null);
+            return res;
+        });
     }
 
     public CompletableFuture<String> resolveIpnsValue(Multihash publisher, Host us) {
-        List<PeerAddresses> closestPeers = findClosestPeers(publisher, 20, us);
-        List<IpnsRecord> candidates = new ArrayList<>();
-        Set<PeerAddresses> queryCandidates = new HashSet<>();
-        Set<Multihash> queriedPeers = new HashSet<>();
-        for (PeerAddresses peer : closestPeers) {
-            if (queriedPeers.contains(peer.peerId))
-                continue;
-            queriedPeers.add(peer.peerId);
-            GetResult res = dialPeer(peer, us).join().getValue(publisher).join();
-            if (res.record.isPresent() && res.record.get().publisher.equals(publisher))
-                candidates.add(res.record.get().value);
-            queryCandidates.addAll(res.closerPeers);
+        return resolveIpnsValue(publisher, us, DEFAULT_IPNS_QUORUM);
+    }
+
+    /** Resolve the latest value published under an IPNS key.
+     *
+     *  If we hold an unexpired record for the key it is returned immediately, and the DHT is queried in the background
+     *  to find any newer record. Otherwise the peers closest to the key are queried in parallel, following the closer
+     *  peers they return, until quorum valid records agree on the highest sequence seen, or the lookup runs out of
+     *  peers. The best record found is stored locally.
+     *
+     * @param quorum the number of peers that must return a record with the highest sequence before we stop looking
+     */
+    public CompletableFuture<String> resolveIpnsValue(Multihash publisher, Host us, int quorum) {
+        if (quorum < 1)
+            throw new IllegalArgumentException("Quorum must be positive");
+        Optional<IpnsRecord> local = engine.getLocalRecord(publisher);
+        if (local.isPresent()) {
+            if (refreshing.add(publisher))
+                resolveIpnsRecord(publisher, us, quorum)
+                        .whenComplete((r, t) -> refreshing.remove(publisher));
+            return CompletableFuture.completedFuture(local.get().value);
         }
+        return resolveIpnsRecord(publisher, us, quorum)
+                .thenApply(r -> r.value);
+    }
 
-        // Validate and sort records by sequence number
-        List<IpnsRecord> records = candidates.stream().sorted().collect(Collectors.toList());
-        return CompletableFuture.completedFuture(records.get(records.size() - 1).value);
+    private CompletableFuture<IpnsRecord> resolveIpnsRecord(Multihash publisher, Host us, int quorum) {
+        byte[] key = IPNS.getKey(publisher);
+        List<IpnsRecord> records = new ArrayList<>();
+        IterativeLookup lookup = new IterativeLookup(Hash.sha256(key), engine.ids, 20, alpha, disjointPaths);
+        return lookup.run(engine.getKClosestPeers(key), target -> dialPeer(target, us)
+                        .orTimeout(QUERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                        .thenCompose(c -> c.getValue(publisher).orTimeout(QUERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+                        .whenComplete((res, t) -> {
+                            if (t != null)
+                                engine.peerFailed(target.peerId);
+                        })
+                        .thenApply(res -> {
+                            if (res.record.isPresent() && res.record.get().publisher.equals(publisher)) {
+                                boolean quorumReached;
+                                synchronized (records) {
+                                    records.add(res.record.get().value);
+                                    long highest = records.stream().mapToLong(r -> r.sequence).max().getAsLong();
+                                    quorumReached = records.stream().filter(r -> r.sequence == highest).count() >= quorum;
+                                }
+                                if (quorumReached)
+                                    lookup.stop();
+                            }
+                            return res.closerPeers;
+                        }))
+                .thenApply(x -> {
+                    Optional<IpnsRecord> best;
+                    synchronized (records) {
+                        best = records.stream().max(Comparator.naturalOrder());
+                    }
+                    if (best.isEmpty())
+                        throw new IllegalStateException("No IPNS record found for " + publisher);
+                    engine.putLocalRecord(publisher, best.get());
+                    return best.get();
+                });
     }
 }
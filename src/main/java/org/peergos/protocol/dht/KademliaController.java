@@ -20,10 +20,19 @@ public interface KademliaController {
 
     CompletableFuture<Boolean> send(Dht.Message msg);
 
+    /** Close the underlying stream, once there is nothing more to send
+     *
+     */
+    default void close() {}
+
     default CompletableFuture<List<PeerAddresses>> closerPeers(Multihash peerID) {
+        return closerPeers(peerID.toBytes());
+    }
+
+    default CompletableFuture<List<PeerAddresses>> closerPeers(byte[] key) {
         return rpc(Dht.Message.newBuilder()
                 .setType(Dht.Message.MessageType.FIND_NODE)
-                .setKey(ByteString.copyFrom(peerID.toBytes()))
+                .setKey(ByteString.copyFrom(key))
                 .build())
                 .thenApply(resp -> resp.getCloserPeersList().stream()
                         .map(PeerAddresses::fromProtobuf)
@@ -49,26 +58,7 @@ public interface KademliaController {
 
     default CompletableFuture<Boolean> putValue(String pathToPublish, LocalDateTime expiry, long sequence,
                                                 long ttlNanos, Multihash peerId, PrivKey ourKey) {
-        byte[] cborEntryData = IPNS.createCborDataForIpnsEntry(pathToPublish, expiry,
-                Ipns.IpnsEntry.ValidityType.EOL_VALUE, sequence, ttlNanos);
-        String expiryString = IPNS.formatExpiry(expiry);
-        byte[] signature = ourKey.sign(IPNS.createSigV2Data(cborEntryData));
-        PubKey pubKey = ourKey.publicKey();
-        byte[] pubKeyProtobuf = Crypto.PublicKey.newBuilder()
-                .setType(pubKey.getKeyType())
-                .setData(ByteString.copyFrom(pubKey.raw()))
-                .build()
-                .toByteArray();
-        byte[] ipnsEntry = Ipns.IpnsEntry.newBuilder()
-                .setSequence(sequence)
-                .setTtl(ttlNanos)
-                .setValue(ByteString.copyFrom(pathToPublish.getBytes()))
-                .setValidityType(Ipns.IpnsEntry.ValidityType.EOL)
-                .setValidity(ByteString.copyFrom(expiryString.getBytes()))
-                .setData(ByteString.copyFrom(cborEntryData))
-                .setSignatureV2(ByteString.copyFrom(signature))
-                .setPubKey(ByteString.copyFrom(pubKeyProtobuf)) // not needed with Ed25519
-                .build().toByteArray();
+        byte[] ipnsEntry = IPNS.createSignedRecord(pathToPublish, expiry, sequence, ttlNanos, ourKey);
         return putValue(peerId, ipnsEntry);
     }
 
@@ -1,7 +1,6 @@
 package org.peergos.protocol.dht;
 
 import com.google.protobuf.*;
-import com.offbynull.kademlia.*;
 import io.ipfs.cid.*;
 import io.ipfs.multiaddr.*;
 import io.ipfs.multihash.Multihash;
@@ -20,13 +19,32 @@ public class KademliaEngine {
 
     private final ProviderStore providersStore;
     private final RecordStore ipnsStore;
-    public final Router router;
+    public final KademliaIds ids = new KademliaIds();
+    public final RoutingTable routingTable;
+    public final ValidatedRecordCache validatedRecords = new ValidatedRecordCache(ValidatedRecordCache.DEFAULT_CAPACITY);
     private AddressBook addressBook;
 
     public KademliaEngine(Multihash ourPeerId, ProviderStore providersStore, RecordStore ipnsStore) {
         this.providersStore = providersStore;
         this.ipnsStore = ipnsStore;
-        this.router = new Router(Id.create(ourPeerId.bareMultihash().toBytes(), 256), 2, 2, 2);
+        // bucket by distance from the hash of our id, as peers are placed by the hash of theirs
+        this.routingTable = new RoutingTable(ids.hash(ourPeerId), RoutingTable.DEFAULT_BUCKET_SIZE);
+    }
+
+    /**
+     *
+     * @return the record we hold for this publisher, if any and unexpired
+     */
+    public Optional<IpnsRecord> getLocalRecord(Multihash publisher) {
+        return ipnsStore.get(Cid.cast(publisher.toBytes()))
+                .filter(r -> r.expiry.isAfter(LocalDateTime.now()));
+    }
+
+    /** Store a validated record that we resolved or published
+     *
+     */
+    public void putLocalRecord(Multihash publisher, IpnsRecord record) {
+        ipnsStore.put(publisher, record);
     }
 
     public void setAddressBook(AddressBook addrs) {
@@ -34,35 +52,84 @@ public class KademliaEngine {
     }
 
     public void addOutgoingConnection(PeerId peer, Multiaddr addr) {
-        router.touch(Instant.now(), new Node(Id.create(Hash.sha256(peer.getBytes()), 256), peer.toString()));
+        routingTable.touch(peer, ids.hash(peer));
         addressBook.addAddrs(peer, 0, addr);
     }
 
     public void addIncomingConnection(PeerId peer, Multiaddr addr) {
-        router.touch(Instant.now(), new Node(Id.create(Hash.sha256(peer.getBytes()), 256), peer.toString()));
+        routingTable.touch(peer, ids.hash(peer));
         addressBook.addAddrs(peer, 0, addr);
     }
 
+    /** Drop a peer that failed to answer a query from the routing table, so a replacement can take its place
+     *
+     */
+    public void peerFailed(Multihash peer) {
+        routingTable.remove(PeerId.fromBase58(peer.toBase58()), ids.hash(peer));
+    }
+
     public List<PeerAddresses> getKClosestPeers(byte[] key) {
         int k = 20;
-        List<Node> nodes = router.find(Id.create(Hash.sha256(key), 256), k, false);
-        System.out.println("Nodes: " + nodes.size());
+        List<RoutingTable.Entry> nodes = routingTable.find(Hash.sha256(key), k);
         return nodes.stream()
-                .map(n -> {
-                    List<MultiAddress> addrs = addressBook.getAddrs(PeerId.fromBase58(n.getLink())).join()
-                            .stream()
-                            .map(m -> new MultiAddress(m.toString()))
-                            .collect(Collectors.toList());
-                    return new PeerAddresses(Multihash.fromBase58(n.getLink()), addrs);
-                })
+                .map(this::withAddresses)
+                .collect(Collectors.toList());
+    }
+
+    private PeerAddresses withAddresses(RoutingTable.Entry n) {
+        List<MultiAddress> addrs = addressBook.getAddrs(n.peer).join()
+                .stream()
+                .map(m -> new MultiAddress(m.toString()))
+                .collect(Collectors.toList());
+        return new PeerAddresses(Multihash.deserialize(n.peer.getBytes()), addrs);
+    }
+
+    /**
+     *
+     * @return every peer in the routing table that we know an address for
+     */
+    public List<PeerAddresses> getRoutingTablePeers() {
+        return routingTable.entries().stream()
+                .map(this::withAddresses)
+                .filter(p -> ! p.addresses.isEmpty())
                 .collect(Collectors.toList());
     }
 
+    /** Handle a request as cheaply as possible, when we are overloaded. Queries get closer peers only, without looking
+     *  in the record or provider stores, and writes are dropped.
+     *
+     */
+    public void shedRequest(Dht.Message msg, Stream stream) {
+        switch (msg.getType()) {
+            case GET_VALUE:
+            case GET_PROVIDERS:
+            case FIND_NODE: {
+                stream.writeAndFlush(msg.toBuilder()
+                        .addAllCloserPeers(getKClosestPeers(msg.getKey().toByteArray())
+                                .stream()
+                                .map(PeerAddresses::toProtobuf)
+                                .collect(Collectors.toList()))
+                        .build());
+                break;
+            }
+            default: break; // PUT_VALUE and ADD_PROVIDER are dropped
+        }
+    }
+
     public void receiveRequest(Dht.Message msg, PeerId source, Stream stream) {
-        System.out.println("Received: " + msg.getType());
         switch (msg.getType()) {
             case PUT_VALUE: {
-                Optional<IpnsMapping> mapping = IPNS.validateIpnsEntry(msg);
+                if (! msg.hasRecord() || ! IPNS.isIpnsKey(msg.getKey()))
+                    break;
+                Optional<IpnsRecord> existing = ipnsStore.get(IPNS.getCidFromKey(msg.getKey()));
+                if (existing.isPresent() && ValidatedRecordCache.isStale(msg, existing.get())) {
+                    // acknowledge a repeat of the record we hold, without storing it again
+                    if (msg.getKey().equals(msg.getRecord().getKey())
+                            && Arrays.equals(existing.get().raw, msg.getRecord().getValue().toByteArray()))
+                        stream.writeAndFlush(msg);
+                    break;
+                }
+                Optional<IpnsMapping> mapping = validatedRecords.validate(msg);
                 if (mapping.isPresent()) {
                     ipnsStore.put(mapping.get().publisher, mapping.get().value);
                     stream.writeAndFlush(msg);
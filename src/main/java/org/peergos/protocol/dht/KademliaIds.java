@@ -0,0 +1,87 @@
+package org.peergos.protocol.dht;
+
+import io.ipfs.multihash.Multihash;
+import io.libp2p.core.*;
+import org.peergos.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A bounded cache of the Kademlia ids of peers, which are the sha256 of their peer id, so each is only hashed once
+ *
+ */
+public class KademliaIds {
+    public static final int DEFAULT_CAPACITY = 50_000;
+
+    private final int capacity;
+    private final ConcurrentHashMap<Multihash, byte[]> ids = new ConcurrentHashMap<>();
+
+    public KademliaIds(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive");
+        this.capacity = capacity;
+    }
+
+    public KademliaIds() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     *
+     * @return the sha256 of the peer id, which must not be modified
+     */
+    public byte[] hash(Multihash peerId) {
+        byte[] existing = ids.get(peerId);
+        if (existing != null)
+            return existing;
+        byte[] hash = Hash.sha256(peerId.toBytes());
+        if (ids.size() >= capacity)
+            evict();
+        ids.putIfAbsent(peerId, hash);
+        return hash;
+    }
+
+    public byte[] hash(PeerId peer) {
+        return hash(Multihash.deserialize(peer.getBytes()));
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    /** Drop an arbitrary tenth of the cache, which is cheaper than tracking recency on every lookup
+     *
+     */
+    private void evict() {
+        int toRemove = Math.max(1, capacity / 10);
+        Iterator<Multihash> keys = ids.keySet().iterator();
+        while (toRemove-- > 0 && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    /**
+     *
+     * @return the XOR of the two ids, which compares unsigned as their Kademlia distance
+     */
+    public static byte[] distance(byte[] a, byte[] b) {
+        byte[] res = new byte[a.length];
+        for (int i = 0; i < a.length; i++)
+            res[i] = (byte) (a[i] ^ b[i]);
+        return res;
+    }
+
+    /**
+     *
+     * @return the number of leading bits the two ids have in common
+     */
+    public static int sharedPrefixBits(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int diff = (a[i] ^ b[i]) & 0xff;
+            if (diff != 0)
+                return i * 8 + Integer.numberOfLeadingZeros(diff) - 24;
+        }
+        return a.length * 8;
+    }
+}
@@ -4,17 +4,34 @@ import io.libp2p.core.*;
 import io.libp2p.protocol.*;
 import org.jetbrains.annotations.*;
 import org.peergos.protocol.dht.pb.Dht;
+import org.peergos.util.*;
 
 import java.util.concurrent.*;
 
 public class KademliaProtocol extends ProtobufProtocolHandler<KademliaController> {
     public static final int MAX_MESSAGE_SIZE = 1024*1024;
+    public static final int DEFAULT_REQUEST_THREADS = 4;
+    public static final int DEFAULT_REQUEST_QUEUE_SIZE = 1_000;
 
     private final KademliaEngine engine;
+    private final RequestLimiter limiter;
+    private final ThreadPoolExecutor requests;
 
     public KademliaProtocol(KademliaEngine engine) {
+        this(engine, new RequestLimiter(), DEFAULT_REQUEST_THREADS, DEFAULT_REQUEST_QUEUE_SIZE);
+    }
+
+    /** Inbound requests are admitted by the limiter, then handled by a pool of threads fed from a bounded queue.
+     *  Requests are shed when the limiter says so, or the queue is full.
+     *
+     */
+    public KademliaProtocol(KademliaEngine engine, RequestLimiter limiter, int requestThreads, int requestQueueSize) {
         super(Dht.Message.getDefaultInstance(), MAX_MESSAGE_SIZE, MAX_MESSAGE_SIZE);
         this.engine = engine;
+        this.limiter = limiter;
+        this.requests = new ThreadPoolExecutor(requestThreads, requestThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(requestQueueSize), Threads.daemon("Kademlia requests"));
+        this.requests.allowCoreThreadTimeOut(true);
     }
 
     @NotNull
@@ -55,6 +72,11 @@ public class KademliaProtocol extends ProtobufProtocolHandler<KademliaController
             return CompletableFuture.completedFuture(true);
         }
 
+        @Override
+        public void close() {
+            stream.close();
+        }
+
         @Override
         public void onMessage(@NotNull Stream stream, Dht.Message msg) {
             resp.complete(msg);
@@ -81,7 +103,20 @@ public class KademliaProtocol extends ProtobufProtocolHandler<KademliaController
 
         @Override
         public void onMessage(@NotNull Stream stream, Dht.Message msg) {
-            engine.receiveRequest(msg, stream.remotePeerId(), stream);
+            PeerId source = stream.remotePeerId();
+            RequestLimiter.Admission admission = limiter.admit(source);
+            if (admission == RequestLimiter.Admission.DROP)
+                return;
+            if (admission == RequestLimiter.Admission.SHED) {
+                engine.shedRequest(msg, stream);
+                return;
+            }
+            try {
+                requests.execute(() -> engine.receiveRequest(msg, source, stream));
+            } catch (RejectedExecutionException full) {
+                // don't do any work for it on the I/O thread, the sender will time out and retry elsewhere
+                limiter.droppedAfterAdmission();
+            }
         }
 
         @Override
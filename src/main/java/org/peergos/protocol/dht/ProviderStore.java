@@ -3,11 +3,22 @@ package org.peergos.protocol.dht;
 import io.ipfs.multihash.*;
 import org.peergos.*;
 
+import java.time.*;
 import java.util.*;
 
 public interface ProviderStore {
 
+    /** How long a provider record is kept without being republished
+     *
+     */
+    Duration PROVIDER_RECORD_TTL = Duration.ofHours(48);
+
     void addProvider(Multihash m, PeerAddresses peer);
 
     Set<PeerAddresses> getProviders(Multihash m);
+
+    /** Remove all expired provider records
+     *
+     */
+    default void removeExpired() {}
 }
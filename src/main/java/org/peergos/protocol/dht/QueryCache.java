@@ -0,0 +1,139 @@
+package org.peergos.protocol.dht;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/** A bounded cache of the results of DHT queries.
+ *
+ *  Concurrent queries for the same key share a single walk. Results are kept for the ttl, or the shorter negative ttl
+ *  if they found nothing, and failed queries are not cached at all.
+ */
+public class QueryCache<K, V> {
+
+    private final int capacity;
+    private final long ttlMillis, negativeTtlMillis;
+    private final Predicate<V> isNegative;
+    private final ConcurrentHashMap<K, Entry<V>> cache = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private static class Entry<V> {
+        public final CompletableFuture<V> result;
+        // Long.MAX_VALUE until the query completes
+        public volatile long expiry = Long.MAX_VALUE;
+
+        public Entry(CompletableFuture<V> result) {
+            this.result = result;
+        }
+    }
+
+    /**
+     *
+     * @param isNegative whether a result found nothing, so should only be cached for the negative ttl
+     */
+    public QueryCache(int capacity, long ttlMillis, long negativeTtlMillis, Predicate<V> isNegative) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive");
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.isNegative = isNegative;
+    }
+
+    /** Return the cached result, joining the query in flight if there is one, otherwise start the query
+     *
+     */
+    public CompletableFuture<V> get(K key, Supplier<CompletableFuture<V>> query) {
+        long now = System.currentTimeMillis();
+        Entry<V> existing = cache.get(key);
+        if (existing != null && existing.expiry > now) {
+            if (existing.result.isDone())
+                hits.increment();
+            else
+                coalesced.increment();
+            return existing.result;
+        }
+        if (existing == null && cache.size() >= capacity)
+            evict(now);
+
+        CompletableFuture<V> result = new CompletableFuture<>();
+        Entry<V> ours = new Entry<>(result);
+        Entry<V> winner = cache.compute(key, (k, current) ->
+                current != null && current.expiry > now ? current : ours);
+        if (winner != ours) {
+            coalesced.increment();
+            return winner.result;
+        }
+        misses.increment();
+        CompletableFuture<V> running;
+        try {
+            running = query.get();
+        } catch (Exception e) {
+            running = CompletableFuture.failedFuture(e);
+        }
+        running.whenComplete((res, t) -> {
+            if (t != null) {
+                cache.remove(key, ours);
+                result.completeExceptionally(t);
+            } else {
+                ours.expiry = System.currentTimeMillis() + (isNegative.test(res) ? negativeTtlMillis : ttlMillis);
+                result.complete(res);
+            }
+        });
+        return result;
+    }
+
+    /**
+     *
+     * @return the unexpired completed result for the key, if any, without starting a query
+     */
+    public Optional<V> getIfPresent(K key) {
+        Entry<V> existing = cache.get(key);
+        if (existing == null || existing.expiry <= System.currentTimeMillis() || ! existing.result.isDone()
+                || existing.result.isCompletedExceptionally())
+            return Optional.empty();
+        hits.increment();
+        return Optional.of(existing.result.join());
+    }
+
+    public void invalidate(K key) {
+        cache.remove(key);
+    }
+
+    /** Remove expired entries, then an arbitrary tenth of the rest if still full
+     *
+     */
+    private void evict(long now) {
+        cache.values().removeIf(e -> e.expiry <= now);
+        if (cache.size() < capacity)
+            return;
+        int toRemove = Math.max(1, capacity / 10);
+        Iterator<Map.Entry<K, Entry<V>>> entries = cache.entrySet().iterator();
+        while (toRemove > 0 && entries.hasNext()) {
+            // don't drop queries in flight, as others may be about to join them
+            if (entries.next().getValue().result.isDone()) {
+                entries.remove();
+                toRemove--;
+            }
+        }
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public Map<String, Object> toJson() {
+        long hits = this.hits.sum(), coalesced = this.coalesced.sum(), misses = this.misses.sum();
+        long total = hits + coalesced + misses;
+        Map<String, Object> res = new LinkedHashMap<>();
+        res.put("Size", cache.size());
+        res.put("Hits", hits);
+        res.put("Coalesced", coalesced);
+        res.put("Misses", misses);
+        res.put("HitRate", total == 0 ? 0.0 : (double) (hits + coalesced) / total);
+        return res;
+    }
+}
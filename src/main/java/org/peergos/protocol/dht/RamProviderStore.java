@@ -2,21 +2,123 @@ package org.peergos.protocol.dht;
 
 import io.ipfs.multihash.*;
 import org.peergos.*;
+import org.peergos.util.*;
 
+import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
-public class RamProviderStore implements ProviderStore {
+/** An in memory provider store.
+ *
+ *  Records are kept in a ConcurrentHashMap per key, so adds and gets for different keys don't contend. Each record
+ *  expires after the ttl, unless it is republished, and expired records are removed in the background. The number of
+ *  providers per key, and in total, are capped. When a key is full the record closest to expiry is replaced, and when
+ *  the store is full new records are dropped until enough expire.
+ */
+public class RamProviderStore implements ProviderStore, AutoCloseable {
+    public static final int DEFAULT_MAX_PROVIDERS_PER_KEY = 20;
+    public static final int DEFAULT_MAX_RECORDS = 1_000_000;
+    public static final Duration DEFAULT_CLEANUP_PERIOD = Duration.ofMinutes(10);
 
-    private final Map<Multihash, Set<PeerAddresses>> store = new HashMap<>();
+    private final ConcurrentHashMap<Multihash, ConcurrentHashMap<Multihash, Record>> store = new ConcurrentHashMap<>();
+    private final AtomicInteger records = new AtomicInteger();
+    private final long ttlMillis;
+    private final int maxProvidersPerKey, maxRecords;
+    // one per store, so a closed store isn't kept alive by a shared thread
+    private final ScheduledExecutorService cleaner =
+            Executors.newSingleThreadScheduledExecutor(Threads.daemon("Provider store cleanup"));
+
+    private static class Record {
+        public final PeerAddresses peer;
+        public final long expiry;
+
+        public Record(PeerAddresses peer, long expiry) {
+            this.peer = peer;
+            this.expiry = expiry;
+        }
+    }
+
+    public RamProviderStore(Duration ttl, int maxProvidersPerKey, int maxRecords, Duration cleanupPeriod) {
+        if (maxProvidersPerKey < 1 || maxRecords < 1)
+            throw new IllegalArgumentException("Provider limits must be positive");
+        this.ttlMillis = ttl.toMillis();
+        this.maxProvidersPerKey = maxProvidersPerKey;
+        this.maxRecords = maxRecords;
+        long period = cleanupPeriod.toMillis();
+        cleaner.scheduleAtFixedRate(this::removeExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public RamProviderStore() {
+        this(PROVIDER_RECORD_TTL, DEFAULT_MAX_PROVIDERS_PER_KEY, DEFAULT_MAX_RECORDS, DEFAULT_CLEANUP_PERIOD);
+    }
 
     @Override
-    public synchronized void addProvider(Multihash m, PeerAddresses peer) {
-        store.putIfAbsent(m, new HashSet<>());
-        store.get(m).add(peer);
+    public void addProvider(Multihash m, PeerAddresses peer) {
+        Record record = new Record(peer, System.currentTimeMillis() + ttlMillis);
+        store.compute(m, (k, providers) -> {
+            if (providers == null) {
+                if (! reserve())
+                    return null;
+                providers = new ConcurrentHashMap<>();
+                providers.put(peer.peerId, record);
+                return providers;
+            }
+            if (providers.replace(peer.peerId, record) != null)
+                return providers;
+            if (providers.size() >= maxProvidersPerKey) {
+                providers.values().stream()
+                        .min(Comparator.comparingLong(r -> r.expiry))
+                        .ifPresent(oldest -> providers.remove(oldest.peer.peerId));
+                providers.put(peer.peerId, record);
+            } else if (reserve())
+                providers.put(peer.peerId, record);
+            return providers;
+        });
+    }
+
+    private boolean reserve() {
+        while (true) {
+            int current = records.get();
+            if (current >= maxRecords)
+                return false;
+            if (records.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    @Override
+    public Set<PeerAddresses> getProviders(Multihash m) {
+        ConcurrentHashMap<Multihash, Record> providers = store.get(m);
+        if (providers == null)
+            return Collections.emptySet();
+        long now = System.currentTimeMillis();
+        Set<PeerAddresses> res = new HashSet<>();
+        for (Record r : providers.values())
+            if (r.expiry > now)
+                res.add(r.peer);
+        return res;
+    }
+
+    @Override
+    public void removeExpired() {
+        long now = System.currentTimeMillis();
+        for (Multihash key : store.keySet()) {
+            store.computeIfPresent(key, (k, providers) -> {
+                int before = providers.size();
+                providers.values().removeIf(r -> r.expiry <= now);
+                records.addAndGet(providers.size() - before);
+                return providers.isEmpty() ? null : providers;
+            });
+        }
+    }
+
+    public int size() {
+        return records.get();
     }
 
     @Override
-    public synchronized Set<PeerAddresses> getProviders(Multihash m) {
-        return store.getOrDefault(m, Collections.emptySet());
+    public void close() {
+        cleaner.shutdownNow();
     }
 }
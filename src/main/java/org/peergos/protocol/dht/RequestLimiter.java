@@ -0,0 +1,106 @@
+package org.peergos.protocol.dht;
+
+import io.libp2p.core.*;
+import org.peergos.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Admission control for inbound DHT requests.
+ *
+ *  Each peer has its own token bucket, and all peers share a global one. A request from a peer over its own limit is
+ *  dropped, so one hostile or buggy peer can't crowd out the rest. A request over the global limit is shed, i.e.
+ *  handled as cheaply as possible. When there are too many peers, buckets that have refilled are discarded, but a bucket
+ *  that is still in deficit never is, as that would hand its peer a fresh burst. New peers that don't fit all share one
+ *  overflow bucket, so churning through peer ids can't get around the per peer limit.
+ */
+public class RequestLimiter {
+    public static final double DEFAULT_PEER_RATE = 50;
+    public static final double DEFAULT_PEER_BURST = 500;
+    public static final double DEFAULT_GLOBAL_RATE = 2_000;
+    public static final double DEFAULT_GLOBAL_BURST = 4_000;
+    public static final int DEFAULT_MAX_PEERS = 10_000;
+
+    public enum Admission {ACCEPT, SHED, DROP}
+
+    private final double peerRate, peerBurst;
+    private final int maxPeers;
+    private final ConcurrentHashMap<PeerId, TokenBucket> peers = new ConcurrentHashMap<>();
+    private final TokenBucket overflow;
+    private final TokenBucket global;
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     *
+     * @param peerRate the sustained requests per second allowed from each peer
+     * @param peerBurst the number of requests a peer can send at once after being idle
+     * @param globalRate the sustained requests per second handled in full, across all peers
+     * @param globalBurst the number of requests handled in full at once, across all peers, after being idle
+     * @param maxPeers the number of peers with their own bucket, beyond which new peers share the overflow bucket
+     */
+    public RequestLimiter(double peerRate, double peerBurst, double globalRate, double globalBurst, int maxPeers) {
+        if (maxPeers < 1)
+            throw new IllegalArgumentException("Max peers must be positive");
+        this.peerRate = peerRate;
+        this.peerBurst = peerBurst;
+        this.maxPeers = maxPeers;
+        this.overflow = new TokenBucket(peerRate, peerBurst);
+        this.global = new TokenBucket(globalRate, globalBurst);
+    }
+
+    public RequestLimiter() {
+        this(DEFAULT_PEER_RATE, DEFAULT_PEER_BURST, DEFAULT_GLOBAL_RATE, DEFAULT_GLOBAL_BURST, DEFAULT_MAX_PEERS);
+    }
+
+    public Admission admit(PeerId source) {
+        TokenBucket bucket = peers.get(source);
+        if (bucket == null)
+            bucket = addPeer(source);
+        if (! bucket.tryAcquire(1)) {
+            dropped.increment();
+            return Admission.DROP;
+        }
+        if (! global.tryAcquire(1)) {
+            shed.increment();
+            return Admission.SHED;
+        }
+        accepted.increment();
+        return Admission.ACCEPT;
+    }
+
+    /** Record a request that was admitted, but then dropped because there was no room to queue it
+     *
+     */
+    public void droppedAfterAdmission() {
+        accepted.decrement();
+        dropped.increment();
+    }
+
+    /** Give a new peer its own bucket, after dropping the buckets that have refilled if there is no room. If every
+     *  bucket is still in deficit the peer shares the overflow bucket instead.
+     */
+    private synchronized TokenBucket addPeer(PeerId source) {
+        TokenBucket existing = peers.get(source);
+        if (existing != null)
+            return existing;
+        if (peers.size() >= maxPeers)
+            peers.values().removeIf(TokenBucket::isFull);
+        if (peers.size() >= maxPeers)
+            return overflow;
+        TokenBucket bucket = new TokenBucket(peerRate, peerBurst);
+        peers.put(source, bucket);
+        return bucket;
+    }
+
+    public Map<String, Object> toJson() {
+        Map<String, Object> res = new LinkedHashMap<>();
+        res.put("Peers", peers.size());
+        res.put("Accepted", accepted.sum());
+        res.put("Shed", shed.sum());
+        res.put("Dropped", dropped.sum());
+        return res;
+    }
+}
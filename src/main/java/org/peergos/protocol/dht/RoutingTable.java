@@ -0,0 +1,171 @@
+package org.peergos.protocol.dht;
+
+import io.libp2p.core.*;
+
+import java.util.*;
+
+/** A thread safe Kademlia routing table.
+ *
+ *  Peers are kept in one bucket per shared prefix length with our id, each holding up to k peers in least recently
+ *  seen order, plus up to k replacements that are promoted when a peer is removed. Writers lock only the bucket they
+ *  change, and publish a new immutable snapshot of it. Readers never lock, they just read the current snapshots.
+ */
+public class RoutingTable {
+    public static final int DEFAULT_BUCKET_SIZE = 20;
+
+    private final byte[] ourId;
+    private final int k;
+    private final Bucket[] buckets;
+
+    public static class Entry {
+        public final PeerId peer;
+        public final byte[] id;
+        public final long lastSeen;
+
+        public Entry(PeerId peer, byte[] id, long lastSeen) {
+            this.peer = peer;
+            this.id = id;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    private static class Bucket {
+        // replaced, never modified, so can be read without locking
+        volatile List<Entry> peers = Collections.emptyList();
+        // guarded by this
+        final LinkedList<Entry> replacements = new LinkedList<>();
+    }
+
+    /**
+     *
+     * @param ourId the sha256 of our peer id
+     * @param k the maximum number of peers per bucket
+     */
+    public RoutingTable(byte[] ourId, int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("Bucket size must be positive");
+        this.ourId = ourId;
+        this.k = k;
+        this.buckets = new Bucket[ourId.length * 8];
+        for (int i = 0; i < buckets.length; i++)
+            buckets[i] = new Bucket();
+    }
+
+    private static int indexOf(List<Entry> peers, PeerId peer) {
+        for (int i = 0; i < peers.size(); i++)
+            if (peers.get(i).peer.equals(peer))
+                return i;
+        return -1;
+    }
+
+    /** Record that we have just seen this peer
+     *
+     * @param id the sha256 of the peer's id
+     */
+    public void touch(PeerId peer, byte[] id) {
+        int prefix = KademliaIds.sharedPrefixBits(ourId, id);
+        if (prefix == buckets.length)
+            return; // ourselves
+        Bucket bucket = buckets[prefix];
+        Entry seen = new Entry(peer, id, System.currentTimeMillis());
+        synchronized (bucket) {
+            List<Entry> current = bucket.peers;
+            int existing = indexOf(current, peer);
+            if (existing < 0 && current.size() >= k) {
+                bucket.replacements.removeIf(e -> e.peer.equals(peer));
+                bucket.replacements.addLast(seen);
+                if (bucket.replacements.size() > k)
+                    bucket.replacements.removeFirst();
+                return;
+            }
+            List<Entry> updated = new ArrayList<>(current);
+            if (existing >= 0)
+                updated.remove(existing);
+            updated.add(seen);
+            bucket.peers = Collections.unmodifiableList(updated);
+        }
+    }
+
+    /** Remove an unresponsive peer, replacing it with the most recently seen replacement, if any
+     *
+     */
+    public void remove(PeerId peer, byte[] id) {
+        int prefix = KademliaIds.sharedPrefixBits(ourId, id);
+        if (prefix == buckets.length)
+            return;
+        Bucket bucket = buckets[prefix];
+        synchronized (bucket) {
+            bucket.replacements.removeIf(e -> e.peer.equals(peer));
+            List<Entry> current = bucket.peers;
+            int existing = indexOf(current, peer);
+            if (existing < 0)
+                return;
+            List<Entry> updated = new ArrayList<>(current);
+            updated.remove(existing);
+            if (! bucket.replacements.isEmpty())
+                updated.add(bucket.replacements.removeLast());
+            bucket.peers = Collections.unmodifiableList(updated);
+        }
+    }
+
+    /**
+     *
+     * @param key the sha256 of the key
+     * @return up to count peers, closest to the key first
+     */
+    public List<Entry> find(byte[] key, int count) {
+        if (count < 1)
+            return Collections.emptyList();
+        // furthest first, so the furthest of the closest so far is the one evicted
+        PriorityQueue<Candidate> closest = new PriorityQueue<>(Comparator.reverseOrder());
+        for (Bucket bucket : buckets) {
+            for (Entry e : bucket.peers) {
+                Candidate c = new Candidate(KademliaIds.distance(key, e.id), e);
+                if (closest.size() == count && c.compareTo(closest.peek()) >= 0)
+                    continue;
+                closest.add(c);
+                if (closest.size() > count)
+                    closest.poll();
+            }
+        }
+        List<Candidate> sorted = new ArrayList<>(closest);
+        Collections.sort(sorted);
+        List<Entry> res = new ArrayList<>(sorted.size());
+        for (Candidate c : sorted)
+            res.add(c.entry);
+        return res;
+    }
+
+    private static class Candidate implements Comparable<Candidate> {
+        final byte[] distance;
+        final Entry entry;
+
+        Candidate(byte[] distance, Entry entry) {
+            this.distance = distance;
+            this.entry = entry;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            return Arrays.compareUnsigned(distance, other.distance);
+        }
+    }
+
+    /**
+     *
+     * @return every peer in the table, furthest buckets first
+     */
+    public List<Entry> entries() {
+        List<Entry> res = new ArrayList<>();
+        for (Bucket bucket : buckets)
+            res.addAll(bucket.peers);
+        return res;
+    }
+
+    public int size() {
+        int total = 0;
+        for (Bucket bucket : buckets)
+            total += bucket.peers.size();
+        return total;
+    }
+}
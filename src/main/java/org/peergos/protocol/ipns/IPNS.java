@@ -34,8 +34,12 @@ public class IPNS {
         return bout.toByteArray();
     }
 
+    public static boolean isIpnsKey(ByteString key) {
+        return key.startsWith(ByteString.copyFrom("/ipns/".getBytes(StandardCharsets.UTF_8)));
+    }
+
     public static Cid getCidFromKey(ByteString key) {
-        if (! key.startsWith(ByteString.copyFrom("/ipns/".getBytes(StandardCharsets.UTF_8))))
+        if (! isIpnsKey(key))
             throw new IllegalStateException("Unknown IPNS key space: " + key);
         return Cid.cast(key.substring(6).toByteArray());
     }
@@ -55,6 +59,37 @@ public class IPNS {
         return CborObject.CborMap.build(state).serialize();
     }
 
+    /**
+     *
+     * @return a serialized IPNS entry, signed by priv, mapping its public key to the path
+     */
+    public static byte[] createSignedRecord(String pathToPublish,
+                                            LocalDateTime expiry,
+                                            long sequence,
+                                            long ttlNanos,
+                                            PrivKey priv) {
+        byte[] cborEntryData = createCborDataForIpnsEntry(pathToPublish, expiry,
+                Ipns.IpnsEntry.ValidityType.EOL_VALUE, sequence, ttlNanos);
+        String expiryString = formatExpiry(expiry);
+        byte[] signature = priv.sign(createSigV2Data(cborEntryData));
+        PubKey pubKey = priv.publicKey();
+        byte[] pubKeyProtobuf = Crypto.PublicKey.newBuilder()
+                .setType(pubKey.getKeyType())
+                .setData(ByteString.copyFrom(pubKey.raw()))
+                .build()
+                .toByteArray();
+        return Ipns.IpnsEntry.newBuilder()
+                .setSequence(sequence)
+                .setTtl(ttlNanos)
+                .setValue(ByteString.copyFrom(pathToPublish.getBytes()))
+                .setValidityType(Ipns.IpnsEntry.ValidityType.EOL)
+                .setValidity(ByteString.copyFrom(expiryString.getBytes()))
+                .setData(ByteString.copyFrom(cborEntryData))
+                .setSignatureV2(ByteString.copyFrom(signature))
+                .setPubKey(ByteString.copyFrom(pubKeyProtobuf)) // not needed with Ed25519
+                .build().toByteArray();
+    }
+
     public static byte[] createSigV2Data(byte[] data) {
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
         try {
@@ -0,0 +1,99 @@
+package org.peergos.protocol.ipns;
+
+import com.google.protobuf.*;
+import org.peergos.*;
+import org.peergos.protocol.dht.pb.*;
+import org.peergos.protocol.ipns.pb.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Remembers the result of validating each IPNS record, so a record put to us over and over is only verified once.
+ *
+ *  Results are keyed by the sha256 of the serialized record, which includes its key, and invalid records are
+ *  remembered too. A record that was valid is rechecked for expiry on every hit.
+ */
+public class ValidatedRecordCache {
+    public static final int DEFAULT_CAPACITY = 10_000;
+
+    private final int capacity;
+    private final ConcurrentHashMap<ByteString, Optional<IpnsMapping>> results = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ValidatedRecordCache(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive");
+        this.capacity = capacity;
+    }
+
+    /** The same as IPNS.validateIpnsEntry, without the work for records that have been validated before
+     *
+     */
+    public Optional<IpnsMapping> validate(Dht.Message msg) {
+        if (! msg.hasRecord() || ! msg.getKey().equals(msg.getRecord().getKey()))
+            return Optional.empty();
+        ByteString id = ByteString.copyFrom(Hash.sha256(msg.getRecord().toByteArray()));
+        Optional<IpnsMapping> cached = results.get(id);
+        if (cached != null) {
+            hits.increment();
+            return cached.filter(m -> m.value.expiry.isAfter(LocalDateTime.now()));
+        }
+        misses.increment();
+        Optional<IpnsMapping> res = IPNS.validateIpnsEntry(msg);
+        if (results.size() >= capacity)
+            evict();
+        results.put(id, res);
+        return res;
+    }
+
+    /** Drop expired results, then an arbitrary tenth of the rest if still full
+     *
+     */
+    private void evict() {
+        LocalDateTime now = LocalDateTime.now();
+        results.values().removeIf(r -> r.isPresent() && r.get().value.expiry.isBefore(now));
+        if (results.size() < capacity)
+            return;
+        int toRemove = Math.max(1, capacity / 10);
+        Iterator<ByteString> ids = results.keySet().iterator();
+        while (toRemove-- > 0 && ids.hasNext()) {
+            ids.next();
+            ids.remove();
+        }
+    }
+
+    /** Whether a put could not replace the record we hold, judged from its unverified sequence and validity. Such puts
+     *  can be rejected without verifying their signature, because even a valid one would not be stored.
+     *
+     */
+    public static boolean isStale(Dht.Message msg, IpnsRecord existing) {
+        try {
+            Ipns.IpnsEntry entry = Ipns.IpnsEntry.parseFrom(msg.getRecord().getValue());
+            if (entry.getSequence() != existing.sequence)
+                return entry.getSequence() < existing.sequence;
+            byte[] validity = entry.getValidity().toByteArray();
+            LocalDateTime expiry = LocalDateTime.parse(new String(validity).substring(0, validity.length - 1), IPNS.rfc3339nano);
+            return ! expiry.isAfter(existing.expiry);
+        } catch (InvalidProtocolBufferException | RuntimeException e) {
+            // it would fail validation anyway
+            return true;
+        }
+    }
+
+    public int size() {
+        return results.size();
+    }
+
+    public Map<String, Object> toJson() {
+        long hits = this.hits.sum(), misses = this.misses.sum();
+        Map<String, Object> res = new LinkedHashMap<>();
+        res.put("Size", results.size());
+        res.put("Hits", hits);
+        res.put("Misses", misses);
+        res.put("HitRate", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        return res;
+    }
+}
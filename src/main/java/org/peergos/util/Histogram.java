@@ -0,0 +1,77 @@
+package org.peergos.util;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/** A lock free histogram with fixed bucket upper bounds, suitable for recording on hot paths
+ *
+ */
+public class Histogram {
+    public static final long[] MILLIS_BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1_000, 2_000, 5_000, 10_000, 30_000, 60_000};
+
+    private final long[] bounds;
+    private final LongAdder[] counts;
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public Histogram(long[] bounds) {
+        this.bounds = bounds.clone();
+        // the last bucket holds everything above the largest bound
+        this.counts = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = new LongAdder();
+    }
+
+    public static Histogram millis() {
+        return new Histogram(MILLIS_BUCKETS);
+    }
+
+    public void record(long value) {
+        int index = Arrays.binarySearch(bounds, value);
+        counts[index >= 0 ? index : -index - 1].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long count() {
+        long total = 0;
+        for (LongAdder count : counts)
+            total += count.sum();
+        return total;
+    }
+
+    /**
+     *
+     * @return an upper bound on the given quantile, from the bucket it falls in
+     */
+    public long quantile(double q) {
+        long[] snapshot = new long[counts.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            snapshot[i] = counts[i].sum();
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return 0;
+        long target = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            seen += snapshot[i];
+            if (seen >= target)
+                return bounds[i];
+        }
+        return max.get();
+    }
+
+    public Map<String, Object> toJson() {
+        Map<String, Object> res = new LinkedHashMap<>();
+        long count = count();
+        res.put("Count", count);
+        res.put("Mean", count == 0 ? 0 : sum.sum() / count);
+        res.put("P50", quantile(0.5));
+        res.put("P90", quantile(0.9));
+        res.put("P99", quantile(0.99));
+        res.put("Max", max.get());
+        return res;
+    }
+}
@@ -0,0 +1,32 @@
+package org.peergos.util;
+
+/** Spaces out acquisitions so that on average at most permitsPerSecond are granted each second
+ *
+ */
+public class RateLimiter {
+    private final long nanosPerPermit;
+    // guarded by this
+    private long nextFree = System.nanoTime();
+
+    public RateLimiter(double permitsPerSecond) {
+        if (permitsPerSecond <= 0)
+            throw new IllegalArgumentException("Rate must be positive");
+        this.nanosPerPermit = (long) (1_000_000_000L / permitsPerSecond);
+    }
+
+    /** Block until the permits are available
+     *
+     */
+    public void acquire(int permits) throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (nextFree < now)
+                nextFree = now;
+            wait = nextFree - now;
+            nextFree += permits * nanosPerPermit;
+        }
+        if (wait > 0)
+            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+    }
+}
@@ -0,0 +1,16 @@
+package org.peergos.util;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class Threads {
+
+    public static ThreadFactory daemon(String name) {
+        AtomicInteger counter = new AtomicInteger(0);
+        return r -> {
+            Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
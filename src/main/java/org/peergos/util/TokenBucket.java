@@ -0,0 +1,46 @@
+package org.peergos.util;
+
+/** A token bucket, which allows bursts of up to capacity permits and refills at permitsPerSecond. Unlike RateLimiter
+ *  it never blocks, callers are just told whether they can go ahead.
+ *
+ */
+public class TokenBucket {
+    private final double capacity, permitsPerNano;
+    // guarded by this
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    public TokenBucket(double permitsPerSecond, double capacity) {
+        if (permitsPerSecond <= 0 || capacity < 1)
+            throw new IllegalArgumentException("Rate and capacity must be positive");
+        this.capacity = capacity;
+        this.permitsPerNano = permitsPerSecond / 1_000_000_000L;
+        this.tokens = capacity;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * permitsPerNano);
+        lastRefill = now;
+    }
+
+    /**
+     *
+     * @return whether the permits were available, in which case they are taken
+     */
+    public synchronized boolean tryAcquire(int permits) {
+        refill();
+        if (tokens < permits)
+            return false;
+        tokens -= permits;
+        return true;
+    }
+
+    /** Whether the bucket has refilled completely, so could be replaced by a new one without changing anything
+     *
+     */
+    public synchronized boolean isFull() {
+        refill();
+        return tokens >= capacity;
+    }
+}
@@ -0,0 +1,70 @@
+package org.peergos;
+
+import io.libp2p.core.*;
+import io.libp2p.core.multiformats.*;
+import org.junit.*;
+
+import java.nio.file.*;
+import java.util.*;
+
+public class AddressBookTest {
+
+    private static Multiaddr addr(int port) {
+        return Multiaddr.fromString("/ip4/127.0.0.1/tcp/" + port);
+    }
+
+    @Test
+    public void addressesExpire() throws Exception {
+        RamAddressBook book = new RamAddressBook(100, 10, 200);
+        PeerId peer = PeerId.random();
+        book.addAddrs(peer, 0, addr(1000)).join();
+        book.addAddrs(peer, 60_000, addr(1001)).join();
+        Assert.assertEquals(2, book.getAddrs(peer).join().size());
+
+        Thread.sleep(300);
+        Assert.assertEquals(List.of(addr(1001)), new ArrayList<>(book.getAddrs(peer).join()));
+    }
+
+    @Test
+    public void snapshotsAreImmutable() {
+        RamAddressBook book = new RamAddressBook();
+        PeerId peer = PeerId.random();
+        book.addAddrs(peer, 0, addr(1000)).join();
+        Collection<Multiaddr> snapshot = book.getAddrs(peer).join();
+        book.addAddrs(peer, 0, addr(1001)).join();
+        Assert.assertEquals(1, snapshot.size());
+        try {
+            snapshot.add(addr(1002));
+            Assert.fail();
+        } catch (UnsupportedOperationException expected) {}
+    }
+
+    @Test
+    public void boundedPeersAndAddresses() {
+        RamAddressBook book = new RamAddressBook(100, 4, 60_000);
+        PeerId first = PeerId.random();
+        for (int i = 0; i < 10; i++)
+            book.addAddrs(first, 1_000 + i, addr(1000 + i)).join();
+        Collection<Multiaddr> kept = book.getAddrs(first).join();
+        Assert.assertEquals(4, kept.size());
+        Assert.assertTrue("Latest expiring kept", kept.contains(addr(1009)));
+
+        for (int i = 0; i < 1000; i++)
+            book.addAddrs(PeerId.random(), 0, addr(2000)).join();
+        Assert.assertTrue(book.size() <= 100);
+    }
+
+    @Test
+    public void persistence() throws Exception {
+        RamAddressBook book = new RamAddressBook();
+        PeerId peer = PeerId.random();
+        book.setAddrs(peer, 0, addr(1000), addr(1001)).join();
+        Path file = Files.createTempDirectory("addresses").resolve("addresses.snapshot");
+        book.saveTo(file);
+
+        RamAddressBook reloaded = new RamAddressBook();
+        Assert.assertEquals(1, reloaded.loadFrom(file));
+        Assert.assertEquals(new HashSet<>(book.getAddrs(peer).join()), new HashSet<>(reloaded.getAddrs(peer).join()));
+        Assert.assertEquals(0, reloaded.loadFrom(file.resolveSibling("missing")));
+    }
+}
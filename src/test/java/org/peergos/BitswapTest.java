@@ -1,10 +1,13 @@
 package org.peergos;
 
 import io.ipfs.cid.*;
+import io.ipfs.multiaddr.*;
+import io.ipfs.multihash.Multihash;
 import io.libp2p.core.*;
 import io.libp2p.core.multiformats.*;
 import org.junit.*;
 import org.peergos.blockstore.*;
+import org.peergos.cbor.*;
 import org.peergos.protocol.bitswap.*;
 import org.peergos.protocol.dht.*;
 
@@ -43,4 +46,62 @@ public class BitswapTest {
             node2.stop();
         }
     }
+
+    @Test
+    public void getDag() throws Exception {
+        HostBuilder builder1 = HostBuilder.create(TestPorts.getPort(),
+                new RamProviderStore(), new RamRecordStore(), new RamBlockstore(), (c, b, p, a) -> CompletableFuture.completedFuture(true));
+        Host node1 = builder1.build();
+        RamBlockstore blockstore2 = new RamBlockstore();
+        HostBuilder builder2 = HostBuilder.create(TestPorts.getPort(),
+                new RamProviderStore(), new RamRecordStore(), blockstore2, (c, b, p, a) -> CompletableFuture.completedFuture(true));
+        Host node2 = builder2.build();
+        node1.start().join();
+        node2.start().join();
+        try {
+            Multiaddr address2 = node2.listenAddresses().get(0);
+            Cid leaf1 = blockstore2.put("leaf 1".getBytes(StandardCharsets.UTF_8), Cid.Codec.Raw).join();
+            Cid leaf2 = blockstore2.put("leaf 2".getBytes(StandardCharsets.UTF_8), Cid.Codec.Raw).join();
+            Cid mid = blockstore2.put(CborObject.CborMap.build(Map.of(
+                    "leaf", new CborObject.CborMerkleLink(leaf1))).toByteArray(), Cid.Codec.DagCbor).join();
+            Cid root = blockstore2.put(CborObject.CborMap.build(Map.of(
+                    "mid", new CborObject.CborMerkleLink(mid),
+                    "leaf", new CborObject.CborMerkleLink(leaf2))).toByteArray(), Cid.Codec.DagCbor).join();
+
+            Bitswap bitswap1 = builder1.getBitswap().get();
+            PeerAddresses provider = new PeerAddresses(Multihash.deserialize(address2.getPeerId().getBytes()),
+                    List.of(new MultiAddress(address2.toString())));
+            DagFetcher fetcher = new DagFetcher(new RamBlockstore(),
+                    () -> bitswap1.newSession(node1, c -> CompletableFuture.completedFuture(List.of(provider))));
+
+            Set<Cid> received = ConcurrentHashMap.newKeySet();
+            CompletableFuture<Boolean> done = new CompletableFuture<>();
+            fetcher.getDag(root, Optional.empty(), 2, false).subscribe(new Flow.Subscriber<>() {
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    subscription.request(Long.MAX_VALUE);
+                }
+
+                @Override
+                public void onNext(HashedBlock block) {
+                    received.add(block.hash);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    done.completeExceptionally(t);
+                }
+
+                @Override
+                public void onComplete() {
+                    done.complete(true);
+                }
+            });
+            done.get(30, TimeUnit.SECONDS);
+            Assert.assertEquals(Set.of(root, mid, leaf1, leaf2), received);
+        } finally {
+            node1.stop();
+            node2.stop();
+        }
+    }
 }
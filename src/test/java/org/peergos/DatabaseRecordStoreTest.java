@@ -1,12 +1,15 @@
 package org.peergos;
 import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
 import org.junit.Assert;
 import org.junit.Test;
 import org.peergos.protocol.dht.DatabaseRecordStore;
 import org.peergos.protocol.ipns.IpnsRecord;
 
+import java.nio.file.*;
 import java.time.LocalDateTime;
-import java.util.Optional;
+import java.util.*;
+import java.util.concurrent.*;
 public class DatabaseRecordStoreTest {
 
     @Test
@@ -37,4 +40,49 @@ public class DatabaseRecordStoreTest {
             throw new IllegalStateException(ex);
         }
     }
+
+    @Test
+    public void concurrentPutsAreBatchedAndPersisted() throws Exception {
+        Path dir = Files.createTempDirectory("records");
+        String location = dir.resolve("records").toString();
+        LocalDateTime expiry = LocalDateTime.now().plusHours(1);
+        List<Cid> keys = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            keys.add(new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256(new byte[]{(byte) i, (byte) (i >> 8)})));
+
+        try (DatabaseRecordStore bs = new DatabaseRecordStore(location)) {
+            ExecutorService pool = Executors.newFixedThreadPool(8);
+            List<Future<?>> puts = new ArrayList<>();
+            for (int i = 0; i < keys.size(); i++) {
+                int index = i;
+                puts.add(pool.submit(() -> bs.put(keys.get(index),
+                        new IpnsRecord(("raw" + index).getBytes(), index, 2, expiry, "value" + index))));
+            }
+            for (Future<?> put : puts)
+                put.get();
+            pool.shutdown();
+            // queued puts are visible before they are written
+            Assert.assertEquals(7, bs.get(keys.get(7)).get().sequence);
+        }
+
+        // closing flushed every queued put
+        try (DatabaseRecordStore bs = new DatabaseRecordStore(location)) {
+            for (int i = 0; i < keys.size(); i++)
+                Assert.assertEquals("value" + i, bs.get(keys.get(i)).get().value);
+        }
+    }
+
+    @Test
+    public void expiredRecordsAreSwept() throws Exception {
+        try (DatabaseRecordStore bs = new DatabaseRecordStore("mem:")) {
+            Cid expired = Cid.decode("zb2rhYSxw4ZjuzgCnWSt19Q94ERaeFhu9uSqRgjSdx9bsgM6f");
+            Cid current = new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256("current".getBytes()));
+            bs.put(expired, new IpnsRecord("raw".getBytes(), 1, 2, LocalDateTime.now().minusHours(1), "old"));
+            bs.put(current, new IpnsRecord("raw".getBytes(), 1, 2, LocalDateTime.now().plusHours(1), "new"));
+            bs.flush();
+            bs.removeExpired();
+            Assert.assertTrue(bs.get(expired).isEmpty());
+            Assert.assertEquals("new", bs.get(current).get().value);
+        }
+    }
 }
@@ -0,0 +1,54 @@
+package org.peergos;
+
+import org.junit.*;
+import org.peergos.util.*;
+
+import java.util.*;
+
+public class HistogramTest {
+
+    @Test
+    public void empty() {
+        Histogram h = new Histogram(new long[]{10, 100, 1000});
+        Assert.assertEquals(0, h.count());
+        Assert.assertEquals(0, h.quantile(0.5));
+        Map<String, Object> json = h.toJson();
+        Assert.assertEquals(0L, json.get("Count"));
+        Assert.assertEquals(0L, json.get("Mean"));
+        Assert.assertEquals(0L, json.get("Max"));
+    }
+
+    @Test
+    public void valuesFallInTheFirstBucketAtOrAboveThem() {
+        Histogram h = new Histogram(new long[]{10, 100, 1000});
+        h.record(10);
+        Assert.assertEquals(10, h.quantile(1.0));
+        h.record(11);
+        Assert.assertEquals(100, h.quantile(1.0));
+        h.record(1000);
+        Assert.assertEquals(1000, h.quantile(1.0));
+        Assert.assertEquals(3, h.count());
+    }
+
+    @Test
+    public void percentiles() {
+        Histogram h = new Histogram(new long[]{10, 100, 1000});
+        // 11 values in the first bucket and 89 in the second
+        for (int i = 0; i < 100; i++)
+            h.record(i);
+        Assert.assertEquals(10, h.quantile(0.1));
+        Assert.assertEquals(100, h.quantile(0.12));
+        Assert.assertEquals(100, h.quantile(0.5));
+        Assert.assertEquals(100, h.quantile(1.0));
+
+        // anything above the largest bound is reported as the maximum seen
+        h.record(5000);
+        Assert.assertEquals(100, h.quantile(0.99));
+        Assert.assertEquals(5000, h.quantile(1.0));
+        Map<String, Object> json = h.toJson();
+        Assert.assertEquals(101L, json.get("Count"));
+        Assert.assertEquals((4950L + 5000) / 101, json.get("Mean"));
+        Assert.assertEquals(100L, json.get("P50"));
+        Assert.assertEquals(5000L, json.get("Max"));
+    }
+}
@@ -0,0 +1,107 @@
+package org.peergos;
+
+import io.ipfs.multihash.Multihash;
+import org.junit.*;
+import org.peergos.protocol.dht.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+public class IterativeLookupTest {
+
+    private static List<PeerAddresses> randomPeers(int count, Random rnd) {
+        List<PeerAddresses> res = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[32];
+            rnd.nextBytes(hash);
+            res.add(new PeerAddresses(new Multihash(Multihash.Type.sha2_256, hash), Collections.emptyList()));
+        }
+        return res;
+    }
+
+    private static byte[] randomKey(Random rnd) {
+        byte[] key = new byte[32];
+        rnd.nextBytes(key);
+        return Hash.sha256(key);
+    }
+
+    @Test
+    public void findsClosestWithBoundedParallelism() {
+        Random rnd = new Random(1);
+        List<PeerAddresses> network = randomPeers(500, rnd);
+        byte[] key = randomKey(rnd);
+        KademliaIds ids = new KademliaIds();
+        int k = 20, alpha = 3;
+        ScheduledExecutorService replies = Executors.newScheduledThreadPool(4);
+        AtomicInteger inFlight = new AtomicInteger(), maxInFlight = new AtomicInteger();
+
+        IterativeLookup lookup = new IterativeLookup(key, ids, k, alpha, 1);
+        List<PeerAddresses> result = lookup.run(network.subList(0, 10), peer -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            CompletableFuture<List<PeerAddresses>> reply = new CompletableFuture<>();
+            // every peer knows the whole network, and replies with the k closest it knows, after a random delay
+            List<PeerAddresses> closer = IterativeLookup.closest(network, key, ids, k);
+            replies.schedule(() -> {
+                inFlight.decrementAndGet();
+                reply.complete(closer);
+            }, 1 + rnd.nextInt(10), TimeUnit.MILLISECONDS);
+            return reply;
+        }).orTimeout(10, TimeUnit.SECONDS).join();
+
+        List<PeerAddresses> expected = IterativeLookup.closest(network, key, ids, k);
+        Assert.assertEquals(expected.stream().map(p -> p.peerId).collect(Collectors.toList()),
+                result.stream().map(p -> p.peerId).collect(Collectors.toList()));
+        Assert.assertTrue("At most alpha queries in flight", maxInFlight.get() <= alpha);
+        replies.shutdown();
+    }
+
+    @Test
+    public void disjointPathsQueryEachPeerOnce() {
+        Random rnd = new Random(2);
+        List<PeerAddresses> network = randomPeers(300, rnd);
+        byte[] key = randomKey(rnd);
+        KademliaIds ids = new KademliaIds();
+        Map<Multihash, Integer> queries = new ConcurrentHashMap<>();
+
+        IterativeLookup lookup = new IterativeLookup(key, ids, 10, 2, 3);
+        List<PeerAddresses> result = lookup.run(network.subList(0, 9), peer -> {
+            queries.merge(peer.peerId, 1, Integer::sum);
+            // each peer only knows a random sample of the network
+            List<PeerAddresses> sample = new ArrayList<>(network);
+            Collections.shuffle(sample, new Random(peer.peerId.hashCode()));
+            return CompletableFuture.completedFuture(sample.subList(0, 20));
+        }).orTimeout(10, TimeUnit.SECONDS).join();
+
+        Assert.assertEquals(10, result.size());
+        Assert.assertTrue("No peer queried twice", queries.values().stream().allMatch(n -> n == 1));
+    }
+
+    @Test
+    public void failedPeersAreSkipped() {
+        Random rnd = new Random(3);
+        List<PeerAddresses> network = randomPeers(50, rnd);
+        byte[] key = randomKey(rnd);
+        KademliaIds ids = new KademliaIds();
+        Set<Multihash> failing = network.stream().limit(25).map(p -> p.peerId).collect(Collectors.toSet());
+
+        IterativeLookup lookup = new IterativeLookup(key, ids, 5, 3, 1);
+        List<PeerAddresses> result = lookup.run(network, peer -> failing.contains(peer.peerId) ?
+                CompletableFuture.failedFuture(new TimeoutException()) :
+                CompletableFuture.completedFuture(Collections.emptyList()))
+                .orTimeout(10, TimeUnit.SECONDS).join();
+
+        Assert.assertEquals(5, result.size());
+        Assert.assertTrue(result.stream().noneMatch(p -> failing.contains(p.peerId)));
+    }
+
+    @Test
+    public void idCacheIsBounded() {
+        KademliaIds ids = new KademliaIds(100);
+        List<PeerAddresses> peers = randomPeers(1000, new Random(4));
+        for (PeerAddresses peer : peers)
+            Assert.assertArrayEquals(Hash.sha256(peer.peerId.toBytes()), ids.hash(peer.peerId));
+        Assert.assertTrue(ids.size() <= 100);
+    }
+}
@@ -1,11 +1,16 @@
 package org.peergos;
 
+import io.ipfs.multiaddr.*;
 import io.ipfs.multihash.Multihash;
 import io.libp2p.core.*;
+import io.libp2p.core.multiformats.*;
 import org.junit.*;
 import org.peergos.blockstore.*;
 import org.peergos.protocol.dht.*;
+import org.peergos.util.*;
 
+import java.nio.file.*;
+import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
 
@@ -48,4 +53,144 @@ public class KademliaTest {
             node2.stop();
         }
     }
+
+    private static Pair<Host, Kademlia> localDhtNode() {
+        return localDhtNode(new RamProviderStore());
+    }
+
+    private static Pair<Host, Kademlia> localDhtNode(ProviderStore providers) {
+        HostBuilder builder = new HostBuilder().generateIdentity();
+        Multihash peerId = Multihash.deserialize(builder.getPeerId().getBytes());
+        Kademlia dht = new Kademlia(new KademliaEngine(peerId, providers, new RamRecordStore()), true);
+        Host node = builder.listen(List.of(new MultiAddress("/ip4/127.0.0.1/tcp/" + TestPorts.getPort())))
+                .addProtocols(List.of(dht))
+                .build();
+        node.start().join();
+        return new Pair<>(node, dht);
+    }
+
+    @Test
+    public void routingTableSnapshot() throws Exception {
+        Pair<Host, Kademlia> node1 = localDhtNode(), node2 = localDhtNode(), node3 = localDhtNode();
+        try {
+            Host target = node2.left;
+            node1.right.dial(node1.left, target.getPeerId(), target.listenAddresses().toArray(new Multiaddr[0]))
+                    .getController().join();
+
+            Path snapshot = Files.createTempDirectory("dht").resolve("routing-table.snapshot");
+            node1.right.saveRoutingTable(snapshot);
+
+            // a fresh node can reach the saved peer without bootstrapping
+            Assert.assertEquals(1, node3.right.loadRoutingTable(snapshot, node3.left));
+            Multihash peerId2 = Multihash.deserialize(target.getPeerId().getBytes());
+            List<PeerAddresses> closest = node3.right.findClosestPeers(peerId2, 1, node3.left);
+            Assert.assertEquals(peerId2, closest.get(0).peerId);
+
+            Assert.assertEquals(0, node3.right.loadRoutingTable(snapshot.resolveSibling("missing"), node3.left));
+        } finally {
+            node1.left.stop();
+            node2.left.stop();
+            node3.left.stop();
+        }
+    }
+
+    @Test
+    public void providersAreStreamed() {
+        RamProviderStore providers = new RamProviderStore();
+        Multihash block = new Multihash(Multihash.Type.sha2_256, Hash.sha256("block".getBytes()));
+        for (int i = 0; i < 10; i++) {
+            byte[] id = Hash.sha256(new byte[]{(byte) i});
+            providers.addProvider(block, new PeerAddresses(new Multihash(Multihash.Type.sha2_256, id),
+                    List.of(new MultiAddress("/ip4/127.0.0.1/tcp/" + (4000 + i)))));
+        }
+        Pair<Host, Kademlia> node1 = localDhtNode(), node2 = localDhtNode(providers);
+        try {
+            Host server = node2.left;
+            node1.right.dial(node1.left, server.getPeerId(), server.listenAddresses().toArray(new Multiaddr[0]))
+                    .getController().join();
+
+            List<PeerAddresses> streamed = Collections.synchronizedList(new ArrayList<>());
+            Set<String> callbackThreads = ConcurrentHashMap.newKeySet();
+            ExecutorService callbacks = Executors.newSingleThreadExecutor(Threads.daemon("provider callbacks"));
+            List<PeerAddresses> found = node1.right.findProviders(block, node1.left, 20, p -> {
+                callbackThreads.add(Thread.currentThread().getName());
+                streamed.add(p);
+                return streamed.size() < 3;
+            }, callbacks).orTimeout(10, TimeUnit.SECONDS).join();
+            callbacks.shutdown();
+            Assert.assertEquals(3, streamed.size());
+            Assert.assertEquals(3, found.size());
+            Assert.assertEquals(Set.of("provider callbacks-1"), callbackThreads);
+        } finally {
+            node1.left.stop();
+            node2.left.stop();
+        }
+    }
+
+    @Test
+    public void resolveIpnsFromPeers() {
+        Pair<Host, Kademlia> publisher = localDhtNode(), server = localDhtNode(), client = localDhtNode();
+        try {
+            Host node2 = server.left;
+            Multiaddr[] serverAddrs = node2.listenAddresses().toArray(new Multiaddr[0]);
+            Multihash publisherId = Multihash.deserialize(publisher.left.getPeerId().getBytes());
+            String path = "/ipfs/" + new Multihash(Multihash.Type.sha2_256, Hash.sha256("value".getBytes()));
+            boolean stored = publisher.right.dial(publisher.left, node2.getPeerId(), serverAddrs).getController().join()
+                    .putValue(path, LocalDateTime.now().plusHours(1), 1, 3600_000_000_000L, publisherId,
+                            publisher.left.getPrivKey()).join();
+            Assert.assertTrue(stored);
+
+            client.right.dial(client.left, node2.getPeerId(), serverAddrs).getController().join();
+            // only one peer holds the record, so the lookup ends without reaching a quorum, but still returns it
+            String resolved = client.right.resolveIpnsValue(publisherId, client.left, 2)
+                    .orTimeout(10, TimeUnit.SECONDS).join();
+            Assert.assertEquals(path, resolved);
+
+            // the resolved record is now cached locally
+            Assert.assertEquals(path, client.right.resolveIpnsValue(publisherId, client.left).getNow(null));
+
+            Multihash unknown = Multihash.deserialize(new HostBuilder().generateIdentity().getPeerId().getBytes());
+            try {
+                client.right.resolveIpnsValue(unknown, client.left).orTimeout(10, TimeUnit.SECONDS).join();
+                Assert.fail("Resolved a key with no records");
+            } catch (CompletionException expected) {}
+        } finally {
+            publisher.left.stop();
+            server.left.stop();
+            client.left.stop();
+        }
+    }
+
+    @Test
+    public void publishIpnsWithAcks() {
+        Pair<Host, Kademlia> publisher = localDhtNode(), server = localDhtNode(), client = localDhtNode();
+        try {
+            Host node2 = server.left;
+            Multiaddr[] serverAddrs = node2.listenAddresses().toArray(new Multiaddr[0]);
+            publisher.right.dial(publisher.left, node2.getPeerId(), serverAddrs).getController().join();
+            client.right.dial(client.left, node2.getPeerId(), serverAddrs).getController().join();
+
+            Multihash publisherId = Multihash.deserialize(publisher.left.getPeerId().getBytes());
+            Multihash value = new Multihash(Multihash.Type.sha2_256, Hash.sha256("value".getBytes()));
+            int acks = publisher.right.publishIpnsValue(publisher.left.getPrivKey(), publisherId, value, 1, 1, publisher.left)
+                    .orTimeout(10, TimeUnit.SECONDS).join();
+            Assert.assertEquals(1, acks);
+            Assert.assertEquals("/ipfs/" + value, client.right.resolveIpnsValue(publisherId, client.left, 1)
+                    .orTimeout(10, TimeUnit.SECONDS).join());
+
+            // with too few peers to acknowledge, the publish fails rather than retrying forever
+            try {
+                publisher.right.publishIpnsValue(publisher.left.getPrivKey(), publisherId, value, 2, 5, publisher.left)
+                        .orTimeout(10, TimeUnit.SECONDS).join();
+                Assert.fail("Publish succeeded without enough acknowledgements");
+            } catch (CompletionException expected) {
+                Assert.assertTrue(expected.getCause() instanceof IllegalStateException);
+            }
+        } finally {
+            publisher.right.stopRepublishing(Multihash.deserialize(publisher.left.getPeerId().getBytes()));
+            publisher.left.stop();
+            server.left.stop();
+            client.left.stop();
+        }
+    }
 }
@@ -0,0 +1,108 @@
+package org.peergos;
+
+import com.google.protobuf.*;
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import io.libp2p.core.*;
+import org.junit.*;
+import org.peergos.protocol.bitswap.*;
+import org.peergos.protocol.bitswap.pb.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class PeerTaskQueueTest {
+
+    private static MessageOuterClass.Message.Block block(int size) {
+        return MessageOuterClass.Message.Block.newBuilder()
+                .setData(ByteString.copyFrom(new byte[size]))
+                .build();
+    }
+
+    private static Cid randomCid() {
+        byte[] hash = new byte[32];
+        new Random().nextBytes(hash);
+        return new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, hash);
+    }
+
+    @Test
+    public void byteBudgetPerWindow() throws Exception {
+        Map<PeerId, BitswapLedger> ledgers = new ConcurrentHashMap<>();
+        // a window long enough that only the first one happens during the test
+        PeerTaskQueue queue = new PeerTaskQueue(150 * 1024, 60_000, p -> ledgers.computeIfAbsent(p, BitswapLedger::new));
+        PeerId peer = PeerId.random();
+        BlockingQueue<MessageOuterClass.Message> sent = new LinkedBlockingQueue<>();
+        for (int i=0; i < 3; i++)
+            queue.addBlock(peer, randomCid(), block(100 * 1024), sent::add);
+
+        // by the time a message is sent, the round that sent it has finished taking from the queue
+        MessageOuterClass.Message first = sent.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(first);
+        Assert.assertEquals("A second block would overshoot the budget", 1, first.getPayloadCount());
+        Assert.assertEquals(2, queue.queuedTasks(peer));
+        Assert.assertTrue("Nothing else sent this window", sent.isEmpty());
+        Assert.assertFalse("More than a window's budget is queued", queue.hasCapacity(peer));
+        Assert.assertEquals(2, ledgers.get(peer).wantsOutstanding());
+    }
+
+    @Test
+    public void budgetIsKeptBetweenRequests() throws Exception {
+        Map<PeerId, BitswapLedger> ledgers = new ConcurrentHashMap<>();
+        PeerTaskQueue queue = new PeerTaskQueue(150 * 1024, 60_000, p -> ledgers.computeIfAbsent(p, BitswapLedger::new));
+        PeerId peer = PeerId.random();
+        BlockingQueue<MessageOuterClass.Message> sent = new LinkedBlockingQueue<>();
+        queue.addBlock(peer, randomCid(), block(100 * 1024), sent::add);
+        Assert.assertNotNull(sent.poll(5, TimeUnit.SECONDS));
+
+        // the queue is empty now, but the window that the first block was sent in hasn't ended
+        queue.addBlock(peer, randomCid(), block(100 * 1024), sent::add);
+        Assert.assertNull(sent.poll(500, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1, queue.queuedTasks(peer));
+    }
+
+    @Test
+    public void remainingBlocksSentInLaterWindows() throws Exception {
+        Map<PeerId, BitswapLedger> ledgers = new ConcurrentHashMap<>();
+        PeerTaskQueue queue = new PeerTaskQueue(150 * 1024, 100, p -> ledgers.computeIfAbsent(p, BitswapLedger::new));
+        PeerId peer = PeerId.random();
+        BlockingQueue<MessageOuterClass.Message> sent = new LinkedBlockingQueue<>();
+        // a block bigger than the whole budget still gets a window to itself
+        queue.addBlock(peer, randomCid(), block(200 * 1024), sent::add);
+        for (int i=0; i < 2; i++)
+            queue.addBlock(peer, randomCid(), block(100 * 1024), sent::add);
+
+        for (int i=0; i < 3; i++) {
+            MessageOuterClass.Message msg = sent.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(msg);
+            Assert.assertEquals(1, msg.getPayloadCount());
+        }
+        Assert.assertEquals(0, queue.queuedTasks(peer));
+        Assert.assertEquals(0, ledgers.get(peer).wantsOutstanding());
+    }
+
+    @Test
+    public void roundRobinAcrossPeers() throws Exception {
+        Map<PeerId, BitswapLedger> ledgers = new ConcurrentHashMap<>();
+        PeerTaskQueue queue = new PeerTaskQueue(Long.MAX_VALUE, 1_000, p -> ledgers.computeIfAbsent(p, BitswapLedger::new));
+        PeerId greedy = PeerId.random();
+        PeerId other = PeerId.random();
+        List<PeerId> sendOrder = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch allSent = new CountDownLatch(21);
+        // hold the queue's lock so everything is queued before the first round is scheduled
+        synchronized (queue) {
+            for (int i = 0; i < 20; i++)
+                queue.addBlock(greedy, randomCid(), block(100 * 1024), m -> {
+                    sendOrder.add(greedy);
+                    m.getPayloadList().forEach(b -> allSent.countDown());
+                });
+            queue.addBlock(other, randomCid(), block(100 * 1024), m -> {
+                sendOrder.add(other);
+                m.getPayloadList().forEach(b -> allSent.countDown());
+            });
+        }
+        Assert.assertTrue(allSent.await(5, TimeUnit.SECONDS));
+        int otherIndex = sendOrder.indexOf(other);
+        Assert.assertTrue("Other peer was served", otherIndex >= 0);
+        Assert.assertTrue("Other peer served before greedy peer finished", otherIndex < sendOrder.lastIndexOf(greedy));
+    }
+}
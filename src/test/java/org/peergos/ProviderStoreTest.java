@@ -0,0 +1,103 @@
+package org.peergos;
+
+import io.ipfs.multihash.Multihash;
+import org.junit.*;
+import org.peergos.protocol.dht.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.stream.*;
+
+public class ProviderStoreTest {
+
+    private static Multihash randomHash(Random rnd) {
+        byte[] hash = new byte[32];
+        rnd.nextBytes(hash);
+        return new Multihash(Multihash.Type.sha2_256, hash);
+    }
+
+    private static PeerAddresses randomPeer(Random rnd) {
+        return new PeerAddresses(randomHash(rnd), Collections.emptyList());
+    }
+
+    private static Set<Multihash> ids(Set<PeerAddresses> peers) {
+        return peers.stream().map(p -> p.peerId).collect(Collectors.toSet());
+    }
+
+    @Test
+    public void ramRecordsExpire() throws Exception {
+        Random rnd = new Random(1);
+        try (RamProviderStore store = new RamProviderStore(Duration.ofMillis(200), 20, 1000, Duration.ofHours(1))) {
+            Multihash block = randomHash(rnd);
+            PeerAddresses peer = randomPeer(rnd);
+            store.addProvider(block, peer);
+            store.addProvider(block, peer);
+            Assert.assertEquals(Set.of(peer.peerId), ids(store.getProviders(block)));
+            Assert.assertEquals(1, store.size());
+
+            Thread.sleep(300);
+            Assert.assertTrue(store.getProviders(block).isEmpty());
+            store.removeExpired();
+            Assert.assertEquals(0, store.size());
+        }
+    }
+
+    @Test
+    public void ramProvidersAreCapped() {
+        Random rnd = new Random(2);
+        try (RamProviderStore store = new RamProviderStore(Duration.ofHours(1), 5, 12, Duration.ofHours(1))) {
+            Multihash block = randomHash(rnd);
+            List<PeerAddresses> peers = IntStream.range(0, 10).mapToObj(i -> randomPeer(rnd)).collect(Collectors.toList());
+            for (PeerAddresses peer : peers)
+                store.addProvider(block, peer);
+            Set<Multihash> providers = ids(store.getProviders(block));
+            Assert.assertEquals(5, providers.size());
+            Assert.assertTrue(providers.contains(peers.get(peers.size() - 1).peerId));
+
+            for (int i = 0; i < 20; i++)
+                store.addProvider(randomHash(rnd), randomPeer(rnd));
+            Assert.assertEquals(12, store.size());
+        }
+    }
+
+    @Test
+    public void databaseRecords() throws Exception {
+        Random rnd = new Random(3);
+        try (DatabaseProviderStore store = new DatabaseProviderStore("mem:", Duration.ofMillis(200), 20, 1000, Duration.ofHours(1))) {
+            Multihash block = randomHash(rnd);
+            PeerAddresses peer1 = randomPeer(rnd), peer2 = randomPeer(rnd);
+            store.addProvider(block, peer1);
+            store.addProvider(block, peer1);
+            store.addProvider(block, peer2);
+            Assert.assertEquals(Set.of(peer1.peerId, peer2.peerId), ids(store.getProviders(block)));
+            Assert.assertTrue(store.getProviders(randomHash(rnd)).isEmpty());
+
+            Thread.sleep(300);
+            Assert.assertTrue(store.getProviders(block).isEmpty());
+            store.removeExpired();
+            Assert.assertEquals(0, store.size());
+        }
+    }
+
+    @Test
+    public void databaseProvidersAreCapped() throws Exception {
+        Random rnd = new Random(4);
+        try (DatabaseProviderStore store = new DatabaseProviderStore("mem:", Duration.ofHours(1), 5, 12, Duration.ofHours(1))) {
+            Multihash block = randomHash(rnd);
+            List<PeerAddresses> peers = IntStream.range(0, 10).mapToObj(i -> randomPeer(rnd)).collect(Collectors.toList());
+            for (PeerAddresses peer : peers) {
+                store.addProvider(block, peer);
+                // make sure each record expires after the one before it
+                Thread.sleep(2);
+            }
+            Set<Multihash> providers = ids(store.getProviders(block));
+            Assert.assertEquals(5, providers.size());
+            Assert.assertEquals(ids(new HashSet<>(peers.subList(5, 10))), providers);
+            Assert.assertEquals(5, store.size());
+
+            for (int i = 0; i < 20; i++)
+                store.addProvider(randomHash(rnd), randomPeer(rnd));
+            Assert.assertEquals(12, store.size());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.peergos;
+
+import org.junit.*;
+import org.peergos.protocol.dht.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class QueryCacheTest {
+
+    @Test
+    public void concurrentQueriesAreCoalesced() {
+        QueryCache<String, List<String>> cache = new QueryCache<>(100, 60_000, 1_000, List::isEmpty);
+        AtomicInteger walks = new AtomicInteger();
+        CompletableFuture<List<String>> walk = new CompletableFuture<>();
+        List<CompletableFuture<List<String>>> results = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            results.add(cache.get("key", () -> {
+                walks.incrementAndGet();
+                return walk;
+            }));
+        walk.complete(List.of("peer"));
+        for (CompletableFuture<List<String>> res : results)
+            Assert.assertEquals(List.of("peer"), res.join());
+        Assert.assertEquals(1, walks.get());
+
+        cache.get("key", () -> {
+            walks.incrementAndGet();
+            return CompletableFuture.completedFuture(List.of());
+        }).join();
+        Assert.assertEquals("Cached result reused", 1, walks.get());
+        Assert.assertEquals(10.0 / 11, (double) cache.toJson().get("HitRate"), 0.0001);
+    }
+
+    @Test
+    public void negativeResultsExpireSooner() throws Exception {
+        QueryCache<String, List<String>> cache = new QueryCache<>(100, 60_000, 100, List::isEmpty);
+        AtomicInteger walks = new AtomicInteger();
+        for (int i = 0; i < 3; i++)
+            cache.get("key", () -> {
+                walks.incrementAndGet();
+                return CompletableFuture.completedFuture(List.<String>of());
+            }).join();
+        Assert.assertEquals(1, walks.get());
+
+        Thread.sleep(200);
+        cache.get("key", () -> {
+            walks.incrementAndGet();
+            return CompletableFuture.completedFuture(List.<String>of());
+        }).join();
+        Assert.assertEquals(2, walks.get());
+    }
+
+    @Test
+    public void failuresAreNotCached() {
+        QueryCache<String, List<String>> cache = new QueryCache<>(100, 60_000, 1_000, List::isEmpty);
+        CompletableFuture<List<String>> failed = cache.get("key",
+                () -> CompletableFuture.failedFuture(new TimeoutException()));
+        Assert.assertTrue(failed.isCompletedExceptionally());
+        Assert.assertEquals(List.of("peer"),
+                cache.get("key", () -> CompletableFuture.completedFuture(List.of("peer"))).join());
+    }
+
+    @Test
+    public void bounded() {
+        QueryCache<Integer, List<String>> cache = new QueryCache<>(50, 60_000, 1_000, List::isEmpty);
+        for (int i = 0; i < 1000; i++)
+            cache.get(i, () -> CompletableFuture.completedFuture(List.of("peer"))).join();
+        Assert.assertTrue(cache.size() <= 50);
+    }
+}
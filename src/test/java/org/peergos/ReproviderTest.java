@@ -0,0 +1,79 @@
+package org.peergos;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+import org.peergos.blockstore.*;
+import org.peergos.protocol.dht.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class ReproviderTest {
+
+    @Test
+    public void regionsSharePrefix() {
+        Random rnd = new Random(1);
+        List<byte[]> ids = IntStream.range(0, 10_000)
+                .mapToObj(i -> {
+                    byte[] id = new byte[32];
+                    rnd.nextBytes(id);
+                    return id;
+                })
+                .sorted(Arrays::compareUnsigned)
+                .collect(Collectors.toList());
+        int prefixBits = 6;
+        List<List<byte[]>> regions = BatchProvider.regions(ids, id -> id, prefixBits);
+        Assert.assertEquals(1 << prefixBits, regions.size());
+        Assert.assertEquals(ids.size(), regions.stream().mapToInt(List::size).sum());
+        for (List<byte[]> region : regions)
+            for (byte[] id : region)
+                Assert.assertTrue(KademliaIds.sharedPrefixBits(region.get(0), id) >= prefixBits);
+
+        Assert.assertEquals(1, BatchProvider.regions(ids, id -> id, 0).size());
+    }
+
+    @Test
+    public void checkpointRoundTrip() throws Exception {
+        Path dir = Files.createTempDirectory("reprovide");
+        Path file = dir.resolve("reprovide.checkpoint");
+        Assert.assertTrue(PeriodicBlockProvider.Progress.read(file).isEmpty());
+
+        new PeriodicBlockProvider.Progress(1234, 100_000).write(file);
+        PeriodicBlockProvider.Progress read = PeriodicBlockProvider.Progress.read(file).get();
+        Assert.assertEquals(1234, read.cycleStartMillis);
+        Assert.assertEquals(100_000, read.blocksDone);
+
+        Files.writeString(file, "garbage");
+        Assert.assertTrue(PeriodicBlockProvider.Progress.read(file).isEmpty());
+    }
+
+    @Test
+    public void newBlocksAreBatchedBySizeAndTime() throws Exception {
+        ProvidingBlockstore blocks = new ProvidingBlockstore(new RamBlockstore(), 100);
+        for (int i = 0; i < 25; i++)
+            blocks.put(new byte[]{(byte) i}, Cid.Codec.Raw).join();
+        Assert.assertEquals(10, PeriodicBlockProvider.takeBatch(blocks.toPublish, 10, 10_000).size());
+
+        long start = System.currentTimeMillis();
+        Assert.assertEquals(15, PeriodicBlockProvider.takeBatch(blocks.toPublish, 100, 200).size());
+        Assert.assertTrue(System.currentTimeMillis() - start >= 200);
+    }
+
+    @Test
+    public void fullQueueDropsCids() throws Exception {
+        ProvidingBlockstore blocks = new ProvidingBlockstore(new RamBlockstore(), 2);
+        blocks.put(new byte[]{1}, Cid.Codec.Raw).join();
+        blocks.put(new byte[]{2}, Cid.Codec.Raw).join();
+        Cid third = blocks.put(new byte[]{3}, Cid.Codec.Raw).get(5, TimeUnit.SECONDS);
+        Assert.assertTrue(blocks.has(third).join());
+        Assert.assertEquals(2, blocks.provideQueueStats().get("QueueDepth"));
+        Assert.assertEquals(2L, blocks.provideQueueStats().get("Queued"));
+        Assert.assertEquals(1L, blocks.provideQueueStats().get("Dropped"));
+
+        PeriodicBlockProvider.takeBatch(blocks.toPublish, 1, 0);
+        blocks.put(new byte[]{4}, Cid.Codec.Raw).join();
+        Assert.assertEquals(3L, blocks.provideQueueStats().get("Queued"));
+    }
+}
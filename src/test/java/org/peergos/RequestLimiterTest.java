@@ -0,0 +1,69 @@
+package org.peergos;
+
+import io.libp2p.core.*;
+import org.junit.*;
+import org.peergos.protocol.dht.*;
+
+public class RequestLimiterTest {
+
+    @Test
+    public void floodingPeerIsDroppedWithoutAffectingOthers() {
+        // refills too slowly to matter during the test
+        RequestLimiter limiter = new RequestLimiter(0.001, 10, 0.001, 1_000, 100);
+        PeerId flooder = new HostBuilder().generateIdentity().getPeerId();
+        PeerId other = new HostBuilder().generateIdentity().getPeerId();
+        for (int i = 0; i < 10; i++)
+            Assert.assertEquals(RequestLimiter.Admission.ACCEPT, limiter.admit(flooder));
+        for (int i = 0; i < 100; i++)
+            Assert.assertEquals(RequestLimiter.Admission.DROP, limiter.admit(flooder));
+        Assert.assertEquals(RequestLimiter.Admission.ACCEPT, limiter.admit(other));
+        Assert.assertEquals(100L, limiter.toJson().get("Dropped"));
+    }
+
+    @Test
+    public void requestsOverTheGlobalLimitAreShed() {
+        RequestLimiter limiter = new RequestLimiter(0.001, 10, 0.001, 15, 100);
+        int accepted = 0, shed = 0;
+        for (int p = 0; p < 3; p++) {
+            PeerId peer = new HostBuilder().generateIdentity().getPeerId();
+            for (int i = 0; i < 10; i++) {
+                RequestLimiter.Admission admission = limiter.admit(peer);
+                if (admission == RequestLimiter.Admission.ACCEPT)
+                    accepted++;
+                else if (admission == RequestLimiter.Admission.SHED)
+                    shed++;
+            }
+        }
+        Assert.assertEquals(15, accepted);
+        Assert.assertEquals(15, shed);
+    }
+
+    @Test
+    public void idlePeersAreEvicted() {
+        RequestLimiter limiter = new RequestLimiter(1_000_000, 10, 1_000_000, 1_000, 10);
+        for (int p = 0; p < 50; p++)
+            limiter.admit(new HostBuilder().generateIdentity().getPeerId());
+        Assert.assertTrue((Integer) limiter.toJson().get("Peers") <= 10);
+    }
+
+    @Test
+    public void peersInDeficitKeepTheirBuckets() {
+        // refills too slowly to matter during the test
+        RequestLimiter limiter = new RequestLimiter(0.001, 10, 1_000_000, 1_000, 2);
+        PeerId flooder = new HostBuilder().generateIdentity().getPeerId();
+        for (int i = 0; i < 10; i++)
+            Assert.assertEquals(RequestLimiter.Admission.ACCEPT, limiter.admit(flooder));
+        Assert.assertEquals(RequestLimiter.Admission.DROP, limiter.admit(flooder));
+
+        // new peers beyond the limit share one bucket, rather than evicting the flooder's
+        int accepted = 0;
+        for (int p = 0; p < 20; p++) {
+            if (limiter.admit(new HostBuilder().generateIdentity().getPeerId()) == RequestLimiter.Admission.ACCEPT)
+                accepted++;
+        }
+        Assert.assertEquals(2, limiter.toJson().get("Peers"));
+        Assert.assertEquals(RequestLimiter.Admission.DROP, limiter.admit(flooder));
+        // one request from the peer that got the last bucket, then the overflow bucket's burst
+        Assert.assertEquals(11, accepted);
+    }
+}
@@ -0,0 +1,82 @@
+package org.peergos;
+
+import io.libp2p.core.*;
+import org.junit.*;
+import org.peergos.protocol.dht.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class RoutingTableTest {
+
+    @Test
+    public void findReturnsClosest() {
+        KademliaIds ids = new KademliaIds();
+        RoutingTable table = new RoutingTable(new byte[32], RoutingTable.DEFAULT_BUCKET_SIZE);
+        for (int i = 0; i < 1000; i++) {
+            PeerId peer = PeerId.random();
+            table.touch(peer, ids.hash(peer));
+        }
+        byte[] key = Hash.sha256(new byte[]{1, 2, 3});
+        List<PeerId> expected = table.find(key, table.size()).stream()
+                .map(e -> e.peer)
+                .sorted((a, b) -> Arrays.compareUnsigned(KademliaIds.distance(key, ids.hash(a)), KademliaIds.distance(key, ids.hash(b))))
+                .limit(20)
+                .collect(Collectors.toList());
+        List<PeerId> closest = table.find(key, 20).stream().map(e -> e.peer).collect(Collectors.toList());
+        Assert.assertEquals(expected, closest);
+    }
+
+    @Test
+    public void bucketsAreBounded() {
+        KademliaIds ids = new KademliaIds();
+        int k = 4;
+        RoutingTable table = new RoutingTable(new byte[32], k);
+        for (int i = 0; i < 1000; i++) {
+            PeerId peer = PeerId.random();
+            table.touch(peer, ids.hash(peer));
+        }
+        // about half of all peers land in the first bucket, a quarter in the second, and so on
+        Assert.assertTrue(table.size() <= k * 12);
+    }
+
+    @Test
+    public void removePromotesReplacement() {
+        KademliaIds ids = new KademliaIds();
+        RoutingTable table = new RoutingTable(new byte[32], 1);
+        List<PeerId> firstBucket = new ArrayList<>();
+        while (firstBucket.size() < 2) {
+            PeerId peer = PeerId.random();
+            if ((ids.hash(peer)[0] & 0x80) != 0)
+                firstBucket.add(peer);
+        }
+        table.touch(firstBucket.get(0), ids.hash(firstBucket.get(0)));
+        table.touch(firstBucket.get(1), ids.hash(firstBucket.get(1)));
+        byte[] key = ids.hash(firstBucket.get(1));
+        Assert.assertEquals(firstBucket.get(0), table.find(key, 1).get(0).peer);
+
+        table.remove(firstBucket.get(0), ids.hash(firstBucket.get(0)));
+        Assert.assertEquals(firstBucket.get(1), table.find(key, 1).get(0).peer);
+    }
+
+    @Test
+    public void concurrentTouchAndFind() throws Exception {
+        KademliaIds ids = new KademliaIds();
+        RoutingTable table = new RoutingTable(Hash.sha256(new byte[0]), RoutingTable.DEFAULT_BUCKET_SIZE);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int t = 0; t < 8; t++)
+            tasks.add(pool.submit(() -> {
+                for (int i = 0; i < 500; i++) {
+                    PeerId peer = PeerId.random();
+                    table.touch(peer, ids.hash(peer));
+                    List<RoutingTable.Entry> found = table.find(ids.hash(peer), 20);
+                    Assert.assertFalse(found.isEmpty());
+                }
+            }));
+        for (Future<?> task : tasks)
+            task.get(30, TimeUnit.SECONDS);
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,69 @@
+package org.peergos;
+
+import com.google.protobuf.*;
+import io.ipfs.multihash.Multihash;
+import io.libp2p.core.crypto.*;
+import org.junit.*;
+import org.peergos.protocol.dht.pb.*;
+import org.peergos.protocol.ipns.*;
+
+import java.time.*;
+import java.util.*;
+
+public class ValidatedRecordCacheTest {
+
+    private static Dht.Message put(Multihash publisher, byte[] record) {
+        ByteString key = ByteString.copyFrom(IPNS.getKey(publisher));
+        return Dht.Message.newBuilder()
+                .setType(Dht.Message.MessageType.PUT_VALUE)
+                .setKey(key)
+                .setRecord(Dht.Record.newBuilder()
+                        .setKey(key)
+                        .setValue(ByteString.copyFrom(record))
+                        .build())
+                .build();
+    }
+
+    @Test
+    public void repeatedRecordsAreOnlyValidatedOnce() {
+        HostBuilder builder = new HostBuilder().generateIdentity();
+        PrivKey priv = builder.getPrivateKey();
+        Multihash publisher = Multihash.deserialize(builder.getPeerId().getBytes());
+        LocalDateTime expiry = LocalDateTime.now().plusHours(1);
+        byte[] record = IPNS.createSignedRecord("/ipfs/value", expiry, 5, 3600_000_000_000L, priv);
+
+        ValidatedRecordCache cache = new ValidatedRecordCache(100);
+        Optional<IpnsMapping> first = cache.validate(put(publisher, record));
+        Assert.assertTrue(first.isPresent());
+        Assert.assertEquals(5, first.get().value.sequence);
+        Assert.assertTrue(cache.validate(put(publisher, record)).isPresent());
+        Assert.assertEquals(1L, cache.toJson().get("Hits"));
+
+        // a record signed by someone else fails validation, and so does every repeat of it
+        PrivKey other = new HostBuilder().generateIdentity().getPrivateKey();
+        byte[] forged = IPNS.createSignedRecord("/ipfs/forged", expiry, 6, 3600_000_000_000L, other);
+        Assert.assertTrue(cache.validate(put(publisher, forged)).isEmpty());
+        Assert.assertTrue(cache.validate(put(publisher, forged)).isEmpty());
+        Assert.assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void staleRecordsAreRecognisedWithoutVerification() {
+        HostBuilder builder = new HostBuilder().generateIdentity();
+        PrivKey priv = builder.getPrivateKey();
+        Multihash publisher = Multihash.deserialize(builder.getPeerId().getBytes());
+        LocalDateTime expiry = LocalDateTime.now().plusHours(1);
+        long ttl = 3600_000_000_000L;
+        IpnsRecord stored = new ValidatedRecordCache(1)
+                .validate(put(publisher, IPNS.createSignedRecord("/ipfs/value", expiry, 5, ttl, priv))).get().value;
+
+        Assert.assertTrue(ValidatedRecordCache.isStale(put(publisher,
+                IPNS.createSignedRecord("/ipfs/older", expiry.plusHours(1), 4, ttl, priv)), stored));
+        Assert.assertTrue(ValidatedRecordCache.isStale(put(publisher, stored.raw), stored));
+        // the same sequence with a later expiry is a republish, which replaces the record
+        Assert.assertFalse(ValidatedRecordCache.isStale(put(publisher,
+                IPNS.createSignedRecord("/ipfs/value", expiry.plusHours(1), 5, ttl, priv)), stored));
+        Assert.assertFalse(ValidatedRecordCache.isStale(put(publisher,
+                IPNS.createSignedRecord("/ipfs/newer", expiry, 6, ttl, priv)), stored));
+    }
+}
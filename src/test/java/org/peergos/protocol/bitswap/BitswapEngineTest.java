@@ -0,0 +1,186 @@
+package org.peergos.protocol.bitswap;
+
+import com.google.protobuf.*;
+import io.ipfs.cid.*;
+import io.libp2p.core.*;
+import io.libp2p.core.multiformats.*;
+import org.junit.*;
+import org.peergos.*;
+import org.peergos.blockstore.*;
+import org.peergos.protocol.bitswap.pb.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class BitswapEngineTest {
+
+    private static BitswapEngine engine(Blockstore store) {
+        return new BitswapEngine(store, (c, b, p, a) -> CompletableFuture.completedFuture(true));
+    }
+
+    private static MessageOuterClass.Message blocks(Cid cid, byte[]... data) {
+        MessageOuterClass.Message.Builder msg = MessageOuterClass.Message.newBuilder();
+        for (byte[] block : data)
+            msg.addPayload(MessageOuterClass.Message.Block.newBuilder()
+                    .setPrefix(ByteString.copyFrom(BitswapEngine.prefixBytes(cid)))
+                    .setData(ByteString.copyFrom(block)));
+        return msg.build();
+    }
+
+    private static MessageOuterClass.Message wantlist(List<Cid> cids, boolean cancel) {
+        MessageOuterClass.Message.Wantlist.Builder wants = MessageOuterClass.Message.Wantlist.newBuilder();
+        for (Cid cid : cids)
+            wants.addEntries(MessageOuterClass.Message.Wantlist.Entry.newBuilder()
+                    .setBlock(ByteString.copyFrom(cid.toBytes()))
+                    .setWantType(MessageOuterClass.Message.Wantlist.WantType.Block)
+                    .setCancel(cancel));
+        return MessageOuterClass.Message.newBuilder().setWantlist(wants).build();
+    }
+
+    @Test
+    public void statsAfterAnExchange() throws Exception {
+        RamBlockstore serverStore = new RamBlockstore();
+        byte[] data = new byte[1024];
+        Cid cid = serverStore.put(data, Cid.Codec.Raw).join();
+        BitswapEngine server = engine(serverStore);
+        BitswapEngine client = engine(new RamBlockstore());
+        PeerId serverId = PeerId.random(), clientId = PeerId.random();
+
+        CompletableFuture<HashedBlock> want = client.getWant(new Want(cid), false);
+        server.receiveMessage(wantlist(List.of(cid), false), clientId, reply -> client.receiveMessage(reply, serverId, m -> {}));
+        Assert.assertArrayEquals(data, want.get(5, TimeUnit.SECONDS).block);
+
+        BitswapStats served = server.getStats();
+        Assert.assertEquals(1, served.wantsReceived.sum());
+        Assert.assertEquals(0, served.cancelsReceived.sum());
+        // the sender updates its counters just after sending
+        long end = System.currentTimeMillis() + 5_000;
+        while (served.blocksServed.sum() < 1 && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        Assert.assertEquals(1, served.blocksServed.sum());
+        Assert.assertEquals(data.length, served.bytesServed.sum());
+        Assert.assertEquals(data.length, server.getLedger(clientId).bytesSent());
+
+        BitswapStats received = client.getStats();
+        Assert.assertEquals(1, received.blocksReceived.sum());
+        Assert.assertEquals(data.length, received.bytesReceived.sum());
+        Assert.assertEquals(0, received.duplicateBlocksReceived.sum());
+        Assert.assertEquals(1, received.wantLatency.count());
+        Assert.assertEquals(1, client.getLedger(serverId).wantLatency.count());
+        Map<String, Object> json = received.toJson(client.getLedgers());
+        Assert.assertEquals(1L, json.get("BlocksReceived"));
+        Assert.assertEquals(1, ((List<?>) json.get("Peers")).size());
+    }
+
+    @Test
+    public void duplicateAndUnsolicitedBlocksAreCountedSeparately() {
+        BitswapEngine engine = engine(new RamBlockstore());
+        PeerId peer = PeerId.random();
+        byte[] wanted = {1}, other = {2};
+        Cid cid = new RamBlockstore().put(wanted, Cid.Codec.Raw).join();
+        CompletableFuture<HashedBlock> want = engine.getWant(new Want(cid), false);
+
+        // the second copy of the block is a duplicate, and a block we never wanted is not
+        engine.receiveMessage(blocks(cid, wanted, wanted, other), peer, m -> {});
+        Assert.assertArrayEquals(wanted, want.join().block);
+        Assert.assertFalse(engine.isWanted(new Want(cid)));
+        BitswapStats stats = engine.getStats();
+        Assert.assertEquals(3, stats.blocksReceived.sum());
+        Assert.assertEquals(1, stats.duplicateBlocksReceived.sum());
+        Assert.assertEquals(1, stats.unsolicitedBlocksReceived.sum());
+
+        // a copy arriving after the want completed is still recognised, even with nothing outstanding
+        engine.receiveMessage(blocks(cid, wanted), peer, m -> {});
+        Assert.assertEquals(2, stats.duplicateBlocksReceived.sum());
+
+        // a prefix we have never wanted is unsolicited without being hashed
+        Cid cbor = new Cid(1, Cid.Codec.DagCbor, cid.getType(), cid.getHash());
+        engine.receiveMessage(blocks(cbor, wanted), peer, m -> {});
+        Assert.assertEquals(2, stats.unsolicitedBlocksReceived.sum());
+        BitswapLedger ledger = engine.getLedger(peer);
+        Assert.assertEquals(2, ledger.duplicateBlocksReceived());
+        Assert.assertEquals(2, ledger.unsolicitedBlocksReceived());
+    }
+
+    @Test
+    public void cancelDropsQueuedBlocks() throws Exception {
+        RamBlockstore store = new RamBlockstore();
+        List<Cid> cids = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            byte[] block = new byte[100 * 1024];
+            block[0] = (byte) i;
+            cids.add(store.put(block, Cid.Codec.Raw).join());
+        }
+        // room for one block a minute, so the other two wait in the queue
+        BitswapEngine engine = new BitswapEngine(store, (c, b, p, a) -> CompletableFuture.completedFuture(true),
+                Runnable::run, 4, 100 * 1024, 60_000);
+        PeerId peer = PeerId.random();
+        List<MessageOuterClass.Message> sent = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch firstSent = new CountDownLatch(1);
+        engine.receiveMessage(wantlist(cids, false), peer, m -> {
+            sent.add(m);
+            firstSent.countDown();
+        });
+        Assert.assertTrue(firstSent.await(5, TimeUnit.SECONDS));
+
+        engine.receiveMessage(wantlist(cids, true), peer, m -> {});
+        Assert.assertEquals(3, engine.getStats().cancelsReceived.sum());
+        Assert.assertEquals(0, engine.getLedger(peer).wantsOutstanding());
+        Assert.assertEquals(1, sent.stream().mapToInt(MessageOuterClass.Message::getPayloadCount).sum());
+    }
+
+    @Test
+    public void lookupsWaitForTheSendBudget() throws Exception {
+        AtomicInteger lookups = new AtomicInteger(0);
+        RamBlockstore store = new RamBlockstore() {
+            @Override
+            public CompletableFuture<Optional<byte[]>> get(Cid c) {
+                lookups.incrementAndGet();
+                return super.get(c);
+            }
+        };
+        List<Cid> cids = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            byte[] block = new byte[100 * 1024];
+            block[0] = (byte) i;
+            cids.add(store.put(block, Cid.Codec.Raw).join());
+        }
+        BitswapEngine engine = new BitswapEngine(store, (c, b, p, a) -> CompletableFuture.completedFuture(true),
+                Runnable::run, 1, 100 * 1024, 60_000);
+        engine.setAddressBook(new RamAddressBook());
+        PeerId peer = PeerId.random();
+        engine.addConnection(peer, new Multiaddr("/ip4/127.0.0.1/tcp/4001"));
+        BlockingQueue<MessageOuterClass.Message> sent = new LinkedBlockingQueue<>();
+        engine.receiveMessage(wantlist(cids, false), peer, sent::add);
+        MessageOuterClass.Message first = sent.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(first);
+
+        // one block sent, and at most one more looked up to wait for the next window
+        Assert.assertEquals(1, first.getPayloadCount());
+        Assert.assertTrue(lookups.get() <= 2);
+
+        engine.removeConnection(peer);
+        Assert.assertTrue(engine.getLedgers().isEmpty());
+        Assert.assertTrue(engine.getConnected().isEmpty());
+    }
+
+    @Test
+    public void fullProvideQueueDoesNotBlockReceive() throws Exception {
+        ProvidingBlockstore store = new ProvidingBlockstore(new RamBlockstore(), 1);
+        store.put(new byte[]{1}, Cid.Codec.Raw).join();
+        BitswapEngine engine = engine(store);
+
+        byte[] data = {2};
+        Cid cid = new RamBlockstore().put(data, Cid.Codec.Raw).join();
+        CompletableFuture<HashedBlock> want = engine.getWant(new Want(cid), true);
+        CompletableFuture.runAsync(() -> engine.receiveMessage(blocks(cid, data), PeerId.random(), m -> {}))
+                .get(5, TimeUnit.SECONDS);
+
+        Assert.assertArrayEquals(data, want.join().block);
+        Assert.assertTrue(store.has(cid).join());
+        // the cid is left for the next reprovide
+        Assert.assertEquals(1, store.toPublish.size());
+        Assert.assertEquals(1L, store.provideQueueStats().get("Dropped"));
+    }
+}
@@ -0,0 +1,180 @@
+package org.peergos.protocol.bitswap;
+
+import com.google.protobuf.*;
+import io.ipfs.cid.*;
+import io.ipfs.multiaddr.*;
+import io.ipfs.multihash.Multihash;
+import io.libp2p.core.*;
+import io.libp2p.core.multiformats.*;
+import org.junit.*;
+import org.peergos.*;
+import org.peergos.blockstore.*;
+import org.peergos.protocol.bitswap.pb.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+public class BitswapSessionTest {
+
+    private final BlockingQueue<Map.Entry<PeerId, MessageOuterClass.Message>> sent = new LinkedBlockingQueue<>();
+    private final RamAddressBook addrs = new RamAddressBook();
+    private final BitswapEngine engine = new BitswapEngine(new RamBlockstore(), (c, b, p, a) -> CompletableFuture.completedFuture(true));
+    private final WantManager wants = new WantManager((p, m) -> sent.add(Map.entry(p, m)),
+            engine::getConnected, engine::isWanted, engine.getStats());
+    private final ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService searches = Executors.newCachedThreadPool();
+
+    @Before
+    public void setup() {
+        engine.setAddressBook(addrs);
+        engine.addListener(wants);
+    }
+
+    @After
+    public void shutdown() {
+        timers.shutdownNow();
+        searches.shutdownNow();
+    }
+
+    private BitswapSession session(ProviderFinder providers) {
+        return new BitswapSession(engine, wants, addrs, providers, timers, searches);
+    }
+
+    private PeerId connectedPeer() {
+        PeerId peer = PeerId.random();
+        engine.addConnection(peer, new Multiaddr("/ip4/127.0.0.1/tcp/4001"));
+        return peer;
+    }
+
+    private static Cid cid(byte[] block) {
+        return new RamBlockstore().put(block, Cid.Codec.Raw).join();
+    }
+
+    /** Wait for an entry for c, of the given kind, to be sent to peer
+     *
+     */
+    private void expect(PeerId peer, Cid c, Predicate<MessageOuterClass.Message.Wantlist.Entry> kind) throws Exception {
+        ByteString block = ByteString.copyFrom(c.toBytes());
+        long end = System.currentTimeMillis() + 5_000;
+        while (System.currentTimeMillis() < end) {
+            Map.Entry<PeerId, MessageOuterClass.Message> next = sent.poll(end - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            if (next == null)
+                break;
+            if (next.getKey().equals(peer) && next.getValue().getWantlist().getEntriesList().stream()
+                    .anyMatch(e -> e.getBlock().equals(block) && kind.test(e)))
+                return;
+        }
+        Assert.fail("Nothing sent to " + peer + " for " + c);
+    }
+
+    private static boolean wantHave(MessageOuterClass.Message.Wantlist.Entry e) {
+        return ! e.getCancel() && e.getWantType() == MessageOuterClass.Message.Wantlist.WantType.Have;
+    }
+
+    private static boolean wantBlock(MessageOuterClass.Message.Wantlist.Entry e) {
+        return ! e.getCancel() && e.getWantType() == MessageOuterClass.Message.Wantlist.WantType.Block;
+    }
+
+    private static MessageOuterClass.Message have(Cid c) {
+        return MessageOuterClass.Message.newBuilder()
+                .addBlockPresences(MessageOuterClass.Message.BlockPresence.newBuilder()
+                        .setCid(ByteString.copyFrom(c.toBytes()))
+                        .setType(MessageOuterClass.Message.BlockPresenceType.Have))
+                .build();
+    }
+
+    private static MessageOuterClass.Message block(Cid c, byte[] data) {
+        return MessageOuterClass.Message.newBuilder()
+                .addPayload(MessageOuterClass.Message.Block.newBuilder()
+                        .setPrefix(ByteString.copyFrom(BitswapEngine.prefixBytes(c)))
+                        .setData(ByteString.copyFrom(data)))
+                .build();
+    }
+
+    @Test
+    public void blocksAreRequestedFromPeersThatHaveThem() throws Exception {
+        PeerId hasIt = connectedPeer();
+        PeerId other = connectedPeer();
+        BitswapSession session = session(c -> CompletableFuture.completedFuture(Collections.emptyList()));
+        byte[] data = {1};
+        Cid c = cid(data);
+        CompletableFuture<HashedBlock> res = session.get(new Want(c), false);
+        expect(hasIt, c, BitswapSessionTest::wantHave);
+
+        engine.receiveMessage(have(c), hasIt, m -> {});
+        expect(hasIt, c, BitswapSessionTest::wantBlock);
+        engine.receiveMessage(block(c, data), hasIt, m -> {});
+        Assert.assertArrayEquals(data, res.get(5, TimeUnit.SECONDS).block);
+
+        // the peer that served the session is now asked for blocks straight away
+        byte[] data2 = {2};
+        Cid c2 = cid(data2);
+        session.get(new Want(c2), false);
+        expect(hasIt, c2, BitswapSessionTest::wantBlock);
+        session.close();
+    }
+
+    @Test
+    public void providersAreFoundWhenNobodyIsConnected() throws Exception {
+        PeerId provider = PeerId.random();
+        Multiaddr address = new Multiaddr("/ip4/127.0.0.1/tcp/4002");
+        List<Cid> searched = new CopyOnWriteArrayList<>();
+        BitswapSession session = session(c -> {
+            searched.add(c);
+            return CompletableFuture.completedFuture(List.of(new PeerAddresses(Multihash.deserialize(provider.getBytes()),
+                    List.of(new MultiAddress(address.toString())))));
+        });
+        Cid c = cid(new byte[]{3});
+        session.get(new Want(c), false);
+
+        expect(provider, c, BitswapSessionTest::wantHave);
+        Assert.assertEquals(List.of(c), searched);
+        Assert.assertTrue(addrs.getAddrs(provider).join().contains(address));
+        session.close();
+    }
+
+    @Test
+    public void closeCancelsOutstandingWants() throws Exception {
+        PeerId peer = connectedPeer();
+        BitswapSession session = session(c -> CompletableFuture.completedFuture(Collections.emptyList()));
+        Cid c = cid(new byte[]{4});
+        Want w = new Want(c);
+        CompletableFuture<HashedBlock> res = session.get(w, false);
+        expect(peer, c, BitswapSessionTest::wantHave);
+
+        session.close();
+        Assert.assertTrue(res.isCancelled());
+        Assert.assertFalse(engine.isWanted(w));
+        expect(peer, c, MessageOuterClass.Message.Wantlist.Entry::getCancel);
+        Assert.assertThrows(IllegalStateException.class, () -> session.get(w, false));
+    }
+
+    @Test
+    public void closingOneSessionLeavesSharedWantsToTheOthers() throws Exception {
+        PeerId peer = connectedPeer();
+        BitswapSession first = session(c -> CompletableFuture.completedFuture(Collections.emptyList()));
+        BitswapSession second = session(c -> CompletableFuture.completedFuture(Collections.emptyList()));
+        byte[] data = {5};
+        Cid c = cid(data);
+        Want w = new Want(c);
+        CompletableFuture<HashedBlock> closed = first.get(w, false);
+        CompletableFuture<HashedBlock> open = second.get(w, false);
+        expect(peer, c, BitswapSessionTest::wantHave);
+
+        first.close();
+        Assert.assertTrue(closed.isCancelled());
+        Assert.assertFalse(open.isDone());
+        Assert.assertTrue(engine.isWanted(w));
+        // the peer is not told to cancel a want the other session still needs
+        Thread.sleep(200);
+        ByteString cidBytes = ByteString.copyFrom(c.toBytes());
+        Assert.assertTrue(sent.stream()
+                .flatMap(m -> m.getValue().getWantlist().getEntriesList().stream())
+                .noneMatch(e -> e.getBlock().equals(cidBytes) && e.getCancel()));
+
+        engine.receiveMessage(block(c, data), peer, m -> {});
+        Assert.assertArrayEquals(data, open.get(5, TimeUnit.SECONDS).block);
+        second.close();
+    }
+}
@@ -0,0 +1,93 @@
+package org.peergos.protocol.bitswap;
+
+import io.libp2p.core.*;
+import kotlin.*;
+import org.junit.*;
+import org.peergos.protocol.bitswap.pb.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class ControllerCacheTest {
+
+    private static class FakeController implements BitswapController {
+        final CompletableFuture<Unit> closed = new CompletableFuture<>();
+
+        @Override
+        public void send(MessageOuterClass.Message msg) {}
+
+        @Override
+        public CompletableFuture<Unit> close() {
+            closed.complete(Unit.INSTANCE);
+            return closed;
+        }
+
+        @Override
+        public CompletableFuture<Unit> closeFuture() {
+            return closed;
+        }
+    }
+
+    @Test
+    public void controllersAreReusedUntilClosed() {
+        AtomicInteger dials = new AtomicInteger(0);
+        ControllerCache cache = new ControllerCache(10_000, p -> {
+            dials.incrementAndGet();
+            return CompletableFuture.completedFuture(new FakeController());
+        });
+        PeerId peer = PeerId.random();
+        BitswapController first = cache.get(peer).join();
+        Assert.assertSame(first, cache.get(peer).join());
+        Assert.assertEquals(1, dials.get());
+
+        first.close().join();
+        Assert.assertEquals(0, cache.size());
+        Assert.assertNotSame(first, cache.get(peer).join());
+        Assert.assertEquals(2, dials.get());
+    }
+
+    @Test
+    public void failedDialsAreNotCached() {
+        AtomicInteger dials = new AtomicInteger(0);
+        ControllerCache cache = new ControllerCache(10_000, p -> {
+            dials.incrementAndGet();
+            return CompletableFuture.failedFuture(new IllegalStateException("unreachable"));
+        });
+        PeerId peer = PeerId.random();
+        Assert.assertTrue(cache.get(peer).isCompletedExceptionally());
+        Assert.assertEquals(0, cache.size());
+        Assert.assertTrue(cache.get(peer).isCompletedExceptionally());
+        Assert.assertEquals(2, dials.get());
+    }
+
+    @Test
+    public void slowDialsAreEvictedAndClosedWhenTheyFinish() throws Exception {
+        List<CompletableFuture<BitswapController>> dials = new CopyOnWriteArrayList<>();
+        ControllerCache cache = new ControllerCache(100, p -> {
+            CompletableFuture<BitswapController> dial = new CompletableFuture<>();
+            dials.add(dial);
+            return dial;
+        });
+        PeerId peer = PeerId.random();
+        CompletableFuture<BitswapController> slow = cache.get(peer);
+        try {
+            slow.get(5, TimeUnit.SECONDS);
+            Assert.fail("Dial should have timed out");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        Assert.assertEquals(0, cache.size());
+
+        // the next send dials again, and the late stream is closed rather than leaked
+        CompletableFuture<BitswapController> retry = cache.get(peer);
+        Assert.assertEquals(2, dials.size());
+        FakeController late = new FakeController();
+        dials.get(0).complete(late);
+        Assert.assertTrue(late.closed.isDone());
+        FakeController fresh = new FakeController();
+        dials.get(1).complete(fresh);
+        Assert.assertSame(fresh, retry.join());
+        Assert.assertFalse(fresh.closed.isDone());
+    }
+}
@@ -0,0 +1,119 @@
+package org.peergos.protocol.bitswap;
+
+import io.ipfs.cid.*;
+import io.libp2p.core.*;
+import org.junit.*;
+import org.peergos.*;
+import org.peergos.blockstore.*;
+import org.peergos.protocol.bitswap.pb.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class WantManagerTest {
+
+    private final BlockingQueue<Map.Entry<PeerId, MessageOuterClass.Message>> sent = new LinkedBlockingQueue<>();
+    private final Set<PeerId> connected = ConcurrentHashMap.newKeySet();
+    private final WantManager wants = new WantManager((p, m) -> sent.add(Map.entry(p, m)),
+            () -> connected, w -> true, new BitswapStats());
+
+    private static Want want(int i) {
+        return new Want(new RamBlockstore().put(new byte[]{(byte) i}, Cid.Codec.Raw).join());
+    }
+
+    private PeerId connectedPeer() {
+        PeerId peer = PeerId.random();
+        connected.add(peer);
+        return peer;
+    }
+
+    /** Everything sent in the next expected messages, by peer
+     *
+     */
+    private Map<PeerId, List<MessageOuterClass.Message.Wantlist.Entry>> next(int messages) throws Exception {
+        Map<PeerId, List<MessageOuterClass.Message.Wantlist.Entry>> res = new HashMap<>();
+        for (int i = 0; i < messages; i++) {
+            Map.Entry<PeerId, MessageOuterClass.Message> msg = sent.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(msg);
+            res.computeIfAbsent(msg.getKey(), p -> new ArrayList<>()).addAll(msg.getValue().getWantlist().getEntriesList());
+        }
+        // anything else would only be sent by the rebroadcast, seconds later
+        Assert.assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+        return res;
+    }
+
+    private static Set<Cid> cids(List<MessageOuterClass.Message.Wantlist.Entry> entries) {
+        return entries.stream()
+                .map(e -> Cid.cast(e.getBlock().toByteArray()))
+                .collect(Collectors.toSet());
+    }
+
+    @Test
+    public void wantsAreBatchedAndOnlyChangesAreSent() throws Exception {
+        PeerId a = connectedPeer(), b = connectedPeer();
+        List<Want> first = List.of(want(1), want(2), want(3));
+        wants.addWants(first, Collections.emptySet());
+
+        // one message per peer, with every want in it
+        Map<PeerId, List<MessageOuterClass.Message.Wantlist.Entry>> broadcast = next(2);
+        Set<Cid> firstCids = first.stream().map(w -> w.cid).collect(Collectors.toSet());
+        for (PeerId peer : List.of(a, b)) {
+            Assert.assertEquals(3, broadcast.get(peer).size());
+            Assert.assertEquals(firstCids, cids(broadcast.get(peer)));
+            Assert.assertTrue(broadcast.get(peer).stream()
+                    .allMatch(e -> e.getWantType() == MessageOuterClass.Message.Wantlist.WantType.Have));
+        }
+
+        // a new want is sent on its own, and a peer that connects later gets everything outstanding
+        PeerId c = connectedPeer();
+        Want fourth = want(4);
+        wants.addWants(List.of(fourth), Collections.emptySet());
+        Map<PeerId, List<MessageOuterClass.Message.Wantlist.Entry>> delta = next(3);
+        Assert.assertEquals(Set.of(fourth.cid), cids(delta.get(a)));
+        Assert.assertEquals(Set.of(fourth.cid), cids(delta.get(b)));
+        Assert.assertEquals(4, delta.get(c).size());
+
+        // repeating a want changes nothing, so nothing is sent
+        wants.addWants(List.of(fourth), Collections.emptySet());
+        Assert.assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void haveUpgradesToWantBlock() throws Exception {
+        PeerId chosen = connectedPeer();
+        connectedPeer();
+        Want w = want(5);
+        wants.addWants(List.of(w), Set.of(chosen));
+
+        // only the chosen peer is asked, with a want-have
+        List<MessageOuterClass.Message.Wantlist.Entry> asked = next(1).get(chosen);
+        Assert.assertEquals(1, asked.size());
+        Assert.assertEquals(MessageOuterClass.Message.Wantlist.WantType.Have, asked.get(0).getWantType());
+        Assert.assertTrue(asked.get(0).getSendDontHave());
+
+        wants.receivedHave(chosen, w);
+        List<MessageOuterClass.Message.Wantlist.Entry> upgraded = next(1).get(chosen);
+        Assert.assertEquals(1, upgraded.size());
+        Assert.assertEquals(MessageOuterClass.Message.Wantlist.WantType.Block, upgraded.get(0).getWantType());
+
+        // a second have changes nothing
+        wants.receivedHave(chosen, w);
+        Assert.assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void typedWantsAreNotUpgraded() throws Exception {
+        PeerId peer = connectedPeer();
+        Want w = want(6);
+        wants.addWants(List.of(w), Set.of(peer), MessageOuterClass.Message.Wantlist.WantType.Have);
+        Assert.assertEquals(1, next(1).get(peer).size());
+
+        // whoever chose the peers decides when to ask for the block
+        wants.receivedHave(peer, w);
+        Assert.assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+
+        wants.receivedBlock(peer, w);
+        Assert.assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+    }
+}